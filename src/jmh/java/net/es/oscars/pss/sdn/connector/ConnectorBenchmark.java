@@ -0,0 +1,137 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.es.oscars.pss.sdn.connector.FloodlightRequestWriter.RequestBuffer;
+import net.es.oscars.pss.sdn.connector.FloodlightSDNConnector.SetupMode;
+import net.es.oscars.pss.sdn.openflow.OFRule;
+import net.es.oscars.pss.sdn.simulator.FloodlightSimulator;
+import net.es.oscars.topoBridge.sdn.BaseSDNTopologyService;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.ogf.schema.network.topology.ctrlplane.CtrlPlaneHopContent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The connector's share of a circuit setup: serializing store requests,
+ * ordering the hops and a whole setupCircuit against an in-process
+ * {@link FloodlightSimulator} (no latency, no errors), so the numbers only
+ * depend on the PSS itself. Hops are built from a path of link ids the way
+ * setup requests are.
+ *
+ * Circuits are torn down after every setup, outside of the measurement, so
+ * each setup starts from empty flow tables.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectorBenchmark {
+
+	@Param({ "4", "16" })
+	public int switches;
+
+	@Param({ "BATCHED", "TIERED" })
+	public SetupMode setupMode;
+
+	private FloodlightSimulator controller;
+	private FloodlightSDNConnector connector;
+	private List<SDNHop> hops;
+	private OFRule rule;
+	private OFRule entry;
+
+	@Setup
+	public void setup() throws Exception {
+		controller = new FloodlightSimulator();
+		controller.start();
+		connector = new FloodlightSDNConnector(controller.getAddress());
+		connector.setSetupMode(setupMode);
+
+		hops = BaseSDNTopologyService.extractSDNHops(path(switches));
+		rule = OFRule.builder("dl_type=0x800,nw_dst=10.0.0.2")
+				.putVlan(true, "100", true, "200").build();
+		entry = rule.toBuilder().inPort("1").output("2")
+				.name("gri.match.1.F").build();
+	}
+
+	/**
+	 * @return a path crossing n switches, entering each on port 1 and
+	 *         leaving on port 2
+	 */
+	private static List<CtrlPlaneHopContent> path(int n) {
+		List<CtrlPlaneHopContent> path = new ArrayList<CtrlPlaneHopContent>();
+		for (int i = 1; i <= n; i++) {
+			for (int port = 1; port <= 2; port++) {
+				CtrlPlaneHopContent hop = new CtrlPlaneHopContent();
+				hop.setId(String.valueOf(path.size()));
+				hop.setLinkIdRef(String.format(
+						"urn:ogf:network:domain=d:node=00.00.00.00.00.00.00.%02x"
+								+ ":port=%d:link=1", i, port));
+				path.add(hop);
+			}
+		}
+		return path;
+	}
+
+	@TearDown
+	public void shutdown() {
+		controller.stop();
+	}
+
+	@Benchmark
+	public int storeRequest() throws Exception {
+		RequestBuffer request = FloodlightRequestWriter.storeRequest(
+				"00:00:00:00:00:00:00:01", entry);
+		return request.size();
+	}
+
+	@Benchmark
+	public List<SDNHop> sortHops() {
+		List<SDNHop> sorted = new ArrayList<SDNHop>(hops);
+		Collections.reverse(sorted);
+		Collections.sort(sorted, connector.new CircuitSetupOrder());
+		return sorted;
+	}
+
+	/**
+	 * A circuit id for every setupCircuit call, torn down after the call.
+	 */
+	@State(Scope.Thread)
+	public static class Circuit {
+		private int count = 0;
+		String gri;
+
+		@Setup(Level.Invocation)
+		public void next() {
+			gri = "bench-" + (++count);
+		}
+
+		@TearDown(Level.Invocation)
+		public void teardown(ConnectorBenchmark b) throws Exception {
+			b.connector.teardownCircuit(new ArrayList<SDNHop>(b.hops), gri);
+		}
+	}
+
+	@Benchmark
+	public Object setupCircuit(Circuit c) throws Exception {
+		return connector.setupCircuit(new ArrayList<SDNHop>(hops), c.gri, rule);
+	}
+}
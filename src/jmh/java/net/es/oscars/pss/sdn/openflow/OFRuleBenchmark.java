@@ -0,0 +1,80 @@
+package net.es.oscars.pss.sdn.openflow;
+
+import java.util.concurrent.TimeUnit;
+
+import net.es.oscars.pss.sdn.connector.EntryCookies;
+import net.es.oscars.pss.sdn.connector.FloodlightRequestWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The OFRule operations of a circuit setup: building the reservation's rule
+ * (VLAN translation included), reversing it for the reverse direction and
+ * serializing the store request of every hop entry, as the connector does.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OFRuleBenchmark {
+
+	@Param({ "in_port=1,dl_type=0x800,nw_src=10.0.0.1/24,nw_dst=10.0.0.2,tp_dst=80",
+			"dl_src=00:11:22:33:44:55,dl_dst=AA:BB:CC:DD:EE:FF" })
+	public String match;
+
+	private static final String DPID = "00:00:00:00:00:00:00:01";
+
+	private OFRule rule;
+	private OFRule.Builder entry;
+	private long cookie;
+
+	@Setup
+	public void setup() throws Exception {
+		rule = OFRule.builder(match).putVlan(true, "100", true, "200")
+				.build();
+		entry = rule.toBuilder().inPort("1").output("2").name("gri.match.1.F");
+		cookie = EntryCookies.hash("gri");
+	}
+
+	@Benchmark
+	public OFRule buildWithVlan() throws Exception {
+		return OFRule.builder(match).putVlan(true, "100", true, "200")
+				.build();
+	}
+
+	@Benchmark
+	public OFRule putVlan() {
+		return OFRule.builder().putVlan(true, "100", false, "200").build();
+	}
+
+	@Benchmark
+	public OFRule reverse() {
+		return rule.reverse();
+	}
+
+	@Benchmark
+	public int storeRequest() throws Exception {
+		return FloodlightRequestWriter.storeRequest(DPID, entry.build(), cookie)
+				.size();
+	}
+
+	@Benchmark
+	public int reverseStoreRequest() throws Exception {
+		return FloodlightRequestWriter.storeRequest(DPID, rule.reverse()
+				.toBuilder().inPort("2").output("1").name("gri.match.1.R")
+				.build(), cookie).size();
+	}
+}
@@ -0,0 +1,107 @@
+package net.es.oscars.pss.sdn.openflow;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of reservation OF match descriptions, as done for every setup
+ * request. The legacy* benchmarks reproduce the previous split and
+ * String.matches based validation as a baseline. Run with -prof gc to see
+ * the allocation rate of each.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OFRuleParseBenchmark {
+
+	@Param({ "in_port=1,dl_type=0x800,nw_src=10.0.0.1/24,nw_dst=10.0.0.2,tp_dst=80",
+			"dl_src=00:11:22:33:44:55,dl_dst=AA:BB:CC:DD:EE:FF,dl_vlan=100",
+			"in_port=3,dl_vlan=2001,output=4,set-vlan-id=2002" })
+	public String match;
+
+	@Benchmark
+	public OFRule parse() throws Exception {
+		return OFRule.builder(match).build();
+	}
+
+	@Benchmark
+	public boolean validate() {
+		return OFRule.isValidOFRuleString(match);
+	}
+
+	@Benchmark
+	public Map<String, String> legacyParse() throws Exception {
+		if (!legacyIsValid(match))
+			throw new Exception("Invalid match");
+		return legacyParse(match);
+	}
+
+	@Benchmark
+	public boolean legacyValidate() {
+		return legacyIsValid(match);
+	}
+
+	/* previous implementation, kept here as the baseline */
+
+	private static final String INT_REGEX = "^[1-9]\\d*$";
+	private static final String HEX_REGEX = "^(0x|)[0-9A-Fa-f]*$";
+	private static final String MAC_REGEX = "^([0-9A-Fa-f]{2}[:]){5}([0-9A-Fa-f]{2})$";
+	private static final String IP_REGEX = "^([01]?\\d\\d?|2[0-4]\\d|25[0-5])"
+			+ "\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])"
+			+ "\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])"
+			+ "\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])(|(\\/(\\d|[1-2]\\d|3[0-2])))$";
+
+	private static final Map<String, String> LEGACY_REGEX = new HashMap<String, String>();
+	static {
+		LEGACY_REGEX.put("in_port", INT_REGEX);
+		LEGACY_REGEX.put("dl_dst", MAC_REGEX);
+		LEGACY_REGEX.put("dl_src", MAC_REGEX);
+		LEGACY_REGEX.put("dl_type", HEX_REGEX);
+		LEGACY_REGEX.put("dl_vlan", INT_REGEX);
+		LEGACY_REGEX.put("nw_dst", IP_REGEX);
+		LEGACY_REGEX.put("nw_src", IP_REGEX);
+		LEGACY_REGEX.put("tp_dst", INT_REGEX);
+		LEGACY_REGEX.put("output", INT_REGEX);
+		LEGACY_REGEX.put("set-vlan-id", INT_REGEX);
+	}
+
+	private static boolean legacyIsValid(String rule) {
+		try {
+			for (String token : rule.split(",")) {
+				String[] entry = token.toLowerCase().split("=");
+				String regex = LEGACY_REGEX.get(entry[0]);
+				if (regex == null || !entry[1].matches(regex))
+					return false;
+			}
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static Map<String, String> legacyParse(String rule) {
+		Map<String, String> matchMap = new HashMap<String, String>();
+		for (String token : rule.split(",")) {
+			String[] values = token.toLowerCase().split("=");
+			if (values[1].matches(LEGACY_REGEX.get(values[0])))
+				matchMap.put(values[0], values[1]);
+		}
+		return matchMap;
+	}
+}
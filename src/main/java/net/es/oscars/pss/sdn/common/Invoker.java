@@ -2,7 +2,12 @@ package net.es.oscars.pss.sdn.common;
 
 import static java.util.Arrays.asList;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Map;
+
+import javax.management.JMException;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -11,6 +16,13 @@ import net.es.oscars.logging.ErrSev;
 import net.es.oscars.logging.ModuleName;
 import net.es.oscars.logging.OSCARSNetLogger;
 import net.es.oscars.pss.config.ConfigHolder;
+import net.es.oscars.pss.sdn.connector.FloodlightSDNConnector;
+import net.es.oscars.pss.sdn.connector.FlowJournal;
+import net.es.oscars.pss.sdn.connector.FlowReconciler;
+import net.es.oscars.pss.sdn.connector.ResilientTransport;
+import net.es.oscars.pss.sdn.metrics.MetricsHttpExporter;
+import net.es.oscars.pss.sdn.metrics.MetricsMBean;
+import net.es.oscars.pss.sdn.metrics.SdnMetrics;
 import net.es.oscars.pss.util.ClassFactory;
 import net.es.oscars.utils.config.ConfigDefaults;
 import net.es.oscars.utils.config.ConfigException;
@@ -25,16 +37,21 @@ public class Invoker {
     private static String context = ConfigDefaults.CTX_PRODUCTION;
     private static  Logger LOG = null;
     private static String mode = "server";
+    /* seconds */
+    private static final long DEFAULT_CONFIG_WATCH_INTERVAL = 10;
+    /* null if reconcileInterval isn't set */
+    private static FlowReconciler reconciler = null;
 
     public static void main(String[] args) throws Exception {
 
         parseArgs( args);
         cc.setContext(context);
         cc.setServiceName(ServiceNames.SVC_PSS); 
+        String configFilePath = null;
         try {
             System.out.println("loading manifest from ./config/"+ConfigDefaults.MANIFEST);
             cc.loadManifest(ServiceNames.SVC_PSS,  ConfigDefaults.MANIFEST); // manifest.yaml
-            String configFilePath = cc.getFilePath(ConfigDefaults.CONFIG);
+            configFilePath = cc.getFilePath(ConfigDefaults.CONFIG);
             cc.setLog4j();
             ConfigHolder.loadConfig(configFilePath);
             // need to do this after the log4j.properties file has been set
@@ -43,6 +60,11 @@ public class Invoker {
             System.out.println("caught ConfigurationException " + ex.getMessage());
             System.exit(-1);
         }
+        initConfig(configFilePath);
+        initFlowJournal();
+        initReconciler();
+        initMetrics();
+
         OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
         String event = "SdnPSSinit";
         netLogger.init(ModuleName.PSS, "0000");
@@ -67,6 +89,204 @@ public class Invoker {
         }
     }
 
+    /**
+     * Loads the config snapshot the requests are served with, which also
+     * configures the transports to the controllers, and watches the config
+     * file for changes every configWatchInterval seconds (default 10, 0
+     * disables). The tuning params can also be changed over JMX unless
+     * metricsJmx is "false".
+     */
+    private static void initConfig(String configFilePath) {
+        SdnPSSConfig config = SdnPSSConfig.current();
+        long interval = DEFAULT_CONFIG_WATCH_INTERVAL;
+        try {
+            if (config.getParams().containsKey("configWatchInterval"))
+                interval = Long.parseLong(config.getParams().get("configWatchInterval"));
+        } catch (NumberFormatException ex) {
+            LOG.error("Invalid configWatchInterval: " + config.getParams().get("configWatchInterval"));
+        }
+        SdnPSSConfigWatcher watcher = new SdnPSSConfigWatcher(new File(configFilePath));
+        if (interval > 0)
+            watcher.start(interval);
+        if (!"false".equalsIgnoreCase(config.getParams().get("metricsJmx"))) {
+            try {
+                new TuningMBean(watcher).register();
+            } catch (JMException ex) {
+                LOG.error("Couldn't register tuning MBean: " + ex.getMessage());
+            }
+        }
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        if (!params.containsKey(name))
+            return defaultValue;
+        return Integer.parseInt(params.get(name));
+    }
+
+    /**
+     * Replays the flow journal configured by the journalDir circuit service
+     * param, so the connector knows the entries it installed before a restart,
+     * and keeps journaling from then on.
+     */
+    private static void initFlowJournal() {
+        Map<String, String> params = SdnPSSConfig.current().getParams();
+        if (!params.containsKey("journalDir")) {
+            LOG.warn("No journalDir configured, installed flow entries will be lost on restart");
+            return;
+        }
+        try {
+            FlowJournal journal = new FlowJournal(new File(params.get("journalDir")));
+            journal.replay(FloodlightSDNConnector.getEntryIndex(),
+                    FloodlightSDNConnector.getHopRefCounter());
+            FloodlightSDNConnector.setJournal(journal);
+        } catch (IOException ex) {
+            LOG.error("Couldn't replay flow journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts the background reconciliation of controller flow entries if the
+     * reconcileInterval circuit service param (seconds) is set. Every switch
+     * is listed on the controller owning it, with the connector of the
+     * current config snapshot. If no controller is configured yet, it starts
+     * once a config reload configures one.
+     */
+    private static void initReconciler() {
+        SdnPSSConfig config = SdnPSSConfig.current();
+        Map<String, String> params = config.getParams();
+        if (!params.containsKey("reconcileInterval"))
+            return;
+        final long interval;
+        try {
+            interval = Long.parseLong(params.get("reconcileInterval"));
+        } catch (NumberFormatException ex) {
+            LOG.error("Invalid reconcileInterval: " + params.get("reconcileInterval"));
+            return;
+        }
+        if (interval <= 0)
+            return;
+
+        final FlowReconciler r = new FlowReconciler(config.getConnector(),
+                FloodlightSDNConnector.getEntryIndex());
+        SdnPSSConfig.addListener(new SdnPSSConfig.Listener() {
+            public void configChanged(SdnPSSConfig c) {
+                if (c.getConnector() == null)
+                    return;
+                r.setConnector(c.getConnector());
+                // does nothing if already started
+                r.start(interval);
+            }
+        });
+        if (config.getConnector() != null)
+            r.start(interval);
+        else
+            LOG.warn("No controller configured, reconciliation starts once one is");
+        reconciler = r;
+    }
+
+    /**
+     * Publishes the PSS metrics over JMX unless metricsJmx is "false", and
+     * over HTTP on metricsAddress:metricsPort/metrics (local only by
+     * default) if metricsPort is set.
+     */
+    private static void initMetrics() {
+        Map<String, String> params = SdnPSSConfig.current().getParams();
+        SdnMetrics metrics = SdnMetrics.getInstance();
+        metrics.register("hop_refcounts", new SdnMetrics.Gauge() {
+            public double getValue() {
+                return FloodlightSDNConnector.getHopRefCounter().size();
+            }
+        });
+        metrics.register("installed_entries", new SdnMetrics.Gauge() {
+            public double getValue() {
+                return FloodlightSDNConnector.getEntryIndex().size();
+            }
+        });
+        // setups refused because a switch's flow table was full
+        metrics.register("flow_table_rejected_total", new SdnMetrics.Gauge() {
+            public double getValue() {
+                return FloodlightSDNConnector.getFlowTables().getRejectedCount();
+            }
+        });
+        if (reconciler != null) {
+            final FlowReconciler r = reconciler;
+            metrics.register("reconcile_passes_total", new SdnMetrics.Gauge() {
+                public double getValue() {
+                    return r.getPasses();
+                }
+            });
+            // entries the controllers lacked and entries they had that
+            // OSCARS didn't install, found by all passes
+            metrics.register("reconcile_missing_total", new SdnMetrics.Gauge() {
+                public double getValue() {
+                    return r.getMissingFound();
+                }
+            });
+            metrics.register("reconcile_orphans_total", new SdnMetrics.Gauge() {
+                public double getValue() {
+                    return r.getOrphansFound();
+                }
+            });
+            metrics.register("reconcile_repaired_total", new SdnMetrics.Gauge() {
+                public double getValue() {
+                    return r.getRepaired();
+                }
+            });
+            metrics.register("reconcile_last_pass_drift", new SdnMetrics.Gauge() {
+                public double getValue() {
+                    return r.getLastPassDrift();
+                }
+            });
+        }
+        metrics.register("work_queue_pending", new SdnMetrics.Gauge() {
+            public double getValue() {
+                return SdnPSSSoapHandler.getWorkQueue().getPendingCount();
+            }
+        });
+        metrics.register("work_queue_rejected_total", new SdnMetrics.Gauge() {
+            public double getValue() {
+                return SdnPSSSoapHandler.getWorkQueue().getRejectedCount();
+            }
+        });
+        metrics.register("controller_retries_total", new SdnMetrics.Gauge() {
+            public double getValue() {
+                long retries = 0;
+                for (ResilientTransport t : FloodlightSDNConnector.getTransports())
+                    retries += t.getRetries();
+                return retries;
+            }
+        });
+        // number of controllers whose circuit breaker isn't closed
+        metrics.register("controller_breaker_open", new SdnMetrics.Gauge() {
+            public double getValue() {
+                int open = 0;
+                for (ResilientTransport t : FloodlightSDNConnector.getTransports()) {
+                    if (t.getState() != ResilientTransport.State.CLOSED)
+                        open++;
+                }
+                return open;
+            }
+        });
+
+        if (!"false".equalsIgnoreCase(params.get("metricsJmx"))) {
+            try {
+                new MetricsMBean(metrics).register();
+            } catch (JMException ex) {
+                LOG.error("Couldn't register metrics MBean: " + ex.getMessage());
+            }
+        }
+        if (params.containsKey("metricsPort")) {
+            String address = params.containsKey("metricsAddress") ? params.get("metricsAddress") : "127.0.0.1";
+            try {
+                new MetricsHttpExporter(metrics, address, intParam(params, "metricsPort", 0)).start();
+            } catch (IOException ex) {
+                LOG.error("Couldn't serve metrics: " + ex.getMessage());
+            } catch (NumberFormatException ex) {
+                LOG.error("Invalid metricsPort: " + params.get("metricsPort"));
+            }
+        }
+    }
+
     public static void parseArgs(String args[])  throws java.io.IOException {
 
         OptionParser parser = new OptionParser();
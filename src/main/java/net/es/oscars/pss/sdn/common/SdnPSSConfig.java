@@ -0,0 +1,255 @@
+package net.es.oscars.pss.sdn.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.es.oscars.pss.config.ConfigHolder;
+import net.es.oscars.pss.sdn.connector.ControllerRegistry;
+import net.es.oscars.pss.sdn.connector.FloodlightSDNConnector;
+import net.es.oscars.pss.sdn.connector.FlowTableCapacity;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Snapshot of the circuit service params, parsed once, with the connector
+ * configured from them. Requests read the current snapshot with
+ * {@link #current()}, a volatile read, instead of looking the params up and
+ * configuring a connector every time.
+ *
+ * {@link #reload()} reads the params again (e.g. when
+ * {@link SdnPSSConfigWatcher} sees the config file change) and swaps in a new
+ * snapshot if they changed. The new snapshot only gets a new connector if the
+ * controllers changed; otherwise the {@link SdnPSSTuning} params are applied
+ * to the current connector and transports, and by listeners to the rest
+ * (e.g. the work queue). Requests in progress complete with the snapshot
+ * they started with.
+ *
+ * Tuning params can also be overridden at runtime with {@link #override}
+ * (see {@link TuningMBean}). Overrides win over the config file until they
+ * are cleared or the file changes.
+ *
+ */
+public final class SdnPSSConfig {
+	private static final Logger log = Logger.getLogger(SdnPSSConfig.class
+			.getName());
+
+	private static volatile SdnPSSConfig current = null;
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	/* guarded by SdnPSSConfig.class */
+	private static Map<String, String> fileParams = null;
+	private static final Map<String, String> overrides = new TreeMap<String, String>();
+
+	/**
+	 * Told about every new snapshot.
+	 */
+	public interface Listener {
+		void configChanged(SdnPSSConfig config);
+	}
+
+	private final Map<String, String> params;
+	private final ControllerRegistry controllers;
+	private final FlowTableCapacity flowTableCapacity;
+	private final SdnPSSTuning tuning;
+	/* set before the snapshot is published */
+	private FloodlightSDNConnector connector = null;
+
+	/**
+	 * Parse the params. Invalid values are logged and replaced by their
+	 * defaults.
+	 */
+	SdnPSSConfig(Map<String, String> params) {
+		this.params = Collections.unmodifiableMap(new HashMap<String, String>(
+				params));
+
+		ControllerRegistry controllers = null;
+		try {
+			controllers = ControllerRegistry.fromParams(params);
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid controller configuration: " + e.getMessage());
+		}
+		this.controllers = controllers;
+
+		FlowTableCapacity capacity = FlowTableCapacity.UNLIMITED;
+		try {
+			capacity = FlowTableCapacity.fromParams(params);
+		} catch (IllegalArgumentException e) {
+			log.error(e.getMessage() + ", flow tables are unlimited");
+		}
+		this.flowTableCapacity = capacity;
+		this.tuning = new SdnPSSTuning(params);
+	}
+
+	/**
+	 * @return the current snapshot, loaded from the circuit service params
+	 *         on first use
+	 */
+	public static SdnPSSConfig current() {
+		SdnPSSConfig c = current;
+		return c != null ? c : reload();
+	}
+
+	/**
+	 * Read the circuit service params again and swap in a new snapshot if
+	 * they changed. If they did, the overrides are dropped.
+	 *
+	 * @return the current snapshot
+	 */
+	public static SdnPSSConfig reload() {
+		return reload(ConfigHolder.getInstance().getBaseConfig()
+				.getCircuitService().getParams());
+	}
+
+	static synchronized SdnPSSConfig reload(Map<String, String> params) {
+		if (fileParams != null && !fileParams.equals(params)
+				&& !overrides.isEmpty()) {
+			log.info("Config changed, dropping overrides " + overrides);
+			overrides.clear();
+		}
+		fileParams = new HashMap<String, String>(params);
+		return swap();
+	}
+
+	/**
+	 * Override a tuning param of the config file.
+	 *
+	 * @return the current snapshot
+	 * @throws IllegalArgumentException
+	 *             if name isn't a tuning param or value isn't valid for it
+	 */
+	public static synchronized SdnPSSConfig override(String name, String value) {
+		SdnPSSTuning.validate(name, value);
+		current();
+		overrides.put(name, value.trim());
+		log.info("Overriding " + name + " with " + value.trim());
+		return swap();
+	}
+
+	/**
+	 * Go back to the tuning params of the config file.
+	 *
+	 * @return the current snapshot
+	 */
+	public static synchronized SdnPSSConfig clearOverrides() {
+		current();
+		if (!overrides.isEmpty())
+			log.info("Clearing overrides " + overrides);
+		overrides.clear();
+		return swap();
+	}
+
+	/**
+	 * @return the tuning params overridden at runtime
+	 */
+	public static synchronized Map<String, String> getOverrides() {
+		return new TreeMap<String, String>(overrides);
+	}
+
+	/**
+	 * Swap in a snapshot of the file params and overrides if they differ
+	 * from the current ones.
+	 */
+	private static SdnPSSConfig swap() {
+		Map<String, String> params = new HashMap<String, String>(fileParams);
+		params.putAll(overrides);
+		SdnPSSConfig old = current;
+		if (old != null && old.params.equals(params))
+			return old;
+
+		SdnPSSConfig next = new SdnPSSConfig(params);
+		SdnPSSTuning t = next.tuning;
+		// transports are shared by all connectors and retuned in place
+		FloodlightSDNConnector.configureTransport(t.getTransportType(),
+				t.getMaxConnections(), t.getConnectTimeout(),
+				t.getReadTimeout());
+		FloodlightSDNConnector.configureResilience(t.getResiliencePolicy());
+		FloodlightSDNConnector.configureCapacity(next.flowTableCapacity);
+		if (old != null && old.connector != null
+				&& next.sameControllers(old)) {
+			next.connector = old.connector;
+			next.tune(next.connector);
+		} else {
+			next.connector = next.newConnector();
+			if (next.connector == null)
+				log.warn("No controller configured");
+			else
+				log.info("Using controllers " + next.controllers);
+		}
+		log.info("Tuning " + t);
+		current = next;
+
+		for (Listener l : listeners) {
+			try {
+				l.configChanged(next);
+			} catch (RuntimeException e) {
+				log.error("Config listener failed: " + e.getMessage());
+			}
+		}
+		return next;
+	}
+
+	public static void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public static void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	private boolean sameControllers(SdnPSSConfig c) {
+		return controllers == null ? c.controllers == null : controllers
+				.equals(c.controllers);
+	}
+
+	private FloodlightSDNConnector newConnector() {
+		if (controllers == null)
+			return null;
+		FloodlightSDNConnector c = new FloodlightSDNConnector();
+		tune(c);
+		// logs why if a controller address is invalid; the connector then
+		// fails every request with CONTROLLER_NOT_SET
+		c.setControllers(controllers);
+		return c;
+	}
+
+	/**
+	 * Apply the tuning params of the connector. Circuits being set up or
+	 * torn down pick them up at their next step.
+	 */
+	private void tune(FloodlightSDNConnector c) {
+		c.setSetupMode(tuning.getSetupMode());
+		c.setTeardownMode(tuning.getTeardownMode());
+		c.setMaxInFlight(tuning.getMaxInFlight());
+	}
+
+	/**
+	 * @return the connector to program circuits with, or null if no
+	 *         controller is configured
+	 */
+	public FloodlightSDNConnector getConnector() {
+		return connector;
+	}
+
+	/**
+	 * @return the circuit service params the snapshot was made of, with the
+	 *         overrides
+	 */
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	public ControllerRegistry getControllers() {
+		return controllers;
+	}
+
+	public FlowTableCapacity getFlowTableCapacity() {
+		return flowTableCapacity;
+	}
+
+	public SdnPSSTuning getTuning() {
+		return tuning;
+	}
+}
@@ -0,0 +1,103 @@
+package net.es.oscars.pss.sdn.common;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.es.oscars.pss.config.ConfigHolder;
+import net.es.oscars.utils.config.ConfigException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the PSS config file and, when it changes, loads it again and
+ * reloads the {@link SdnPSSConfig} snapshot from its circuit service params.
+ * The file is checked by its modification time and size every period
+ * seconds. If the new file can't be loaded, the current snapshot is kept and
+ * the file is tried again when it changes next.
+ *
+ */
+public class SdnPSSConfigWatcher implements Runnable {
+	private static final Logger log = Logger
+			.getLogger(SdnPSSConfigWatcher.class.getName());
+
+	private final File file;
+	private ScheduledExecutorService scheduler = null;
+	private long lastModified;
+	private long lastLength;
+
+	/**
+	 * @param file
+	 *            the config file, as loaded at startup
+	 */
+	public SdnPSSConfigWatcher(File file) {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.lastLength = file.length();
+	}
+
+	/**
+	 * Check the file every period seconds.
+	 */
+	public synchronized void start(long period) {
+		if (scheduler != null)
+			return;
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "sdnpss-config-watcher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.SECONDS);
+		log.info("Watching " + file + " every " + period + "s");
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Load the file and reload the snapshot now, whether the file changed
+	 * or not.
+	 */
+	public synchronized void reloadNow() throws ConfigException {
+		lastModified = file.lastModified();
+		lastLength = file.length();
+		ConfigHolder.loadConfig(file.getPath());
+		SdnPSSConfig.reload();
+		log.info("Reloaded " + file);
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			long modified = file.lastModified();
+			long length = file.length();
+			if (modified == lastModified && length == lastLength)
+				return;
+			lastModified = modified;
+			lastLength = length;
+
+			if (modified == 0) {
+				log.warn(file + " is gone, keeping the current config");
+				return;
+			}
+		}
+		try {
+			ConfigHolder.loadConfig(file.getPath());
+			SdnPSSConfig.reload();
+			log.info("Reloaded " + file);
+		} catch (Exception e) {
+			// a scheduled task that throws isn't run again
+			log.error("Couldn't reload " + file + ": " + e.getMessage());
+		}
+	}
+}
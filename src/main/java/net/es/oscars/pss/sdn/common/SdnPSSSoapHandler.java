@@ -1,7 +1,8 @@
 package net.es.oscars.pss.sdn.common;
 
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.es.oscars.api.soap.gen.v06.PathInfo;
 import net.es.oscars.api.soap.gen.v06.VlanTag;
@@ -11,11 +12,10 @@ import net.es.oscars.logging.OSCARSNetLogger;
 import net.es.oscars.pss.beans.PSSAction;
 import net.es.oscars.pss.beans.PSSException;
 import net.es.oscars.pss.beans.PSSRequest;
-import net.es.oscars.pss.beans.config.CircuitServiceConfig;
-import net.es.oscars.pss.config.ConfigHolder;
 import net.es.oscars.pss.enums.ActionStatus;
 import net.es.oscars.pss.enums.ActionType;
 import net.es.oscars.pss.notify.CoordNotifier;
+import net.es.oscars.pss.sdn.connector.CircuitStatus;
 import net.es.oscars.pss.sdn.connector.FloodlightSDNConnector;
 import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
 import net.es.oscars.pss.sdn.openflow.OFRule;
@@ -45,9 +45,73 @@ public class SdnPSSSoapHandler implements PSSPortType {
 	private static final Logger log = Logger.getLogger(SdnPSSSoapHandler.class
 			.getName());
 	private static final String moduleName = ModuleName.PSS;
-	private static final FloodlightSDNConnector sdnConnector = new FloodlightSDNConnector();
+	private static SdnPSSWorkQueue workQueue = null;
+	/* hops of the circuits set up or modified since this PSS started, by
+	 * GRI; the connector finds the others' from its entry index */
+	private static final ConcurrentMap<String, List<SDNHop>> activePaths = new ConcurrentHashMap<String, List<SDNHop>>();
+
+	/**
+	 * @return the work queue shared by all handler instances, created from
+	 *         the circuit service params on first use
+	 */
+	static synchronized SdnPSSWorkQueue getWorkQueue() {
+		if (workQueue == null) {
+			SdnPSSTuning t = SdnPSSConfig.current().getTuning();
+			workQueue = new SdnPSSWorkQueue(t.getWorkerThreads(),
+					t.getWorkQueueCapacity(), t.getWorkQueueOverflow());
+			// retune the queue in place: queued requests stay queued
+			SdnPSSConfig.addListener(new SdnPSSConfig.Listener() {
+				@Override
+				public void configChanged(SdnPSSConfig config) {
+					SdnPSSTuning t = config.getTuning();
+					workQueue.tune(t.getWorkerThreads(),
+							t.getWorkQueueCapacity(), t.getWorkQueueOverflow());
+				}
+			});
+		}
+		return workQueue;
+	}
+
+	/**
+	 * Queues the setup request and returns. The circuit is programmed by a
+	 * work queue thread, which notifies the coordinator when it is done.
+	 * Requests of the same reservation are processed in the order they
+	 * arrive.
+	 */
+	public void setup(final SetupReqContent setupReq) {
+		String gri = setupReq.getReservation().getGlobalReservationId();
+		boolean accepted = getWorkQueue().submit(gri, new Runnable() {
+			@Override
+			public void run() {
+				doSetup(setupReq);
+			}
+		});
+		if (!accepted) {
+			log.error("Rejected setup of " + gri + ": work queue is full");
+			notifyCoordinator(setupReq.getTransactionId(), ActionType.SETUP,
+					setupReq, ActionStatus.FAIL);
+		}
+	}
+
+	/**
+	 * Queues the teardown request and returns. See {@link #setup}.
+	 */
+	public void teardown(final TeardownReqContent teardownReq) {
+		String gri = teardownReq.getReservation().getGlobalReservationId();
+		boolean accepted = getWorkQueue().submit(gri, new Runnable() {
+			@Override
+			public void run() {
+				doTeardown(teardownReq);
+			}
+		});
+		if (!accepted) {
+			log.error("Rejected teardown of " + gri + ": work queue is full");
+			notifyCoordinator(teardownReq.getTransactionId(),
+					ActionType.TEARDOWN, teardownReq, ActionStatus.FAIL);
+		}
+	}
 
-	public void setup(SetupReqContent setupReq) {
+	private void doSetup(SetupReqContent setupReq) {
 		String event = "setup";
 		OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
 		netLogger.init(moduleName, setupReq.getTransactionId());
@@ -70,10 +134,8 @@ public class SdnPSSSoapHandler implements PSSPortType {
 			return;
 		}
 
-		CircuitServiceConfig circuitServiceConfig = ConfigHolder.getInstance()
-				.getBaseConfig().getCircuitService();
-		Map<String, String> circuitServiceParams = circuitServiceConfig
-				.getParams();
+		FloodlightSDNConnector sdnConnector = SdnPSSConfig.current()
+				.getConnector();
 
 		// TODO: here we use the description field of the reservation to specify
 		// an OFRule and to identify implicit provision. The correct way to do
@@ -90,22 +152,18 @@ public class SdnPSSSoapHandler implements PSSPortType {
 
 		OFRule rule;
 		try {
-			rule = new OFRule(description);
-		} catch (Exception e) {
-			log.debug("Provided rule isn't valid");
-			rule = new OFRule();
-		}
+			rule = ruleOf(description, pi);
+		} catch (IllegalArgumentException e) {
+			log.info("Invalid VLAN: " + e.getMessage());
 
-		VlanTag srcVlan = pi.getLayer2Info().getSrcVtag();
-		VlanTag dstVlan = pi.getLayer2Info().getDestVtag();
-		rule.putVlan(srcVlan.isTagged(), srcVlan.getValue(),
-				dstVlan.isTagged(), dstVlan.getValue());
+			notifyCoordinator(setupReq.getTransactionId(), ActionType.SETUP,
+					setupReq, ActionStatus.FAIL);
+			log.info(netLogger.end(event));
+			return;
+		}
 
 		try {
-			if (circuitServiceParams.containsKey("controller")) {
-				sdnConnector.setConnectionAddress(circuitServiceParams
-						.get("controller"));
-
+			if (sdnConnector != null) {
 				if ((hops != null) && (hops.size() > 0)) {
 					ISDNConnectorResponse response;
 					if (useImplicitProvision)
@@ -115,6 +173,8 @@ public class SdnPSSSoapHandler implements PSSPortType {
 						response = sdnConnector.setupCircuit(hops, gri, rule);
 
 					if (response == ISDNConnectorResponse.SUCCESS) {
+						if (!useImplicitProvision)
+							activePaths.put(gri, hops);
 						notifyCoordinator(setupReq.getTransactionId(),
 								ActionType.SETUP, setupReq,
 								ActionStatus.SUCCESS);
@@ -125,8 +185,7 @@ public class SdnPSSSoapHandler implements PSSPortType {
 				}
 			}
 		} catch (Exception e) {
-			log.error("Couldn't setup circuit: " + e.getMessage());
-			e.printStackTrace();
+			log.error("Couldn't setup circuit: " + e.getMessage(), e);
 		}
 
 		notifyCoordinator(setupReq.getTransactionId(), ActionType.SETUP,
@@ -135,7 +194,29 @@ public class SdnPSSSoapHandler implements PSSPortType {
 		log.info(netLogger.end(event));
 	}
 
-	public void teardown(TeardownReqContent teardownReq) {
+	/**
+	 * @return the OFRule of a reservation: the match and actions given in
+	 *         its description, if valid, and its VLANs
+	 * @throws IllegalArgumentException
+	 *             if a VLAN is invalid
+	 */
+	private static OFRule ruleOf(String description, PathInfo pi) {
+		OFRule.Builder ruleBuilder;
+		try {
+			ruleBuilder = OFRule.builder(description);
+		} catch (Exception e) {
+			log.debug("Provided rule isn't valid");
+			ruleBuilder = OFRule.builder();
+		}
+
+		VlanTag srcVlan = pi.getLayer2Info().getSrcVtag();
+		VlanTag dstVlan = pi.getLayer2Info().getDestVtag();
+		ruleBuilder.putVlan(srcVlan.isTagged(), srcVlan.getValue(),
+				dstVlan.isTagged(), dstVlan.getValue());
+		return ruleBuilder.build();
+	}
+
+	private void doTeardown(TeardownReqContent teardownReq) {
 		OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
 		netLogger.init(moduleName, teardownReq.getTransactionId());
 		String gri = teardownReq.getReservation().getGlobalReservationId();
@@ -157,10 +238,8 @@ public class SdnPSSSoapHandler implements PSSPortType {
 			return;
 		}
 
-		CircuitServiceConfig circuitServiceConfig = ConfigHolder.getInstance()
-				.getBaseConfig().getCircuitService();
-		Map<String, String> circuitServiceParams = circuitServiceConfig
-				.getParams();
+		FloodlightSDNConnector sdnConnector = SdnPSSConfig.current()
+				.getConnector();
 
 		// TODO: here we use the description field of the reservation to specify
 		// an OFRule and to identify implicit provision. The correct way to do
@@ -176,10 +255,7 @@ public class SdnPSSSoapHandler implements PSSPortType {
 		}
 
 		try {
-			if (circuitServiceParams.containsKey("controller")) {
-				sdnConnector.setConnectionAddress(circuitServiceParams
-						.get("controller"));
-
+			if (sdnConnector != null) {
 				if ((hops != null) && (hops.size() > 0)) {
 					ISDNConnectorResponse response;
 					if (useImplicitProvision)
@@ -189,6 +265,7 @@ public class SdnPSSSoapHandler implements PSSPortType {
 						response = sdnConnector.teardownCircuit(hops, gri);
 
 					if (response == ISDNConnectorResponse.SUCCESS) {
+						activePaths.remove(gri);
 						notifyCoordinator(teardownReq.getTransactionId(),
 								ActionType.TEARDOWN, teardownReq,
 								ActionStatus.SUCCESS);
@@ -199,8 +276,7 @@ public class SdnPSSSoapHandler implements PSSPortType {
 				}
 			}
 		} catch (Exception e) {
-			log.error("Couldn't teardown circuit: " + e.getMessage());
-			e.printStackTrace();
+			log.error("Couldn't teardown circuit: " + e.getMessage(), e);
 		}
 
 		notifyCoordinator(teardownReq.getTransactionId(), ActionType.TEARDOWN,
@@ -209,75 +285,124 @@ public class SdnPSSSoapHandler implements PSSPortType {
 		log.info(netLogger.end("teardown"));
 	}
 
-	public void modify(ModifyReqContent modifyReq) {
-		// String event = "modify";
-		// OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
-		// netLogger.init(moduleName, modifyReq.getTransactionId());
-		// String gri = modifyReq.getReservation().getGlobalReservationId();
-		// netLogger.setGRI(gri);
-		// log.info(netLogger.start(event));
-		//
-		// PSSAction act = new PSSAction();
-		// CoordNotifier coordNotify = new CoordNotifier();
-		// try {
-		// PSSRequest req = new PSSRequest();
-		// req.setModifyReq(modifyReq);
-		// req.setRequestType(PSSRequest.PSSRequestTypes.MODIFY);
-		//
-		// act.setRequest(req);
-		// act.setActionType(net.es.oscars.pss.enums.ActionType.MODIFY);
-		// OSCARSFaultReport faultReport = new OSCARSFaultReport();
-		// faultReport.setErrorMsg("Modify not supported");
-		// faultReport.setErrorType(ErrorReport.SYSTEM);
-		// faultReport.setErrorCode(ErrorCodes.NOT_IMPLEMENTED);
-		// act.setFaultReport(faultReport);
-		// act.setStatus(ActionStatus.FAIL);
-		// coordNotify.process(act);
-		// } catch (PSSException e) {
-		// log.error(netLogger.error(event, ErrSev.MAJOR,
-		// "caught PSSException " + e.getMessage()));
-		// }
-		// log.info(netLogger.end(event));
+	/**
+	 * Queues the modify request and returns. See {@link #setup}.
+	 */
+	public void modify(final ModifyReqContent modifyReq) {
+		String gri = modifyReq.getReservation().getGlobalReservationId();
+		boolean accepted = getWorkQueue().submit(gri, new Runnable() {
+			@Override
+			public void run() {
+				doModify(modifyReq);
+			}
+		});
+		if (!accepted) {
+			log.error("Rejected modify of " + gri + ": work queue is full");
+			notifyCoordinator(modifyReq.getTransactionId(), ActionType.MODIFY,
+					modifyReq, ActionStatus.FAIL);
+		}
+	}
+
+	/**
+	 * Move a circuit to the path and rule of the modified reservation,
+	 * make-before-break (see {@link FloodlightSDNConnector#modifyCircuit}).
+	 * The circuit's previous path is the one it was last set up or modified
+	 * with by this PSS.
+	 */
+	private void doModify(ModifyReqContent modifyReq) {
+		String event = "modify";
+		OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
+		netLogger.init(moduleName, modifyReq.getTransactionId());
+		String gri = modifyReq.getReservation().getGlobalReservationId();
+		netLogger.setGRI(gri);
+		List<SDNHop> hops = null;
+		PathInfo pi = modifyReq.getReservation()
+				.getReservedConstraint().getPathInfo();
+
+		log.info(netLogger.start(event));
+
+		String description = modifyReq.getReservation().getDescription();
+		if (description.matches("^implicit.*")) {
+			log.info("Can't modify implicitly provisioned circuits");
+
+			notifyCoordinator(modifyReq.getTransactionId(), ActionType.MODIFY,
+					modifyReq, ActionStatus.FAIL);
+			log.info(netLogger.end(event));
+			return;
+		}
+
+		OFRule rule;
+		try {
+			hops = BaseSDNTopologyService.extractSDNHops(pi.getPath().getHop());
+			rule = ruleOf(description, pi);
+		} catch (Exception e) {
+			log.info("Couldn't get path or rule: " + e.getMessage());
+
+			notifyCoordinator(modifyReq.getTransactionId(), ActionType.MODIFY,
+					modifyReq, ActionStatus.FAIL);
+			log.info(netLogger.end(event));
+			return;
+		}
+
+		FloodlightSDNConnector sdnConnector = SdnPSSConfig.current()
+				.getConnector();
+		try {
+			if ((hops != null) && (hops.size() > 0) && (sdnConnector != null)) {
+				ISDNConnectorResponse response = sdnConnector.modifyCircuit(
+						activePaths.get(gri), hops, gri, rule);
+				if (response == ISDNConnectorResponse.SUCCESS) {
+					activePaths.put(gri, hops);
+					notifyCoordinator(modifyReq.getTransactionId(),
+							ActionType.MODIFY, modifyReq,
+							ActionStatus.SUCCESS);
+
+					log.info(netLogger.end(event));
+					return;
+				}
+			}
+		} catch (Exception e) {
+			log.error("Couldn't modify circuit: " + e.getMessage(), e);
+		}
 
 		notifyCoordinator(modifyReq.getTransactionId(), ActionType.MODIFY,
-				modifyReq, ActionStatus.SUCCESS);
+				modifyReq, ActionStatus.FAIL);
 
-		return;
+		log.info(netLogger.end(event));
 	}
 
+	/**
+	 * Answers from the connector's entry index (see
+	 * {@link FloodlightSDNConnector#circuitStatus}): the status succeeds if
+	 * every entry of the circuit was recently confirmed on the controller.
+	 * Only the switches not confirmed within statusMaxAge (circuit service
+	 * param, seconds) are listed to answer.
+	 */
 	public void status(StatusReqContent statusReq) {
-		// String event = "status";
-		// OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
-		// netLogger.init(moduleName, statusReq.getTransactionId());
-		// String gri = statusReq.getReservation().getGlobalReservationId();
-		// netLogger.setGRI(gri);
-		// log.info(netLogger.start(event));
-		//
-		// PSSAction act = new PSSAction();
-		// CoordNotifier coordNotify = new CoordNotifier();
-		// try {
-		// PSSRequest req = new PSSRequest();
-		// req.setStatusReq(statusReq);
-		// req.setRequestType(PSSRequest.PSSRequestTypes.STATUS);
-		//
-		// act.setRequest(req);
-		// act.setActionType(net.es.oscars.pss.enums.ActionType.STATUS);
-		// OSCARSFaultReport faultReport = new OSCARSFaultReport();
-		// faultReport.setErrorMsg("Status not supported");
-		// faultReport.setErrorType(ErrorReport.SYSTEM);
-		// faultReport.setErrorCode(ErrorCodes.NOT_IMPLEMENTED);
-		// act.setFaultReport(faultReport);
-		// act.setStatus(ActionStatus.FAIL);
-		// coordNotify.process(act);
-		// } catch (PSSException e) {
-		// log.error(netLogger.error(event, ErrSev.MAJOR,
-		// "caught PSSException " + e.getMessage()));
-		// }
-		// log.info(netLogger.end(event));
-		notifyCoordinator(statusReq.getTransactionId(), ActionType.STATUS,
-				statusReq, ActionStatus.SUCCESS);
+		String event = "status";
+		OSCARSNetLogger netLogger = OSCARSNetLogger.getTlogger();
+		netLogger.init(moduleName, statusReq.getTransactionId());
+		String gri = statusReq.getReservation().getGlobalReservationId();
+		netLogger.setGRI(gri);
+		log.info(netLogger.start(event));
+
+		SdnPSSConfig config = SdnPSSConfig.current();
+		FloodlightSDNConnector sdnConnector = config.getConnector();
+		ActionStatus status = ActionStatus.FAIL;
+		try {
+			if (sdnConnector != null) {
+				CircuitStatus circuit = sdnConnector.circuitStatus(gri,
+						config.getTuning().getStatusMaxAge());
+				log.info(circuit);
+				if (circuit.getState() == CircuitStatus.State.ACTIVE)
+					status = ActionStatus.SUCCESS;
+			}
+		} catch (Exception e) {
+			log.error("Couldn't get circuit status: " + e.getMessage());
+		}
 
-		return;
+		notifyCoordinator(statusReq.getTransactionId(), ActionType.STATUS,
+				statusReq, status);
+		log.info(netLogger.end(event));
 	}
 
 	private void notifyCoordinator(String transactionId, ActionType type,
@@ -298,9 +423,11 @@ public class SdnPSSSoapHandler implements PSSPortType {
 		case MODIFY:
 			req.setModifyReq((ModifyReqContent) reqContent);
 			req.setRequestType(PSSRequest.PSSRequestTypes.MODIFY);
+			break;
 		case STATUS:
 			req.setStatusReq((StatusReqContent) reqContent);
 			req.setRequestType(PSSRequest.PSSRequestTypes.STATUS);
+			break;
 		default:
 			break;
 		}
@@ -0,0 +1,246 @@
+package net.es.oscars.pss.sdn.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.es.oscars.pss.sdn.common.SdnPSSWorkQueue.OverflowPolicy;
+import net.es.oscars.pss.sdn.connector.FloodlightSDNConnector.SetupMode;
+import net.es.oscars.pss.sdn.connector.FloodlightSDNConnector.TeardownMode;
+import net.es.oscars.pss.sdn.connector.FloodlightTransport;
+import net.es.oscars.pss.sdn.connector.FlowEntryPusher;
+import net.es.oscars.pss.sdn.connector.PooledHttpTransport;
+import net.es.oscars.pss.sdn.connector.ResiliencePolicy;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The tuning params of the circuit service, typed: the settings of the
+ * connector, the transports to the controllers and the work queue that can
+ * be changed while the PSS runs, without dropping requests in progress (see
+ * {@link SdnPSSConfig}).
+ *
+ * Every param has a default and a lower bound. When the config is loaded,
+ * invalid values are logged and replaced by their default; values set over
+ * JMX are checked with {@link #validate} and refused if invalid.
+ *
+ */
+public final class SdnPSSTuning {
+	/* seconds, see SdnPSSSoapHandler.status() */
+	public static final long DEFAULT_STATUS_MAX_AGE = 120;
+
+	/** the names of the tuning params */
+	public static final List<String> PARAMS = Collections.unmodifiableList(Arrays
+			.asList("setupMode", "teardownMode", "maxInFlight", "transport",
+					"maxConnections", "connectTimeout", "readTimeout",
+					"maxRetries", "retryBase", "retryMax", "callDeadline",
+					"breakerThreshold", "breakerOpenInterval", "workerThreads",
+					"workQueueCapacity", "workQueueOverflow", "statusMaxAge"));
+
+	private static final Logger log = Logger.getLogger(SdnPSSTuning.class
+			.getName());
+
+	/* param -> value in effect */
+	private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+	private final SetupMode setupMode;
+	private final TeardownMode teardownMode;
+	private final int maxInFlight;
+	private final FloodlightTransport.Type transportType;
+	private final int maxConnections;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final ResiliencePolicy resiliencePolicy;
+	private final int workerThreads;
+	private final int workQueueCapacity;
+	private final OverflowPolicy workQueueOverflow;
+	private final long statusMaxAge;
+
+	/**
+	 * Parse the tuning params out of the circuit service params.
+	 */
+	public SdnPSSTuning(Map<String, String> params) {
+		this(params, false);
+	}
+
+	/**
+	 * @param strict
+	 *            throw IllegalArgumentException on an invalid value instead
+	 *            of using the default
+	 */
+	private SdnPSSTuning(Map<String, String> params, boolean strict) {
+		setupMode = enumParam(params, strict, "setupMode", SetupMode.class,
+				SetupMode.BATCHED);
+		teardownMode = enumParam(params, strict, "teardownMode",
+				TeardownMode.class, TeardownMode.PER_ENTRY);
+		maxInFlight = (int) longParam(params, strict, "maxInFlight",
+				FlowEntryPusher.DEFAULT_MAX_IN_FLIGHT, 1);
+
+		transportType = enumParam(params, strict, "transport",
+				FloodlightTransport.Type.class, FloodlightTransport.Type.POOLED);
+		maxConnections = (int) longParam(params, strict, "maxConnections",
+				PooledHttpTransport.DEFAULT_MAX_CONNECTIONS, 1);
+		connectTimeout = (int) longParam(params, strict, "connectTimeout",
+				PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT, 1);
+		readTimeout = (int) longParam(params, strict, "readTimeout",
+				PooledHttpTransport.DEFAULT_READ_TIMEOUT, 1);
+
+		resiliencePolicy = new ResiliencePolicy((int) longParam(params,
+				strict, "maxRetries", ResiliencePolicy.DEFAULT_MAX_RETRIES, 0),
+				longParam(params, strict, "retryBase",
+						ResiliencePolicy.DEFAULT_RETRY_BASE, 0), longParam(
+						params, strict, "retryMax",
+						ResiliencePolicy.DEFAULT_RETRY_MAX, 0), longParam(
+						params, strict, "callDeadline",
+						ResiliencePolicy.DEFAULT_CALL_DEADLINE, 1),
+				(int) longParam(params, strict, "breakerThreshold",
+						ResiliencePolicy.DEFAULT_BREAKER_THRESHOLD, 0),
+				longParam(params, strict, "breakerOpenInterval",
+						ResiliencePolicy.DEFAULT_BREAKER_OPEN_INTERVAL, 0));
+
+		workerThreads = (int) longParam(params, strict, "workerThreads",
+				SdnPSSWorkQueue.DEFAULT_WORKERS, 1);
+		workQueueCapacity = (int) longParam(params, strict,
+				"workQueueCapacity", SdnPSSWorkQueue.DEFAULT_CAPACITY, 1);
+		workQueueOverflow = enumParam(params, strict, "workQueueOverflow",
+				OverflowPolicy.class, OverflowPolicy.REJECT);
+
+		statusMaxAge = longParam(params, strict, "statusMaxAge",
+				DEFAULT_STATUS_MAX_AGE, 0) * 1000;
+	}
+
+	/**
+	 * Check a value for a tuning param.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if name isn't a tuning param or value isn't valid for it
+	 */
+	public static void validate(String name, String value) {
+		if (!PARAMS.contains(name))
+			throw new IllegalArgumentException("Unknown tuning param " + name);
+		new SdnPSSTuning(Collections.singletonMap(name, value), true);
+	}
+
+	private long longParam(Map<String, String> params, boolean strict,
+			String name, long defaultValue, long min) {
+		long value = defaultValue;
+		String s = params.get(name);
+		if (s != null) {
+			String error = null;
+			try {
+				value = Long.parseLong(s.trim());
+				if (value < min)
+					error = name + " must be at least " + min;
+			} catch (NumberFormatException e) {
+				error = "Invalid " + name;
+			}
+			if (error != null) {
+				if (strict)
+					throw new IllegalArgumentException(error + ": " + s);
+				log.warn(error + ": " + s + ", using " + defaultValue);
+				value = defaultValue;
+			}
+		}
+		values.put(name, value);
+		return value;
+	}
+
+	private <E extends Enum<E>> E enumParam(Map<String, String> params,
+			boolean strict, String name, Class<E> type, E defaultValue) {
+		E value = defaultValue;
+		String s = params.get(name);
+		if (s != null) {
+			try {
+				value = Enum.valueOf(type, s.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				String error = "Invalid " + name + ": " + s;
+				if (strict)
+					throw new IllegalArgumentException(error
+							+ ", expected one of "
+							+ Arrays.toString(type.getEnumConstants()));
+				log.warn(error + ", using " + defaultValue);
+			}
+		}
+		values.put(name, value);
+		return value;
+	}
+
+	/**
+	 * @return the value in effect for a tuning param, as it would be
+	 *         written in the config, or null if name isn't a tuning param
+	 */
+	public String get(String name) {
+		Object value = values.get(name);
+		if (value == null)
+			return null;
+		return value instanceof Enum ? value.toString().toLowerCase() : value
+				.toString();
+	}
+
+	public SetupMode getSetupMode() {
+		return setupMode;
+	}
+
+	public TeardownMode getTeardownMode() {
+		return teardownMode;
+	}
+
+	/**
+	 * @return requests outstanding on each controller while pushing circuits
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public FloodlightTransport.Type getTransportType() {
+		return transportType;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return ms
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @return ms
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public ResiliencePolicy getResiliencePolicy() {
+		return resiliencePolicy;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public int getWorkQueueCapacity() {
+		return workQueueCapacity;
+	}
+
+	public OverflowPolicy getWorkQueueOverflow() {
+		return workQueueOverflow;
+	}
+
+	/**
+	 * @return ms
+	 */
+	public long getStatusMaxAge() {
+		return statusMaxAge;
+	}
+
+	@Override
+	public String toString() {
+		return values.toString();
+	}
+}
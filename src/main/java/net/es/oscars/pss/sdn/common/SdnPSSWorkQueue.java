@@ -0,0 +1,279 @@
+package net.es.oscars.pss.sdn.common;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded work queue used by {@link SdnPSSSoapHandler} to process PSS
+ * requests outside of the CXF/Jetty request threads. Requests are accepted
+ * right away and handed to a fixed set of workers.
+ *
+ * Every request is submitted with a key (the reservation GRI). Requests with
+ * the same key run one at a time in submission order, so a teardown never
+ * overtakes the setup of the same reservation, while requests with different
+ * keys run in parallel on all workers.
+ *
+ * At most capacity requests can be pending (queued or running). When the
+ * queue is full the overflow policy decides whether new requests are rejected
+ * right away or the caller waits for room (backpressure).
+ *
+ * The number of workers, the capacity and the overflow policy can be changed
+ * while requests are queued or running, see {@link #tune}.
+ *
+ */
+public class SdnPSSWorkQueue {
+	public static final int DEFAULT_WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+	public static final int DEFAULT_CAPACITY = 64;
+	public static final long DEFAULT_BLOCK_TIMEOUT = 30000;
+
+	private static final Logger log = Logger.getLogger(SdnPSSWorkQueue.class
+			.getName());
+
+	public enum OverflowPolicy {
+		/** fail requests that don't fit in the queue */
+		REJECT,
+		/** make the caller wait until there is room in the queue */
+		BLOCK;
+	}
+
+	private final ThreadPoolExecutor executor;
+	private volatile int capacity;
+	private volatile OverflowPolicy policy;
+	private final long blockTimeout;
+
+	private final Slots slots;
+	/* requests waiting behind a running request with the same key */
+	private final Map<String, LinkedList<Runnable>> keyQueues = new HashMap<String, LinkedList<Runnable>>();
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+
+	public SdnPSSWorkQueue() {
+		this(DEFAULT_WORKERS, DEFAULT_CAPACITY, OverflowPolicy.REJECT);
+	}
+
+	public SdnPSSWorkQueue(int workers, int capacity, OverflowPolicy policy) {
+		this(workers, capacity, policy, DEFAULT_BLOCK_TIMEOUT);
+	}
+
+	/**
+	 * @param blockTimeout
+	 *            with the BLOCK policy, how long (ms) a caller waits for room
+	 *            before the request is rejected
+	 */
+	public SdnPSSWorkQueue(int workers, int capacity, OverflowPolicy policy,
+			long blockTimeout) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.blockTimeout = blockTimeout;
+		this.slots = new Slots(capacity);
+		// the pool queue holds at most one drainer per key, the capacity
+		// limit is enforced by slots
+		this.executor = new ThreadPoolExecutor(workers, workers, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new WorkerThreadFactory());
+	}
+
+	/**
+	 * Change the workers, capacity and overflow policy. No request is
+	 * dropped: if the capacity shrinks below the pending requests, new
+	 * requests overflow until enough of them are done, and workers above a
+	 * reduced count exit once their current request completes.
+	 */
+	public synchronized void tune(int workers, int capacity,
+			OverflowPolicy policy) {
+		if (workers < 1 || capacity < 1)
+			throw new IllegalArgumentException(
+					"workers and capacity must be positive");
+		if (workers == executor.getCorePoolSize()
+				&& capacity == this.capacity && policy == this.policy)
+			return;
+		if (workers > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(workers);
+			executor.setCorePoolSize(workers);
+		} else {
+			executor.setCorePoolSize(workers);
+			executor.setMaximumPoolSize(workers);
+		}
+
+		int delta = capacity - this.capacity;
+		if (delta > 0)
+			slots.release(delta);
+		else if (delta < 0)
+			slots.reduce(-delta);
+		this.capacity = capacity;
+		this.policy = policy;
+		log.info(String.format("Work queue: %d workers, capacity %d, %s",
+				workers, capacity, policy));
+	}
+
+	public int getWorkers() {
+		return executor.getCorePoolSize();
+	}
+
+	/**
+	 * Queue a request for processing after all previously submitted requests
+	 * with the same key.
+	 *
+	 * @return true if the request was accepted, false if it was rejected
+	 */
+	public boolean submit(String key, Runnable task) {
+		submitted.incrementAndGet();
+
+		if (!acquireSlot()) {
+			rejected.incrementAndGet();
+			log.warn(String.format(
+					"Work queue full (%d requests), rejecting request for %s",
+					getPendingCount(), key));
+			return false;
+		}
+
+		synchronized (keyQueues) {
+			LinkedList<Runnable> queue = keyQueues.get(key);
+			if (queue != null) {
+				// a drainer is already running for this key, it will
+				// pick the request up when the previous ones are done
+				queue.add(task);
+				return true;
+			}
+			keyQueues.put(key, new LinkedList<Runnable>());
+		}
+
+		try {
+			executor.execute(new KeyDrainer(key, task));
+		} catch (RejectedExecutionException e) {
+			synchronized (keyQueues) {
+				keyQueues.remove(key);
+			}
+			slots.release();
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private boolean acquireSlot() {
+		if (policy == OverflowPolicy.REJECT)
+			return slots.tryAcquire();
+		try {
+			return slots.tryAcquire(blockTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of requests queued or running
+	 */
+	public int getPendingCount() {
+		return capacity - slots.availablePermits();
+	}
+
+	/**
+	 * @return number of keys (reservations) with queued or running requests
+	 */
+	public int getActiveKeys() {
+		synchronized (keyQueues) {
+			return keyQueues.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Runs the requests of one key in order until its queue is empty.
+	 */
+	private class KeyDrainer implements Runnable {
+		private final String key;
+		private Runnable next;
+
+		KeyDrainer(String key, Runnable first) {
+			this.key = key;
+			this.next = first;
+		}
+
+		@Override
+		public void run() {
+			while (next != null) {
+				try {
+					next.run();
+				} catch (Throwable t) {
+					log.error("Request for " + key + " failed: " + t.getMessage());
+				} finally {
+					completed.incrementAndGet();
+					slots.release();
+				}
+
+				synchronized (keyQueues) {
+					LinkedList<Runnable> queue = keyQueues.get(key);
+					next = queue.poll();
+					if (next == null)
+						keyQueues.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A semaphore whose permits can be taken away for good.
+	 */
+	private static class Slots extends Semaphore {
+		private static final long serialVersionUID = -2470516336853512219L;
+
+		Slots(int permits) {
+			super(permits);
+		}
+
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "sdnpss-worker-"
+					+ threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
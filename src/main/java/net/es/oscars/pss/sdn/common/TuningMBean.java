@@ -0,0 +1,145 @@
+package net.es.oscars.pss.sdn.common;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes the {@link SdnPSSTuning} params over JMX, one read/write String
+ * attribute per param, as written in the config. Setting an attribute
+ * overrides the config file (see {@link SdnPSSConfig#override}) and applies
+ * the value right away. The reload operation loads the config file again,
+ * clearOverrides goes back to its values.
+ *
+ */
+public class TuningMBean implements DynamicMBean {
+	public static final String OBJECT_NAME = "net.es.oscars.pss.sdn:type=Tuning";
+
+	private final SdnPSSConfigWatcher watcher;
+
+	/**
+	 * @param watcher
+	 *            the watcher of the config file, or null to reload the
+	 *            params as last loaded
+	 */
+	public TuningMBean(SdnPSSConfigWatcher watcher) {
+		this.watcher = watcher;
+	}
+
+	/**
+	 * Register with the platform MBean server under {@link #OBJECT_NAME}.
+	 */
+	public void register() throws JMException {
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		String value = SdnPSSConfig.current().getTuning().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		SdnPSSTuning tuning = SdnPSSConfig.current().getTuning();
+		AttributeList list = new AttributeList();
+		for (String a : attributes) {
+			String value = tuning.get(a);
+			if (value != null)
+				list.add(new Attribute(a, value));
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException, InvalidAttributeValueException {
+		if (!SdnPSSTuning.PARAMS.contains(attribute.getName()))
+			throw new AttributeNotFoundException(attribute.getName());
+		if (attribute.getValue() == null)
+			throw new InvalidAttributeValueException(attribute.getName()
+					+ " can't be null");
+		try {
+			SdnPSSConfig.override(attribute.getName(), attribute.getValue()
+					.toString());
+		} catch (IllegalArgumentException e) {
+			throw new InvalidAttributeValueException(e.getMessage());
+		}
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		AttributeList set = new AttributeList();
+		for (Attribute a : attributes.asList()) {
+			try {
+				setAttribute(a);
+				set.add(a);
+			} catch (JMException e) {
+				// not set, left out of the result
+			}
+		}
+		return set;
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws MBeanException, ReflectionException {
+		if ("reload".equals(actionName)) {
+			try {
+				if (watcher != null)
+					watcher.reloadNow();
+				else
+					SdnPSSConfig.reload();
+			} catch (Exception e) {
+				throw new MBeanException(e, "Couldn't reload the config: "
+						+ e.getMessage());
+			}
+		} else if ("clearOverrides".equals(actionName)) {
+			SdnPSSConfig.clearOverrides();
+		} else {
+			throw new ReflectionException(new NoSuchMethodException(
+					actionName));
+		}
+		return null;
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[SdnPSSTuning.PARAMS
+				.size()];
+		for (int i = 0; i < attributes.length; i++) {
+			String name = SdnPSSTuning.PARAMS.get(i);
+			attributes[i] = new MBeanAttributeInfo(name,
+					String.class.getName(), name, true, true, false);
+		}
+		MBeanOperationInfo[] operations = {
+				new MBeanOperationInfo("reload",
+						"Load the config file again, dropping the overrides "
+								+ "if it changed", new MBeanParameterInfo[0],
+						"void", MBeanOperationInfo.ACTION),
+				new MBeanOperationInfo("clearOverrides",
+						"Go back to the values of the config file",
+						new MBeanParameterInfo[0], "void",
+						MBeanOperationInfo.ACTION) };
+		return new MBeanInfo(getClass().getName(), "SDN PSS tuning",
+				attributes, null, operations, null);
+	}
+}
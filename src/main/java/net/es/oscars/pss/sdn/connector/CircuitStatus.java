@@ -0,0 +1,87 @@
+package net.es.oscars.pss.sdn.connector;
+
+/**
+ * State of a circuit's flow entries, as seen by
+ * {@link FloodlightSDNConnector#circuitStatus}: how many entries the circuit
+ * is expected to have, and of those how many the controller was recently
+ * seen to have (confirmed), not to have (missing) or wasn't seen at all
+ * (unconfirmed).
+ *
+ */
+public class CircuitStatus {
+
+	public enum State {
+		/** every entry is confirmed */
+		ACTIVE,
+		/** some entries are missing from the controller */
+		DEGRADED,
+		/** no entry is missing, but some couldn't be confirmed */
+		UNKNOWN,
+		/** the circuit has no entries */
+		NOT_FOUND;
+	}
+
+	private final String circuitID;
+	private final int expected;
+	private final int confirmed;
+	private final int missing;
+	private final int unconfirmed;
+	private final int switchesFetched;
+
+	/**
+	 * @param switchesFetched
+	 *            switches listed to answer the query, because what was known
+	 *            of them was too old
+	 */
+	public CircuitStatus(String circuitID, int expected, int confirmed,
+			int missing, int unconfirmed, int switchesFetched) {
+		this.circuitID = circuitID;
+		this.expected = expected;
+		this.confirmed = confirmed;
+		this.missing = missing;
+		this.unconfirmed = unconfirmed;
+		this.switchesFetched = switchesFetched;
+	}
+
+	public State getState() {
+		if (expected == 0)
+			return State.NOT_FOUND;
+		if (missing > 0)
+			return State.DEGRADED;
+		if (unconfirmed > 0)
+			return State.UNKNOWN;
+		return State.ACTIVE;
+	}
+
+	public String getCircuitID() {
+		return circuitID;
+	}
+
+	public int getExpected() {
+		return expected;
+	}
+
+	public int getConfirmed() {
+		return confirmed;
+	}
+
+	public int getMissing() {
+		return missing;
+	}
+
+	public int getUnconfirmed() {
+		return unconfirmed;
+	}
+
+	public int getSwitchesFetched() {
+		return switchesFetched;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s %s: %d entries, %d confirmed, %d missing, %d unconfirmed"
+						+ " (%d switches fetched)", circuitID, getState(),
+				expected, confirmed, missing, unconfirmed, switchesFetched);
+	}
+}
@@ -0,0 +1,181 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tells which controller owns a switch when the network is split across
+ * several controller instances. A switch is owned by the controller it is
+ * assigned to, if any, and otherwise by the controller it hashes to on a
+ * consistent hash ring of all controllers, so adding or removing a controller
+ * only moves the switches that hash to it.
+ *
+ * Registries are immutable: a new one is built when the controllers change
+ * and handed to the connectors (see
+ * {@link FloodlightSDNConnector#setControllers}).
+ *
+ */
+public final class ControllerRegistry {
+	/** points of every controller on the ring */
+	public static final int VIRTUAL_NODES = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<String> controllers;
+	/* compact DPID -> controller */
+	private final Map<String, String> assignments;
+	private final TreeMap<Integer, String> ring = new TreeMap<Integer, String>();
+
+	/**
+	 * @param controllers
+	 *            controller addresses, e.g. http://controller:8080
+	 * @param assignments
+	 *            DPID -> address of the controller owning the switch, for
+	 *            the switches that must not be placed by hashing
+	 * @throws IllegalArgumentException
+	 *             if there is no controller
+	 */
+	public ControllerRegistry(List<String> controllers,
+			Map<String, String> assignments) {
+		Set<String> all = new LinkedHashSet<String>(controllers);
+		Map<String, String> compact = new HashMap<String, String>();
+		for (Map.Entry<String, String> a : assignments.entrySet()) {
+			compact.put(EntryNames.compactDPID(a.getKey()), a.getValue());
+			all.add(a.getValue());
+		}
+		if (all.isEmpty())
+			throw new IllegalArgumentException("No controller");
+		this.controllers = Collections
+				.unmodifiableList(new ArrayList<String>(all));
+		this.assignments = compact;
+
+		// only the listed controllers take switches by hashing
+		for (String c : controllers.isEmpty() ? all : controllers) {
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+				ring.put(hash(c + "#" + i), c);
+		}
+	}
+
+	/**
+	 * @return a registry of a single controller, owning every switch
+	 */
+	public static ControllerRegistry single(String address) {
+		return new ControllerRegistry(Collections.singletonList(address),
+				Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Parse a registry from the circuit service params: controllers, a comma
+	 * separated list of addresses, and assignments, a comma separated list of
+	 * dpid=address. Without controllers, the controller param is the only
+	 * controller.
+	 *
+	 * @return the registry, or null if no controller is configured
+	 * @throws IllegalArgumentException
+	 *             if an assignment is malformed
+	 */
+	public static ControllerRegistry fromParams(Map<String, String> params) {
+		List<String> controllers = new ArrayList<String>();
+		if (params.containsKey("controllers")) {
+			for (String c : params.get("controllers").split(",")) {
+				if (c.trim().length() > 0)
+					controllers.add(c.trim());
+			}
+		} else if (params.containsKey("controller")) {
+			controllers.add(params.get("controller").trim());
+		}
+
+		Map<String, String> assignments = new LinkedHashMap<String, String>();
+		if (params.containsKey("assignments")) {
+			for (String a : params.get("assignments").split(",")) {
+				if (a.trim().length() == 0)
+					continue;
+				int eq = a.indexOf('=');
+				String dpid = eq < 0 ? "" : a.substring(0, eq).trim();
+				String address = eq < 0 ? "" : a.substring(eq + 1).trim();
+				if (dpid.length() == 0 || address.length() == 0)
+					throw new IllegalArgumentException("Invalid assignment: "
+							+ a.trim());
+				assignments.put(dpid, address);
+			}
+		}
+
+		if (controllers.isEmpty() && assignments.isEmpty())
+			return null;
+		return new ControllerRegistry(controllers, assignments);
+	}
+
+	/**
+	 * @return the address of the controller owning a switch
+	 * @param dpid
+	 *            the switch DPID, with or without separators
+	 */
+	public String controllerOf(String dpid) {
+		String compact = EntryNames.compactDPID(dpid);
+		String assigned = assignments.get(compact);
+		if (assigned != null)
+			return assigned;
+		SortedMap<Integer, String> tail = ring.tailMap(hash(compact));
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail
+				.firstKey());
+	}
+
+	/**
+	 * @return the addresses of all controllers
+	 */
+	public List<String> getControllers() {
+		return controllers;
+	}
+
+	public int size() {
+		return controllers.size();
+	}
+
+	/**
+	 * @return the first 4 bytes of the MD5 of s: the ring needs hashes that
+	 *         spread similar strings (addresses, DPIDs) evenly
+	 */
+	private static int hash(String s) {
+		byte[] d;
+		try {
+			d = MessageDigest.getInstance("MD5").digest(s.getBytes(UTF8));
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has MD5
+			throw new IllegalStateException(e);
+		}
+		return ((d[0] & 0xff) << 24) | ((d[1] & 0xff) << 16)
+				| ((d[2] & 0xff) << 8) | (d[3] & 0xff);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ControllerRegistry))
+			return false;
+		ControllerRegistry r = (ControllerRegistry) o;
+		return controllers.equals(r.controllers)
+				&& assignments.equals(r.assignments)
+				&& ring.equals(r.ring);
+	}
+
+	@Override
+	public int hashCode() {
+		return controllers.hashCode() * 31 + assignments.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return controllers + (assignments.isEmpty() ? "" : " with "
+				+ assignments.size() + " assigned switches");
+	}
+}
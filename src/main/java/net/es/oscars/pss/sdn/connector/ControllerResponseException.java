@@ -0,0 +1,33 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.IOException;
+
+/**
+ * The controller answered a REST call with an HTTP error status.
+ *
+ */
+public class ControllerResponseException extends IOException {
+	private static final long serialVersionUID = -2710253326718330357L;
+
+	private final int status;
+
+	public ControllerResponseException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	/**
+	 * @return the HTTP status code
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the controller reported a problem on its side (5xx),
+	 *         which may go away if the call is repeated
+	 */
+	public boolean isServerError() {
+		return status >= 500;
+	}
+}
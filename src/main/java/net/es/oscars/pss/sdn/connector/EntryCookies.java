@@ -0,0 +1,75 @@
+package net.es.oscars.pss.sdn.connector;
+
+/**
+ * Cookies of the flow entries installed for circuits. Every entry of a
+ * reservation carries the same cookie, a compact id of its GRI allocated by
+ * the {@link FlowEntryIndex}, so the entries of a reservation on a switch
+ * can be picked out of a list request with a masked compare and a lookup in
+ * the index instead of matching names.
+ *
+ * Floodlight keeps the upper bits of a cookie for the id of the application
+ * that installed the entry and passes the user cookie of staticflowentrypusher
+ * requests through the low bits, as a signed int. Reservation cookies are
+ * therefore positive 31 bit values and the controller's cookies are compared
+ * under {@link #MASK}. {@link #NONE} marks entries without a reservation
+ * cookie and {@link #SHARED} entries of shared hops, which belong to no
+ * circuit.
+ *
+ * Older controllers (Floodlight 0.9) ignore the user cookie and derive the
+ * cookie from the entry name: a masked cookie that doesn't resolve to a
+ * reservation whose entry names match is not to be trusted, and callers fall
+ * back to the names, see {@link EntryNames}.
+ *
+ */
+public final class EntryCookies {
+	public static final long MASK = 0x7fffffffL;
+
+	public static final long NONE = 0;
+	public static final long SHARED = 1;
+
+	/* first cookie that may be given to a reservation */
+	private static final long FIRST = 2;
+
+	private EntryCookies() {
+	}
+
+	/**
+	 * @return the reservation bits of a cookie read from the controller
+	 */
+	public static long reservationOf(long cookie) {
+		return cookie & MASK;
+	}
+
+	/**
+	 * @return true if c may identify a reservation
+	 */
+	public static boolean isReservation(long c) {
+		return c >= FIRST && c <= MASK;
+	}
+
+	/**
+	 * @return the preferred cookie of a reservation: a 31 bit FNV-1a hash of
+	 *         its GRI, so a reservation usually gets the same cookie in every
+	 *         JVM
+	 */
+	public static long hash(String gri) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < gri.length(); i++) {
+			h ^= gri.charAt(i);
+			h *= 0x01000193;
+		}
+		return valid(h & MASK);
+	}
+
+	/**
+	 * @return the cookie to try after c when c is taken by another
+	 *         reservation
+	 */
+	public static long next(long c) {
+		return valid((c + 1) & MASK);
+	}
+
+	private static long valid(long c) {
+		return c < FIRST ? c + FIRST : c;
+	}
+}
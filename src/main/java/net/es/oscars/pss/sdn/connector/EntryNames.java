@@ -0,0 +1,185 @@
+package net.es.oscars.pss.sdn.connector;
+
+import net.es.oscars.topoBridge.sdn.SDNHop;
+import net.es.oscars.topoBridge.sdn.SDNNode;
+
+/**
+ * Names of the flow entries installed for circuits. Names only depend on the
+ * reservation (GRI), the switch, the ports and the direction of the entry,
+ * so the same entry gets the same name in every JVM: a teardown, retry or
+ * reconciliation can compute the names of a circuit's entries from its path
+ * alone.
+ *
+ * A name is made of dot separated parts:
+ *
+ * <pre>
+ * &lt;gri&gt;.&lt;dpid&gt;.&lt;in&gt;-&lt;out&gt;.&lt;kind&gt;.&lt;F|R&gt;
+ * e.g. es.net-1234.4.1-2.l2.F
+ * </pre>
+ *
+ * where dpid is the switch DPID in hex without separators and leading zeros
+ * and kind tells the entries of a hop apart. Only the GRI may contain dots,
+ * so names can be split from the right (see {@link #circuitOf}), and all
+ * entries of a circuit share the prefix {@link #prefixOf}(gri). Entries of
+ * shared hops (see {@link HopRefCounter}) belong to no circuit and use
+ * {@link #SHARED} instead of a GRI.
+ *
+ * Entries installed by a modification of the circuit must not replace the
+ * entries they supersede before they are in place, so they carry the
+ * generation of the modification after their kind, e.g.
+ * es.net-1234.4.1-2.l2#1.F (see {@link #withGeneration}). Setup uses
+ * generation 0, which isn't written.
+ *
+ */
+public final class EntryNames {
+	/** the "GRI" of entries of shared hops */
+	public static final String SHARED = "shared";
+
+	public static final String KIND_L1 = "l1";
+	public static final String KIND_L2 = "l2";
+	public static final String KIND_GMPLS = "gmpls";
+
+	private static final char GENERATION = '#';
+
+	public enum Direction {
+		FORWARD("F"), REVERSE("R");
+
+		private final String suffix;
+
+		Direction(String suffix) {
+			this.suffix = suffix;
+		}
+	}
+
+	private EntryNames() {
+	}
+
+	/**
+	 * @return the name of an entry of hop h for the circuit gri
+	 */
+	public static String of(String gri, SDNHop h, String kind,
+			Direction direction) {
+		return of(gri, h.getNode(), h.getSrcPort(), h.getDstPort(), kind,
+				direction);
+	}
+
+	/**
+	 * @return the name of an entry of a shared hop
+	 */
+	public static String shared(SDNHop h, String kind, Direction direction) {
+		return of(SHARED, h, kind, direction);
+	}
+
+	public static String of(String gri, SDNNode node, String inPort,
+			String outPort, String kind, Direction direction) {
+		StringBuilder sb = new StringBuilder(gri.length() + 32);
+		sb.append(gri).append('.');
+		appendDPID(sb, node.getId());
+		sb.append('.');
+		appendPart(sb, inPort);
+		sb.append('-');
+		appendPart(sb, outPort);
+		sb.append('.');
+		appendPart(sb, kind);
+		sb.append('.').append(direction.suffix);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the name with its generation replaced by the given one
+	 */
+	public static String withGeneration(String name, int generation) {
+		String base = baseName(name);
+		if (generation == 0)
+			return base;
+		int dir = base.lastIndexOf('.');
+		return base.substring(0, dir) + GENERATION + generation
+				+ base.substring(dir);
+	}
+
+	/**
+	 * @return the generation of an entry name, 0 if it has none
+	 */
+	public static int generationOf(String name) {
+		int dir = name.lastIndexOf('.');
+		int kind = name.lastIndexOf('.', dir - 1);
+		int g = name.lastIndexOf(GENERATION, dir);
+		if (kind < 0 || g < kind)
+			return 0;
+		try {
+			return Integer.parseInt(name.substring(g + 1, dir));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the name without its generation
+	 */
+	public static String baseName(String name) {
+		int dir = name.lastIndexOf('.');
+		int kind = name.lastIndexOf('.', dir - 1);
+		int g = name.lastIndexOf(GENERATION, dir);
+		if (kind < 0 || g < kind)
+			return name;
+		return name.substring(0, g) + name.substring(dir);
+	}
+
+	/**
+	 * @return the prefix shared by the names of all entries of a circuit.
+	 *         Names of a GRI extending gri with dots share it too, see
+	 *         {@link #circuitOf}.
+	 */
+	public static String prefixOf(String gri) {
+		return gri + ".";
+	}
+
+	/**
+	 * @return the GRI of the circuit an entry was named for, {@link #SHARED}
+	 *         for entries of shared hops, or null if the name doesn't follow
+	 *         this scheme
+	 */
+	public static String circuitOf(String name) {
+		int end = name.length();
+		for (int i = 0; i < 4; i++) {
+			end = name.lastIndexOf('.', end - 1);
+			if (end <= 0)
+				return null;
+		}
+		return name.substring(0, end);
+	}
+
+	/**
+	 * @return the compact form of a node id (a DPID with '.' or ':'
+	 *         separators): hex digits only, without leading zeros
+	 */
+	public static String compactDPID(String nodeId) {
+		StringBuilder sb = new StringBuilder(16);
+		appendDPID(sb, nodeId);
+		return sb.toString();
+	}
+
+	private static void appendDPID(StringBuilder sb, String nodeId) {
+		int start = sb.length();
+		for (int i = 0; i < nodeId.length(); i++) {
+			char c = nodeId.charAt(i);
+			if (c == '.' || c == ':')
+				continue;
+			if (c == '0' && sb.length() == start)
+				continue;
+			sb.append(Character.toLowerCase(c));
+		}
+		if (sb.length() == start)
+			sb.append('0');
+	}
+
+	/**
+	 * Append a port or kind, replacing the separators it may contain.
+	 */
+	private static void appendPart(StringBuilder sb, String part) {
+		for (int i = 0; i < part.length(); i++) {
+			char c = part.charAt(i);
+			sb.append(c == '.' || c == '-' || c == GENERATION ? '_' : c);
+		}
+	}
+}
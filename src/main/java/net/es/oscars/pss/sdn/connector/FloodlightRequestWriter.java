@@ -0,0 +1,265 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.es.oscars.pss.sdn.openflow.OFRule;
+import net.es.oscars.pss.sdn.openflow.OFRule.Action;
+import net.es.oscars.pss.sdn.openflow.OFRule.Field;
+import net.es.oscars.topoBridge.sdn.SDNNode;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Serializes staticflowentrypusher store and delete requests. Requests are
+ * streamed with a Jackson generator straight into a per-thread
+ * {@link RequestBuffer}, which is what gets sent to the controller, so no
+ * intermediate Strings are built per entry and every value is properly
+ * escaped.
+ *
+ * A thread's buffer is reused by its next request: callers must be done
+ * with a request before serializing another one on the same thread.
+ *
+ */
+public class FloodlightRequestWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final SerializedString SWITCH = new SerializedString(
+			"switch");
+	private static final SerializedString NAME = new SerializedString("name");
+	private static final SerializedString COOKIE = new SerializedString(
+			"cookie");
+	private static final SerializedString PRIORITY = new SerializedString(
+			"priority");
+	/* how a cookie appears in the requests written here */
+	private static final String COOKIE_FIELD = "\"cookie\":\"";
+	private static final SerializedString ACTIONS = new SerializedString(
+			"actions");
+	private static final SerializedString[] FIELD_NAMES;
+	static {
+		Field[] fields = Field.values();
+		FIELD_NAMES = new SerializedString[fields.length];
+		for (Field f : fields)
+			FIELD_NAMES[f.ordinal()] = new SerializedString(
+					f.getFloodlightName());
+	}
+	private static final Field[] FIELDS = Field.values();
+
+	/* node id -> colon separated DPID */
+	private static final ConcurrentMap<String, String> dpids = new ConcurrentHashMap<String, String>();
+
+	private static final ThreadLocal<RequestBuffer> buffers = new ThreadLocal<RequestBuffer>() {
+		@Override
+		protected RequestBuffer initialValue() {
+			return new RequestBuffer();
+		}
+	};
+
+	/**
+	 * Growable byte buffer holding one serialized request, along with the
+	 * scratch space used to format values.
+	 */
+	public static final class RequestBuffer extends OutputStream {
+		/* buffers that grew past this are dropped on reset */
+		private static final int MAX_RETAINED = 64 * 1024;
+
+		private byte[] buf = new byte[512];
+		private int count = 0;
+		private final StringBuilder value = new StringBuilder(64);
+		private char[] chars = new char[64];
+
+		@Override
+		public void write(int b) {
+			ensure(count + 1);
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(count + len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		private void ensure(int capacity) {
+			if (capacity > buf.length) {
+				byte[] n = new byte[Math.max(capacity, buf.length * 2)];
+				System.arraycopy(buf, 0, n, 0, count);
+				buf = n;
+			}
+		}
+
+		private void reset() {
+			if (buf.length > MAX_RETAINED)
+				buf = new byte[512];
+			count = 0;
+		}
+
+		public byte[] getBytes() {
+			return buf;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * @return a stream over the request, sharing this buffer
+		 */
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+
+		/**
+		 * @return the request as a String, for logging and for the entry
+		 *         index
+		 */
+		@Override
+		public String toString() {
+			return new String(buf, 0, count, UTF8);
+		}
+	}
+
+	/**
+	 * @return the node id formatted as a colon separated DPID
+	 */
+	public static String toDPID(SDNNode node) {
+		String id = node.getId();
+		String dpid = dpids.get(id);
+		if (dpid == null) {
+			dpid = id.replace('.', ':');
+			dpids.putIfAbsent(id, dpid);
+		}
+		return dpid;
+	}
+
+	/**
+	 * Serialize the store request of an entry without a cookie.
+	 *
+	 * @see #storeRequest(String, OFRule, long)
+	 */
+	public static RequestBuffer storeRequest(String switchDPID, OFRule rule)
+			throws IOException {
+		return storeRequest(switchDPID, rule, EntryCookies.NONE);
+	}
+
+	/**
+	 * Serialize the store request of an entry:
+	 *
+	 * <pre>
+	 * {"switch":"00:00:00:00:00:00:00:07","name":"...","cookie":"12345","priority":"32768","ingress-port":"1",...,"actions":"output=3"}
+	 * </pre>
+	 *
+	 * The priority is only sent if the rule sets one.
+	 *
+	 * @param cookie
+	 *            see {@link EntryCookies}, left out if NONE
+	 * @return the calling thread's buffer, holding the request
+	 * @throws IOException
+	 *             if the rule has no name or output action
+	 */
+	public static RequestBuffer storeRequest(String switchDPID, OFRule rule,
+			long cookie) throws IOException {
+		if (rule.getName() == null)
+			throw new IOException("Entry has no name");
+		if (!rule.hasAction(Action.Type.OUTPUT))
+			throw new IOException("OSCARS require at least an OUTPUT action");
+
+		RequestBuffer b = buffers.get();
+		b.reset();
+		JsonGenerator g = jsonFactory.createJsonGenerator(b,
+				JsonEncoding.UTF8);
+		g.writeStartObject();
+		g.writeFieldName(SWITCH);
+		g.writeString(switchDPID);
+		g.writeFieldName(NAME);
+		g.writeString(rule.getName());
+		if (cookie != EntryCookies.NONE) {
+			b.value.setLength(0);
+			b.value.append(cookie);
+			int len = b.value.length();
+			b.value.getChars(0, len, b.chars, 0);
+			g.writeFieldName(COOKIE);
+			g.writeString(b.chars, 0, len);
+		}
+		if (rule.hasPriority()) {
+			b.value.setLength(0);
+			b.value.append(rule.getPriority());
+			int len = b.value.length();
+			b.value.getChars(0, len, b.chars, 0);
+			g.writeFieldName(PRIORITY);
+			g.writeString(b.chars, 0, len);
+		}
+		for (Field f : FIELDS) {
+			if (!rule.has(f))
+				continue;
+			b.value.setLength(0);
+			rule.appendFloodlightValue(f, b.value);
+			int len = b.value.length();
+			if (len > b.chars.length)
+				b.chars = new char[len];
+			b.value.getChars(0, len, b.chars, 0);
+			g.writeFieldName(FIELD_NAMES[f.ordinal()]);
+			g.writeString(b.chars, 0, len);
+		}
+		g.writeFieldName(ACTIONS);
+		g.writeString(rule.getActionString());
+		g.writeEndObject();
+		g.close();
+		return b;
+	}
+
+	/**
+	 * @return the cookie of a store request written by
+	 *         {@link #storeRequest(String, OFRule, long)}, or
+	 *         {@link EntryCookies#NONE} if it has none
+	 */
+	public static long cookieOf(String request) {
+		int i = request.indexOf(COOKIE_FIELD);
+		if (i < 0)
+			return EntryCookies.NONE;
+		long cookie = 0;
+		for (i += COOKIE_FIELD.length(); i < request.length(); i++) {
+			char c = request.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			cookie = cookie * 10 + (c - '0');
+		}
+		return cookie;
+	}
+
+	/**
+	 * Serialize the delete request of an entry:
+	 *
+	 * <pre>
+	 * {"name":"...","switch":"00:00:00:00:00:00:00:07"}
+	 * </pre>
+	 *
+	 * @return the calling thread's buffer, holding the request
+	 */
+	public static RequestBuffer deleteRequest(String switchDPID, String name)
+			throws IOException {
+		RequestBuffer b = buffers.get();
+		b.reset();
+		JsonGenerator g = jsonFactory.createJsonGenerator(b,
+				JsonEncoding.UTF8);
+		g.writeStartObject();
+		g.writeFieldName(NAME);
+		g.writeString(name);
+		g.writeFieldName(SWITCH);
+		g.writeString(switchDPID);
+		g.writeEndObject();
+		g.close();
+		return b;
+	}
+}
@@ -1,21 +1,39 @@
 package net.es.oscars.pss.sdn.connector;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.es.oscars.pss.sdn.connector.EntryNames.Direction;
+import net.es.oscars.pss.sdn.connector.FloodlightRequestWriter.RequestBuffer;
+import net.es.oscars.pss.sdn.connector.FlowEntryIndex.IndexedEntry;
+import net.es.oscars.pss.sdn.connector.FlowTableLedger.Reservation;
+import net.es.oscars.pss.sdn.metrics.SdnMetrics;
+import net.es.oscars.pss.sdn.metrics.SdnMetrics.Operation;
 import net.es.oscars.pss.sdn.openflow.OFRule;
+import net.es.oscars.pss.sdn.openflow.OFRule.Field;
 import net.es.oscars.topoBridge.sdn.SDNCapability;
 import net.es.oscars.topoBridge.sdn.SDNHop;
 import net.es.oscars.topoBridge.sdn.SDNNode;
 import net.es.oscars.topoBridge.sdn.SDNObject;
 
 import org.apache.log4j.Logger;
-import org.restlet.resource.ClientResource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * Implements the Floodlight SDN connector: the interface that OSCARS use to
@@ -25,31 +43,79 @@ import org.restlet.resource.ClientResource;
  * 
  */
 public class FloodlightSDNConnector implements ISDNConnector {
-	private String controller = null;
-	private static Map<SDNHop, Integer> hopRefCount = null;
+	private volatile ControllerRegistry controllers = null;
+	/* shared by all connectors, see isSharedHop() */
+	private static final HopRefCounter hopRefCount = new HopRefCounter();
+	/* entries installed by all connectors */
+	private static final FlowEntryIndex entryIndex = new FlowEntryIndex();
+	/* room in the flow tables of the switches, see admit() */
+	private static final FlowTableLedger flowTables = new FlowTableLedger(
+			entryIndex);
+	private static volatile FlowJournal journal = null;
+	/* held from taking a shared hop's reference until its entries are
+	 * pushed or rolled back, and from dropping it until they are deleted */
+	private static final KeyLocks hopLocks = new KeyLocks();
+	/* held shared by the steps storing entries on a switch and exclusively
+	 * by a bulk delete clearing it */
+	private static final KeyLocks switchLocks = new KeyLocks();
+	/* last rollback of the most recently failed circuits */
+	private static final Map<String, RollbackReport> rollbackReports = new LinkedHashMap<String, RollbackReport>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, RollbackReport> eldest) {
+			return size() > MAX_ROLLBACK_REPORTS;
+		}
+	};
+	private static final int MAX_ROLLBACK_REPORTS = 256;
+	/* circuits with a setup or teardown in progress */
+	private static final Set<String> busyCircuits = Collections
+			.synchronizedSet(new HashSet<String>());
+	private static final ObjectMapper jsonMapper = new ObjectMapper();
 	private static final Logger log = Logger
 			.getLogger(FloodlightSDNConnector.class.getName());
 
-	private static ClientResource restStoreResource = null;
-	private static ClientResource restDeleteResource = null;
-	
-	private void initRestResources() {
-		try {
-			
-			if (restStoreResource == null)
-				restStoreResource = new ClientResource(controller
-						+ "/wm/staticflowentrypusher/json/store");
-		
-			if (restDeleteResource == null)
-				restDeleteResource  = new ClientResource(controller
-					+ "/wm/staticflowentrypusher/json/delete");
-		}
-		catch (Exception e) {
-			restStoreResource = null;
-			restDeleteResource = null;
-			log.error("Could not create restlet resources!");
-		}
-		
+	private static final String STORE_PATH = "/wm/staticflowentrypusher/json/store";
+	private static final String DELETE_PATH = "/wm/staticflowentrypusher/json/delete";
+	private static final String CLEAR_PATH = "/wm/staticflowentrypusher/clear/";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* one per controller, shared by all connectors; retuned in place when
+	 * the transport settings change, rebuilt when the transport type does */
+	private static final ConcurrentMap<String, ResilientTransport> transports = new ConcurrentHashMap<String, ResilientTransport>();
+	private static FloodlightTransport.Type transportType = FloodlightTransport.Type.POOLED;
+	private static int maxConnections = PooledHttpTransport.DEFAULT_MAX_CONNECTIONS;
+	private static int connectTimeout = PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT;
+	private static int readTimeout = PooledHttpTransport.DEFAULT_READ_TIMEOUT;
+	private static ResiliencePolicy resiliencePolicy = ResiliencePolicy.DEFAULT;
+
+	private final FlowEntryPusher pusher = new FlowEntryPusher(this);
+	private volatile SetupMode setupMode = SetupMode.BATCHED;
+	private volatile TeardownMode teardownMode = TeardownMode.PER_ENTRY;
+
+	/**
+	 * How setupCircuit sends a circuit's entries to the controller.
+	 * 
+	 * BATCHED pushes all entries of the circuit in a single batch. TIERED
+	 * pushes the hops of each capability tier (see {@link CircuitSetupOrder})
+	 * concurrently and waits for a tier to be fully programmed before starting
+	 * the next one.
+	 */
+	public enum SetupMode {
+		BATCHED, TIERED;
+	}
+
+	/**
+	 * How teardownCircuit removes a circuit's entries from the controller.
+	 * 
+	 * PER_ENTRY deletes every entry with its own call. BULK removes all
+	 * entries of the circuit on a switch at once where it can, see
+	 * {@link #bulkDelete}, so a teardown costs a couple of calls per switch
+	 * instead of one per entry.
+	 */
+	public enum TeardownMode {
+		PER_ENTRY, BULK;
 	}
 	
 	/**
@@ -60,106 +126,267 @@ public class FloodlightSDNConnector implements ISDNConnector {
 		IP("0x800"), ARP("0x806");
 
 		private final String value;
+		/* entry name kind, see EntryNames */
+		private final String kind;
 
 		FLCircuitProto(String v) {
 			value = v;
+			kind = name().toLowerCase();
 		}
 	}
 
 	public FloodlightSDNConnector() {
-		controller = null;
-		hopRefCount = new HashMap<SDNHop, Integer>();
+		controllers = null;
 	}
 
 	public FloodlightSDNConnector(String address) {
-		controller = address;
-		initRestResources();
-		hopRefCount = new HashMap<SDNHop, Integer>();
+		setConnectionAddress(address);
 	}
 
+	/**
+	 * Point the connector to a single controller, owning every switch. See
+	 * {@link #setControllers}.
+	 */
 	@Override
 	public ISDNConnectorResponse setConnectionAddress(String address) {
-		controller = address;
-		
-		restStoreResource = null;
-		restDeleteResource = null;
-		initRestResources();
-		
+		ControllerRegistry r = controllers;
+		if (r != null && r.size() == 1
+				&& r.getControllers().get(0).equals(address))
+			return ISDNConnectorResponse.SUCCESS;
+		return setControllers(ControllerRegistry.single(address));
+	}
+
+	/**
+	 * Point the connector to the controllers of a registry: the entries of a
+	 * switch are sent to the controller owning it. All connectors share the
+	 * transports to the controllers, which are only built for controllers
+	 * that weren't used yet, so calling this for every request is cheap and
+	 * doesn't disturb requests in progress. Transports to controllers that
+	 * aren't in the registry are closed.
+	 */
+	public ISDNConnectorResponse setControllers(ControllerRegistry registry) {
+		if (registry.equals(controllers))
+			return ISDNConnectorResponse.SUCCESS;
+		for (String address : registry.getControllers()) {
+			try {
+				transportFor(address);
+			} catch (IOException e) {
+				log.error("Could not create transport to " + address + ": "
+						+ e.getMessage());
+				return ISDNConnectorResponse.FAILURE;
+			}
+		}
+		controllers = registry;
+		retainTransports(registry.getControllers());
 		return ISDNConnectorResponse.SUCCESS;
 	}
 
-	private ISDNConnectorResponse setupL1Hop(SDNHop h, String circuitID) throws Exception {
+	/**
+	 * @return the controllers of the connector, or null if none was set
+	 */
+	public ControllerRegistry getControllers() {
+		return controllers;
+	}
 
-		log.debug("start setupL1Hop");
-		OFRule forwardEntry = new OFRule(),
-			   reverseEntry = new OFRule();
+	/**
+	 * Set the transport used to talk to controllers. If only the limits or
+	 * timeouts change, the current transports are retuned in place (see
+	 * {@link PooledHttpTransport#resize}) without disturbing calls in
+	 * progress; if the type changes they are replaced when next used.
+	 * 
+	 * @param maxConnections
+	 *            maximum connections to the controller (pooled transport)
+	 * @param connectTimeout
+	 *            ms
+	 * @param readTimeout
+	 *            ms
+	 */
+	public static void configureTransport(FloodlightTransport.Type type,
+			int maxConnections, int connectTimeout, int readTimeout) {
+		synchronized (FloodlightSDNConnector.class) {
+			if (type == transportType
+					&& maxConnections == FloodlightSDNConnector.maxConnections
+					&& connectTimeout == FloodlightSDNConnector.connectTimeout
+					&& readTimeout == FloodlightSDNConnector.readTimeout)
+				return;
+			FloodlightSDNConnector.maxConnections = maxConnections;
+			FloodlightSDNConnector.connectTimeout = connectTimeout;
+			FloodlightSDNConnector.readTimeout = readTimeout;
+			if (type != transportType) {
+				transportType = type;
+				dropTransports();
+				return;
+			}
 
-		forwardEntry.put("in_port", h.getSrcPort());
-		forwardEntry.put("output", h.getDstPort());
+			for (ResilientTransport t : transports.values()) {
+				FloodlightTransport d = ((MeteredTransport) t.getDelegate())
+						.getDelegate();
+				if (d instanceof PooledHttpTransport)
+					((PooledHttpTransport) d).resize(maxConnections,
+							connectTimeout, readTimeout);
+			}
+			log.info(String.format("Transports retuned: %d connections, "
+					+ "timeouts %d/%d ms", maxConnections, connectTimeout,
+					readTimeout));
+		}
+	}
 
-		reverseEntry.put("in_port", h.getDstPort());
-		reverseEntry.put("output", h.getSrcPort());
+	/**
+	 * Set the retry and circuit breaker policy of controller calls. The
+	 * current transports switch to it right away and keep their breaker
+	 * state.
+	 */
+	public static void configureResilience(ResiliencePolicy policy) {
+		synchronized (FloodlightSDNConnector.class) {
+			if (policy.equals(resiliencePolicy))
+				return;
+			resiliencePolicy = policy;
+			for (ResilientTransport t : transports.values())
+				t.setPolicy(policy);
+			log.info("Controller calls now use " + policy);
+		}
+	}
 
-		ISDNConnectorResponse response;
+	/**
+	 * Close all transports. Requests may be in progress on other threads:
+	 * they complete on the old transports, which are closed once they are
+	 * done with them.
+	 */
+	private static void dropTransports() {
+		Iterator<ResilientTransport> it = transports.values().iterator();
+		while (it.hasNext()) {
+			FloodlightTransport old = it.next();
+			it.remove();
+			old.close();
+		}
+	}
 
-		String entryID = h.hashCode() + "." + h.getNode().getId();
-		
-		forwardEntry.put("name", entryID + ".F");
-		response = installEntry(h.getNode(), forwardEntry);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
+	/**
+	 * Close the transports to controllers that aren't in addresses.
+	 */
+	private static void retainTransports(Collection<String> addresses) {
+		synchronized (FloodlightSDNConnector.class) {
+			Iterator<ResilientTransport> it = transports.values().iterator();
+			while (it.hasNext()) {
+				FloodlightTransport old = it.next();
+				if (addresses.contains(old.getAddress()))
+					continue;
+				it.remove();
+				old.close();
+				log.info("Closed transport to " + old.getAddress());
+			}
+		}
+	}
 
-		reverseEntry.put("name", entryID + ".R");
-		response = installEntry(h.getNode(), reverseEntry);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
+	/**
+	 * @return the transports to the controllers, shared by the connectors,
+	 *         with their retry and circuit breaker state
+	 */
+	public static Collection<ResilientTransport> getTransports() {
+		return Collections.unmodifiableCollection(transports.values());
+	}
+
+	/**
+	 * @return the shared transport to address, building it if needed
+	 */
+	private static FloodlightTransport transportFor(String address)
+			throws IOException {
+		ResilientTransport t = transports.get(address);
+		if (t != null)
+			return t;
+
+		synchronized (FloodlightSDNConnector.class) {
+			t = transports.get(address);
+			if (t != null)
+				return t;
+
+			FloodlightTransport n;
+			if (transportType == FloodlightTransport.Type.RESTLET)
+				n = new RestletTransport(address);
+			else
+				n = new PooledHttpTransport(address, maxConnections,
+						connectTimeout, readTimeout);
+			ResilientTransport r = new ResilientTransport(new MeteredTransport(
+					n, SdnMetrics.getInstance()), resiliencePolicy);
+			transports.put(address, r);
+			log.info("Using " + transportType + " transport to " + address
+					+ " (" + resiliencePolicy + ")");
+			return r;
+		}
+	}
+
+	/**
+	 * @return the transport to the controller owning a switch
+	 */
+	private FloodlightTransport transport(String switchDPID)
+			throws IOException {
+		ControllerRegistry r = controllers;
+		if (r == null)
+			throw new IOException("Controller not set");
+		return transportFor(r.controllerOf(switchDPID));
+	}
+
+	/**
+	 * @return the address of the controller owning a node, or null if no
+	 *         controller was set
+	 */
+	String controllerOf(SDNNode node) {
+		ControllerRegistry r = controllers;
+		return r == null ? null : r.controllerOf(node.getId());
+	}
+
+	private void setupL1Hop(SDNHop h, String circuitID,
+			FlowEntryBatch batch) throws Exception {
+
+		log.debug("start setupL1Hop");
+
+		OFRule forwardEntry = OFRule.builder()
+				.inPort(h.getSrcPort())
+				.output(h.getDstPort())
+				.name(entryName(h, circuitID, EntryNames.KIND_L1,
+						Direction.FORWARD)).build();
+		batch.install(h, forwardEntry);
+
+		OFRule reverseEntry = OFRule.builder()
+				.inPort(h.getDstPort())
+				.output(h.getSrcPort())
+				.name(entryName(h, circuitID, EntryNames.KIND_L1,
+						Direction.REVERSE)).build();
+		batch.install(h, reverseEntry);
 		
 		log.debug("end setupL1Hop");
-		return ISDNConnectorResponse.SUCCESS;
 	}
 
-	private ISDNConnectorResponse teardownL1Hop(SDNHop h, String circuitID) throws Exception {
-		OFRule entry = new OFRule();
-		ISDNConnectorResponse response;
-	
-		String entryID = h.hashCode() + "." + h.getNode().getId(); 
-		entry.put("name", entryID + ".F");
-		response = deleteEntry(h.getNode(), entry);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
-	
-		entry.put("name", entryID + ".R");
-		response = deleteEntry(h.getNode(), entry);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
-		
-		return ISDNConnectorResponse.SUCCESS; 
+	private void teardownL1Hop(SDNHop h, String circuitID,
+			FlowEntryBatch batch) throws Exception {
+		batch.delete(h, namedEntry(entryName(h, circuitID,
+				EntryNames.KIND_L1, Direction.FORWARD)));
+		batch.delete(h, namedEntry(entryName(h, circuitID,
+				EntryNames.KIND_L1, Direction.REVERSE)));
 	}
 
-	private ISDNConnectorResponse setupL2Hop(SDNHop h,
-			String circuitID, OFRule rule) throws Exception {
+	private void setupL2Hop(SDNHop h, String circuitID, OFRule rule,
+			FlowEntryBatch batch) throws Exception {
 		log.debug("start setupL2Hop");
 
-		OFRule forwardEntry = new OFRule(rule),
-			   reverseEntry = rule.reverse();
-
-		ISDNConnectorResponse response;
-		
-		String entryID = circuitID + ".match." + h.hashCode();
+		OFRule.Builder forwardEntry = rule.toBuilder(),
+			   reverseEntry = rule.reverse().toBuilder();
 
 		if (!h.isEntryHop()) { // on entry hops, the match decides 
 							   // what goes into the circuit
-			forwardEntry.put("in_port", h.getSrcPort());
+			forwardEntry.inPort(h.getSrcPort());
 		}
 		
-		forwardEntry.put("output", h.getDstPort());
-		forwardEntry.put("name", entryID + ".F");
+		forwardEntry.output(h.getDstPort());
+		forwardEntry.name(entryName(h, circuitID, EntryNames.KIND_L2,
+				Direction.FORWARD));
 		
 		if (!h.isExitHop()) {
-			reverseEntry.put("in_port", h.getDstPort());
+			reverseEntry.inPort(h.getDstPort());
 		}
-		reverseEntry.put("output", h.getSrcPort());
-		reverseEntry.put("name", entryID + ".R");
+		reverseEntry.output(h.getSrcPort());
+		reverseEntry.name(entryName(h, circuitID, EntryNames.KIND_L2,
+				Direction.REVERSE));
 		
 		if ((h.isEntryHop() || h.isExitHop())
 			&& rule.matchSize() < 1) {
@@ -168,100 +395,82 @@ public class FloodlightSDNConnector implements ISDNConnector {
 			// end (entry and exit) switches decided what is going 
 			// through the circuit.
 			log.debug("No match found, skipping entry/exit hop");
-			return ISDNConnectorResponse.SUCCESS;
+			return;
 		}
 		
 		if (!h.isExitHop()) { // Exit hops don't have forward entries
-			response = installEntry(h.getNode(), forwardEntry);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
+			batch.install(h, forwardEntry.build());
 		}
 
 		if (!h.isEntryHop()) { // Entry hops don't have reverse entries
-			response = installEntry(h.getNode(), reverseEntry);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
+			batch.install(h, reverseEntry.build());
 		}
 		log.debug("end setupL2Hop");
-		return ISDNConnectorResponse.SUCCESS;
 	}
 	
-	private ISDNConnectorResponse teardownL2Hop(SDNHop h, String circuitID) throws Exception {
-		OFRule entry = new OFRule();
-		ISDNConnectorResponse response;
-	
-		String entryID = circuitID + ".match." + h.hashCode();
-		entry.put("name", entryID + ".F");
-		response = deleteEntry(h.getNode(), entry);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
-		
-		entry.put("name", entryID + ".R");
-		response = deleteEntry(h.getNode(), entry);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
-		
-		return ISDNConnectorResponse.SUCCESS; 
+	private void teardownL2Hop(SDNHop h, String circuitID,
+			FlowEntryBatch batch) throws Exception {
+		batch.delete(h, namedEntry(entryName(h, circuitID,
+				EntryNames.KIND_L2, Direction.FORWARD)));
+		batch.delete(h, namedEntry(entryName(h, circuitID,
+				EntryNames.KIND_L2, Direction.REVERSE)));
 	}
 
-	protected ISDNConnectorResponse setupL2Bypass(SDNHop h,
-			String circuitID, OFRule rule) throws Exception {
+	protected void setupL2Bypass(SDNHop h, String circuitID, OFRule rule,
+			FlowEntryBatch batch) throws Exception {
 		
 		if (h.isEntryHop() || h.isExitHop()) {
 			throw new Exception("Can't bypass an Entry/Exit hop");
 		}
 		
-		OFRule forwardEntry = new OFRule(rule),
-			   reverseEntry = rule.reverse();
-		
-		ISDNConnectorResponse response;
+		// rules are immutable, so the builders are shared by both protocols
+		OFRule.Builder forwardEntry = rule.toBuilder()
+				.inPort(h.getSrcPort())
+				.output(h.getDstPort());
+		OFRule.Builder reverseEntry = rule.reverse().toBuilder()
+				.inPort(h.getDstPort())
+				.output(h.getSrcPort());
 
-		forwardEntry.put("in_port", h.getSrcPort());
-		forwardEntry.put("output", h.getDstPort());
-		
-		reverseEntry.put("in_port", h.getDstPort());
-		reverseEntry.put("output", h.getSrcPort());
-		
 		for (FLCircuitProto p : FLCircuitProto.values()) {
-			String entryID = circuitID + "." + p.toString() +  h.hashCode();
-
-			forwardEntry.put("name", entryID + ".F");
-			forwardEntry.put("dl_type", p.value);
+			forwardEntry.name(entryName(h, circuitID, p.kind,
+					Direction.FORWARD));
+			forwardEntry.set(Field.DL_TYPE, p.value);
 
-			reverseEntry.put("name", entryID + ".R");
-			reverseEntry.put("dl_type", p.value);
+			reverseEntry.name(entryName(h, circuitID, p.kind,
+					Direction.REVERSE));
+			reverseEntry.set(Field.DL_TYPE, p.value);
 
-			response = installEntry(h.getNode(), forwardEntry);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
-	
-			response = installEntry(h.getNode(), reverseEntry);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
+			batch.install(h, forwardEntry.build());
+			batch.install(h, reverseEntry.build());
 		}
-
-		return ISDNConnectorResponse.SUCCESS;
 	}
 
-	protected ISDNConnectorResponse teardownL2Bypass(SDNHop h, String circuitID) throws Exception {
-		OFRule entry = new OFRule();
-		ISDNConnectorResponse response;
-	
+	protected void teardownL2Bypass(SDNHop h, String circuitID,
+			FlowEntryBatch batch) throws Exception {
 		for (FLCircuitProto p : FLCircuitProto.values()) {
-			String entryID = circuitID + "." + p.toString() +  h.hashCode();
-	
-			entry.put("name", entryID + ".F");
-			response = deleteEntry(h.getNode(), entry);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
-	
-			entry.put("name", entryID + ".R");
-			response = deleteEntry(h.getNode(), entry);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
+			batch.delete(h, namedEntry(entryName(h, circuitID, p.kind,
+					Direction.FORWARD)));
+			batch.delete(h, namedEntry(entryName(h, circuitID, p.kind,
+					Direction.REVERSE)));
 		}
-	
-		return ISDNConnectorResponse.SUCCESS; 
+	}
+
+	/**
+	 * @return the name of an entry of hop h, see {@link EntryNames}
+	 */
+	private static String entryName(SDNHop h, String circuitID, String kind,
+			Direction direction) {
+		if (isSharedHop(h))
+			return EntryNames.shared(h, kind, direction);
+		return EntryNames.of(circuitID, h, kind, direction);
+	}
+
+	/**
+	 * @return an OFRule carrying only the entry name, which is all that is
+	 *         needed to delete an entry
+	 */
+	private static OFRule namedEntry(String name) {
+		return OFRule.named(name);
 	}
 
 	/**
@@ -277,110 +486,691 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	public final class CircuitSetupOrder implements Comparator<SDNObject> {
 		@Override
 		public int compare(SDNObject link1, SDNObject link2) {
-			SDNCapability[] priority = { SDNCapability.L1, SDNCapability.MPLS,
-					SDNCapability.VLAN, SDNCapability.L2, SDNCapability.L3 };
-	
-			int link1MaxCap = 0, link2MaxCap = 0, i = 0;
-			for (SDNCapability c : priority) {
-				if (link1.hasCapability(c))
-					link1MaxCap = i;
-				if (link2.hasCapability(c))
-					link2MaxCap = i;
-				i++;
+			return capabilityTier(link1) - capabilityTier(link2);
+		}
+	}
+
+	private static final SDNCapability[] TIER_PRIORITY = { SDNCapability.L1,
+			SDNCapability.MPLS, SDNCapability.VLAN, SDNCapability.L2,
+			SDNCapability.L3 };
+
+	/**
+	 * @return the position of the highest capability of o in the
+	 *         {@link CircuitSetupOrder} priority list
+	 */
+	static int capabilityTier(SDNObject o) {
+		int maxCap = 0;
+		for (int i = 0; i < TIER_PRIORITY.length; i++) {
+			if (o.hasCapability(TIER_PRIORITY[i]))
+				maxCap = i;
+		}
+		return maxCap;
+	}
+
+	/**
+	 * Hops on L0/1 devices (DPIDs starting with 0x11) can be shared by
+	 * several circuits, so they are reference counted instead of being
+	 * programmed and removed by every circuit.
+	 */
+	private static boolean isSharedHop(SDNHop h) {
+		return h.getNode().getId().startsWith("11");
+	}
+
+	/**
+	 * @return the keys of the shared hops among the hops
+	 */
+	private static List<String> sharedHopKeys(Collection<SDNHop> hops) {
+		List<String> keys = new ArrayList<String>();
+		if (hops == null)
+			return keys;
+		for (SDNHop h : hops) {
+			if (isSharedHop(h))
+				keys.add(HopRefCounter.keyOf(h));
+		}
+		return keys;
+	}
+
+	/**
+	 * Lock the switches the batches store entries on against being cleared
+	 * by {@link #bulkDelete} until the entries are indexed.
+	 */
+	private static KeyLocks.Held lockSwitches(List<FlowEntryBatch> batches) {
+		Set<String> dpids = new HashSet<String>();
+		for (FlowEntryBatch batch : batches) {
+			for (FlowEntry e : batch.getEntries()) {
+				if (e.getOperation() == FlowEntry.Operation.INSTALL)
+					dpids.add(toDPID(e.getNode()));
 			}
-			return link1MaxCap - link2MaxCap;
 		}
+		return switchLocks.lockShared(dpids);
+	}
+
+	/**
+	 * @return the reference counts of shared hops
+	 */
+	public static HopRefCounter getHopRefCounter() {
+		return hopRefCount;
+	}
+
+	/**
+	 * @return the entries currently installed by OSCARS
+	 */
+	public static FlowEntryIndex getEntryIndex() {
+		return entryIndex;
+	}
+
+	/**
+	 * Record every entry install/delete and hop reference count change in
+	 * the given journal. The journal should already have been replayed into
+	 * {@link #getEntryIndex()} and {@link #getHopRefCounter()}.
+	 */
+	public static void setJournal(FlowJournal j) {
+		journal = j;
+	}
+
+	/**
+	 * Take a reference on a shared hop for a circuit.
+	 * 
+	 * @return the number of references, with this one: 1 if the hop still
+	 *         has to be programmed
+	 */
+	private static int takeHop(String circuitID, String hopKey) {
+		int references = hopRefCount.acquire(hopKey);
+		entryIndex.hold(circuitID, hopKey);
+		FlowJournal j = journal;
+		if (j != null) {
+			// the count returned, reading it again could see a later change
+			j.refCount(hopKey, references);
+			j.held(circuitID, hopKey, true);
+		}
+		return references;
+	}
+
+	/**
+	 * Give back a circuit's reference on a shared hop.
+	 * 
+	 * @return the number of references left: 0 if the hop must be removed,
+	 *         -1 if it had none
+	 */
+	private static int dropHop(String circuitID, String hopKey) {
+		int references = hopRefCount.release(hopKey);
+		boolean held = entryIndex.unhold(circuitID, hopKey);
+		FlowJournal j = journal;
+		if (j != null) {
+			if (references >= 0)
+				j.refCount(hopKey, references);
+			if (held)
+				j.held(circuitID, hopKey, false);
+		}
+		return references;
+	}
+
+	public SetupMode getSetupMode() {
+		return setupMode;
+	}
+
+	public void setSetupMode(SetupMode setupMode) {
+		this.setupMode = setupMode;
+	}
+
+	/**
+	 * @return the maximum number of requests outstanding on each controller
+	 *         while pushing a circuit
+	 */
+	public int getMaxInFlight() {
+		return pusher.getMaxInFlight();
+	}
+
+	/**
+	 * Change the number of requests outstanding on each controller while
+	 * pushing circuits, including the circuits being pushed.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		pusher.setMaxInFlight(maxInFlight);
+	}
+
+	public TeardownMode getTeardownMode() {
+		return teardownMode;
+	}
+
+	public void setTeardownMode(TeardownMode teardownMode) {
+		this.teardownMode = teardownMode;
+	}
+
+	/**
+	 * Push the batches in order, waiting for each one to complete before
+	 * starting the next.
+	 */
+	private ISDNConnectorResponse pushInOrder(List<FlowEntryBatch> batches,
+			SetupTransaction tx) {
+		for (FlowEntryBatch batch : batches) {
+			ISDNConnectorResponse response = pusher.push(batch, tx);
+			if (response != ISDNConnectorResponse.SUCCESS)
+				return response;
+		}
+		return ISDNConnectorResponse.SUCCESS;
+	}
+
+	/**
+	 * Undo a failed setup: give back the hop references it took and delete,
+	 * in parallel across switches, every entry it installed or tried to
+	 * install. Entries of a shared hop stay if another circuit still
+	 * references the hop.
+	 */
+	private RollbackReport rollback(SetupTransaction tx) {
+		tx.abort();
+		String circuitID = tx.getCircuitID();
+
+		List<String> released = new ArrayList<String>();
+		Set<String> stillShared = new HashSet<String>();
+		for (String key : tx.getAcquiredHops()) {
+			int references = dropHop(circuitID, key);
+			if (references < 0)
+				continue;
+			released.add(key);
+			if (references > 0)
+				stillShared.add(key);
+		}
+
+		List<FlowEntry> applied = tx.getInstalled();
+		applied.addAll(tx.getUncertain());
+		// delete in the reverse order of installation
+		Collections.reverse(applied);
+
+		FlowEntryBatch undo = new FlowEntryBatch(circuitID);
+		List<FlowEntry> kept = new ArrayList<FlowEntry>();
+		for (FlowEntry e : applied) {
+			if (stillShared.contains(e.getHopKey()))
+				kept.add(e);
+			else
+				undo.undo(e);
+		}
+
+		List<FlowEntry> notRemoved = pusher.pushAll(undo);
+		List<FlowEntry> removed = new ArrayList<FlowEntry>();
+		Set<String> failedNames = new HashSet<String>();
+		for (FlowEntry e : notRemoved)
+			failedNames.add(e.getNode().getId() + "/" + e.getName());
+		for (FlowEntry e : undo.getEntries()) {
+			if (!failedNames.contains(e.getNode().getId() + "/" + e.getName()))
+				removed.add(e);
+		}
+
+		entryIndex.releaseCookie(circuitID);
+
+		RollbackReport report = new RollbackReport(circuitID, removed,
+				notRemoved, kept, released);
+		synchronized (rollbackReports) {
+			rollbackReports.put(circuitID, report);
+		}
+		if (report.isComplete())
+			log.info(report);
+		else
+			log.error(report);
+		return report;
+	}
+
+	/**
+	 * @return the report of the last rollback of a setup of the circuit, or
+	 *         null if none of the recent rollbacks was for this circuit
+	 */
+	public static RollbackReport getRollbackReport(String circuitID) {
+		synchronized (rollbackReports) {
+			return rollbackReports.get(circuitID);
+		}
+	}
+
+	/**
+	 * Reserve room in the flow tables of the switches for the entries a
+	 * setup will install, before anything is pushed.
+	 * 
+	 * @return the reservation, to release once the entries are pushed or
+	 *         rolled back, or null if they don't fit
+	 */
+	private static Reservation admit(String circuitID,
+			List<FlowEntryBatch> batches) {
+		try {
+			return flowTables.reserve(circuitID, batches);
+		} catch (FlowTableFullException e) {
+			log.error(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Set how many entries may be installed on each switch. Setups that
+	 * would go over are refused; entries already installed stay.
+	 */
+	public static void configureCapacity(FlowTableCapacity capacity) {
+		if (capacity.equals(flowTables.getCapacity()))
+			return;
+		flowTables.setCapacity(capacity);
+		log.info("Flow tables: " + capacity);
+	}
+
+	/**
+	 * @return the accounting of the entries on each switch
+	 */
+	public static FlowTableLedger getFlowTables() {
+		return flowTables;
 	}
 
 	@Override
 	public ISDNConnectorResponse setupCircuit(List<SDNHop> hops,
 			String circuitID, OFRule rule) throws Exception {
-		if (controller == null) {
+		busyCircuits.add(circuitID);
+		long start = System.nanoTime();
+		ISDNConnectorResponse response = ISDNConnectorResponse.FAILURE;
+		try {
+			response = doSetupCircuit(hops, circuitID, rule);
+			return response;
+		} finally {
+			busyCircuits.remove(circuitID);
+			SdnMetrics.getInstance().circuitDone(Operation.SETUP, circuitID,
+					start, response);
+		}
+	}
+
+	private ISDNConnectorResponse doSetupCircuit(List<SDNHop> hops,
+			String circuitID, OFRule rule) throws Exception {
+		if (controllers == null) {
 			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
 		}
 
+		// a circuit sharing a hop with this one waits until its entries are
+		// pushed, or rolled back and the hop is first again
+		KeyLocks.Held held = hopLocks.lock(sharedHopKeys(hops));
+		try {
+			return setupLocked(hops, circuitID, rule);
+		} finally {
+			held.unlock();
+		}
+	}
+
+	private ISDNConnectorResponse setupLocked(List<SDNHop> hops,
+			String circuitID, OFRule rule) throws Exception {
 		// Get hop setup order.
 		Collections.sort(hops, new CircuitSetupOrder());
 
-		ISDNConnectorResponse response;
-		
-		for (SDNHop h : hops) {
-			if (h.getNode().getId().matches("^11.*")) {
-				if (hopRefCount.containsKey(h)) {
+		// Entries are only collected here and pushed below, either all at
+		// once or one batch per capability tier
+		List<FlowEntryBatch> batches = new ArrayList<FlowEntryBatch>();
+		FlowEntryBatch batch = new FlowEntryBatch(circuitID);
+		batches.add(batch);
+		int tier = -1;
+		SetupTransaction tx = new SetupTransaction(circuitID);
+
+		try {
+			for (SDNHop h : hops) {
+				if (setupMode == SetupMode.TIERED) {
+					int hopTier = capabilityTier(h);
+					if (tier != -1 && hopTier != tier) {
+						batch = new FlowEntryBatch(circuitID);
+						batches.add(batch);
+					}
+					tier = hopTier;
+				}
+
+				if (isSharedHop(h)) {
+					String key = HopRefCounter.keyOf(h);
+					int references = takeHop(circuitID, key);
+					tx.acquired(key);
+					if (references > 1) {
+						log.debug(String.format(
+								"Increased hopRefcount for %s to %d", 
+								key, references));
+						continue;
+					}
 					log.debug(String.format(
-							"Increasing hopRefcount for %s to %d", 
-							h, hopRefCount.get(h) + 1));
-					hopRefCount.put(h, 
-							new Integer(hopRefCount.get(h) + 1));
-					continue;
+							"Setting hopRefcount for %s to %d", key, 1));
 				}
-				log.debug(String.format(
-						"Setting hopRefcount for %s to %d", h, 1));
-				hopRefCount.put(h, new Integer(1));
+
+				setupHop(h, circuitID, rule, batch);
 			}
+		} catch (Exception e) {
+			rollback(tx);
+			throw e;
+		}
 
-			// Check for capabilities
-			if (h.getCapabilities().contains(SDNCapability.L2) && rule != null) {
-				if (!h.isEntryHop() && !h.isExitHop())
-					response = setupL2Bypass(h, circuitID, rule);
-				else
-					response = setupL2Hop(h, circuitID, rule);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+		Reservation room = admit(circuitID, batches);
+		if (room == null) {
+			rollback(tx);
+			return ISDNConnectorResponse.FAILURE;
+		}
+		KeyLocks.Held switches = lockSwitches(batches);
+		try {
+			ISDNConnectorResponse response = pushInOrder(batches, tx);
+			if (response != ISDNConnectorResponse.SUCCESS)
+				rollback(tx);
+			return response;
+		} finally {
+			switches.unlock();
+			flowTables.release(room);
+		}
+	}
+
+	/**
+	 * Collect the entries of a hop, according to its capabilities.
+	 */
+	private void setupHop(SDNHop h, String circuitID, OFRule rule,
+			FlowEntryBatch batch) throws Exception {
+		if (h.getCapabilities().contains(SDNCapability.L2) && rule != null) {
+			if (!h.isEntryHop() && !h.isExitHop())
+				setupL2Bypass(h, circuitID, rule, batch);
+			else
+				setupL2Hop(h, circuitID, rule, batch);
+		}
+		else {
+			setupL1Hop(h, circuitID, batch);
+		}
+	}
+
+	/**
+	 * Modify a circuit make-before-break. The entries the circuit needs for
+	 * its new hops and rule are compared with the entries it has installed
+	 * (see {@link #getEntryIndex()}): entries that didn't change are left
+	 * alone, new and changed entries are installed next to the current ones,
+	 * under the next generation of their name (see {@link EntryNames}) and at
+	 * a higher priority, and only once all of them are in place are the
+	 * entries they supersede deleted. Switches whose entries don't change
+	 * aren't contacted.
+	 * 
+	 * Shared hops are compared by hop: the circuit takes a reference on the
+	 * shared hops it starts using and gives back the references of the ones
+	 * it stops using, after the new entries are in place. If oldHops is
+	 * null, e.g. after a restart, the shared hops the circuit holds are
+	 * taken from the index (see {@link FlowEntryIndex#hopsHeldBy}), which
+	 * the journal keeps across restarts.
+	 * 
+	 * If the new entries can't be installed they are rolled back and the
+	 * circuit stays as it was.
+	 */
+	@Override
+	public ISDNConnectorResponse modifyCircuit(List<SDNHop> oldHops,
+			List<SDNHop> hops, String circuitID, OFRule rule) throws Exception {
+		busyCircuits.add(circuitID);
+		long start = System.nanoTime();
+		ISDNConnectorResponse response = ISDNConnectorResponse.FAILURE;
+		try {
+			response = doModifyCircuit(oldHops, hops, circuitID, rule);
+			return response;
+		} finally {
+			busyCircuits.remove(circuitID);
+			SdnMetrics.getInstance().circuitDone(Operation.MODIFY, circuitID,
+					start, response);
+		}
+	}
+
+	private ISDNConnectorResponse doModifyCircuit(List<SDNHop> oldHops,
+			List<SDNHop> hops, String circuitID, OFRule rule) throws Exception {
+		if (controllers == null) {
+			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
+		}
+
+		// the shared hops the circuit starts and stops using
+		List<String> sharedKeys = sharedHopKeys(hops);
+		sharedKeys.addAll(sharedHopKeys(oldHops));
+		sharedKeys.addAll(entryIndex.hopsHeldBy(circuitID));
+		KeyLocks.Held held = hopLocks.lock(sharedKeys);
+		try {
+			return modifyLocked(oldHops, hops, circuitID, rule);
+		} finally {
+			held.unlock();
+		}
+	}
+
+	private ISDNConnectorResponse modifyLocked(List<SDNHop> oldHops,
+			List<SDNHop> hops, String circuitID, OFRule rule) throws Exception {
+		Collections.sort(hops, new CircuitSetupOrder());
+
+		// the circuit's own entries, by switch and name without generation
+		Map<String, IndexedEntry> current = new LinkedHashMap<String, IndexedEntry>();
+		int generation = 0;
+		for (IndexedEntry e : entryIndex.entriesOf(circuitID)) {
+			if (EntryNames.SHARED.equals(EntryNames.circuitOf(e.getName())))
+				continue;
+			current.put(FlowEntryIndex.entryKey(e.getDPID(),
+					EntryNames.baseName(e.getName())), e);
+			generation = Math.max(generation,
+					EntryNames.generationOf(e.getName()));
+		}
+		generation++;
+		int priority = priorityOf(generation);
+
+		// switches of both paths, to address the entries to delete, and
+		// the shared hops of the old path, by key; hops only known from the
+		// index have no SDNHop
+		Map<String, SDNNode> nodes = new HashMap<String, SDNNode>();
+		Map<String, SDNHop> oldShared = new LinkedHashMap<String, SDNHop>();
+		if (oldHops != null) {
+			for (SDNHop h : oldHops) {
+				nodes.put(toDPID(h.getNode()), h.getNode());
+				if (isSharedHop(h))
+					oldShared.put(HopRefCounter.keyOf(h), h);
 			}
-			else {
-				response = setupL1Hop(h, circuitID);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+		} else {
+			for (String key : entryIndex.hopsHeldBy(circuitID))
+				oldShared.put(key, null);
+		}
+		for (SDNHop h : hops)
+			nodes.put(toDPID(h.getNode()), h.getNode());
+
+		FlowEntryBatch wanted = new FlowEntryBatch(circuitID);
+		SetupTransaction tx = new SetupTransaction(circuitID);
+		try {
+			for (SDNHop h : hops) {
+				if (isSharedHop(h)) {
+					String key = HopRefCounter.keyOf(h);
+					if (oldShared.containsKey(key)) {
+						oldShared.remove(key);
+						continue;
+					}
+					int references = takeHop(circuitID, key);
+					tx.acquired(key);
+					if (references > 1)
+						continue;
+				}
+				setupHop(h, circuitID, rule, wanted);
+			}
+		} catch (Exception e) {
+			rollback(tx);
+			throw e;
+		}
+
+		// make: new and changed entries
+		FlowEntryBatch make = new FlowEntryBatch(circuitID);
+		for (FlowEntry e : wanted.getEntries()) {
+			if (EntryNames.SHARED.equals(EntryNames.circuitOf(e.getName()))) {
+				make.install(e, e.getRule());
+				continue;
+			}
+			String key = FlowEntryIndex.entryKey(toDPID(e.getNode()),
+					e.getName());
+			IndexedEntry installed = current.get(key);
+			if (installed != null && isInstalledAs(e, installed)) {
+				current.remove(key);
+				continue;
+			}
+			make.install(e, e.getRule().toBuilder()
+					.name(EntryNames.withGeneration(e.getName(), generation))
+					.priority(priority).build());
+		}
+
+		// the new entries sit next to the ones they supersede until these
+		// are deleted, so they need room of their own
+		Reservation room = admit(circuitID, Collections.singletonList(make));
+		if (room == null) {
+			rollback(tx);
+			return ISDNConnectorResponse.FAILURE;
+		}
+		KeyLocks.Held switches = lockSwitches(Collections.singletonList(make));
+		try {
+			ISDNConnectorResponse response = pusher.push(make, tx);
+			if (response != ISDNConnectorResponse.SUCCESS) {
+				rollback(tx);
+				return response;
+			}
+		} finally {
+			switches.unlock();
+			flowTables.release(room);
+		}
+
+		// break: entries the new ones supersede and shared hops left
+		FlowEntryBatch stale = new FlowEntryBatch(circuitID);
+		List<IndexedEntry> unaddressed = new ArrayList<IndexedEntry>();
+		for (IndexedEntry e : current.values()) {
+			SDNNode node = nodes.get(e.getDPID());
+			if (node == null)
+				unaddressed.add(e);
+			else
+				stale.undo(new FlowEntry(circuitID, e.getHopKey(), node,
+						namedEntry(e.getName()), FlowEntry.Operation.INSTALL));
+		}
+		for (Map.Entry<String, SDNHop> left : oldShared.entrySet()) {
+			String key = left.getKey();
+			int references = dropHop(circuitID, key);
+			if (references != 0)
+				continue;
+			for (IndexedEntry e : entryIndex.entriesOfHop(key)) {
+				SDNNode node = left.getValue() != null ? left.getValue()
+						.getNode() : nodes.get(e.getDPID());
+				if (node == null)
+					unaddressed.add(e);
+				else
+					stale.undo(new FlowEntry(circuitID, key, node,
+							namedEntry(e.getName()), FlowEntry.Operation.INSTALL));
 			}
 		}
 
+		List<String> notRemoved = new ArrayList<String>();
+		for (FlowEntry e : pusher.pushAll(stale))
+			notRemoved.add(e.toString());
+		for (IndexedEntry e : unaddressed) {
+			// on a switch the new path doesn't use, known by DPID only
+			ISDNConnectorResponse deleted = deleteEntry(e.getDPID(),
+					e.getName());
+			if (deleted == ISDNConnectorResponse.SUCCESS)
+				forget(e.getDPID(), e.getName());
+			else
+				notRemoved.add(e.toString());
+		}
+
+		log.info(String.format(
+				"Modified %s: %d entries installed, %d unchanged, %d removed",
+				circuitID, make.size(), wanted.size() - make.size(),
+				stale.size() + unaddressed.size() - notRemoved.size()));
+		if (!notRemoved.isEmpty())
+			// the circuit already runs on the new entries
+			log.error("Couldn't remove superseded entries of " + circuitID
+					+ ": " + notRemoved);
 		return ISDNConnectorResponse.SUCCESS;
 	}
 
+	/**
+	 * @return the priority of entries of a generation: generation 0 leaves
+	 *         it to the controller, later ones get higher priorities so they
+	 *         take over from the entries they supersede
+	 */
+	private static int priorityOf(int generation) {
+		if (generation == 0)
+			return -1;
+		return Math.min(OFRule.DEFAULT_PRIORITY + generation,
+				OFRule.MAX_PRIORITY);
+	}
+
+	/**
+	 * @return true if the installed entry is what the planned entry would be
+	 *         with the installed entry's name, priority and cookie
+	 */
+	private static boolean isInstalledAs(FlowEntry planned,
+			IndexedEntry installed) throws IOException {
+		OFRule rule = planned.getRule().toBuilder()
+				.name(installed.getName())
+				.priority(priorityOf(EntryNames.generationOf(installed
+						.getName()))).build();
+		return FloodlightRequestWriter.storeRequest(installed.getDPID(), rule,
+				installed.getCookie()).toString().equals(installed.getRequest());
+	}
+
 	@Override
 	public ISDNConnectorResponse teardownCircuit(List<SDNHop> hops,
 			String circuitID) throws Exception {
+		busyCircuits.add(circuitID);
+		long start = System.nanoTime();
+		ISDNConnectorResponse response = ISDNConnectorResponse.FAILURE;
+		try {
+			response = doTeardownCircuit(hops, circuitID);
+			return response;
+		} finally {
+			busyCircuits.remove(circuitID);
+			SdnMetrics.getInstance().circuitDone(Operation.TEARDOWN, circuitID,
+					start, response);
+		}
+	}
+
+	private ISDNConnectorResponse doTeardownCircuit(List<SDNHop> hops,
+			String circuitID) throws Exception {
 
-		if (controller == null) {
+		if (controllers == null) {
 			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
 		}
 
-		ISDNConnectorResponse response;
+		// a circuit taking one of the hops waits until its entries are
+		// deleted, then programs it again
+		KeyLocks.Held held = hopLocks.lock(sharedHopKeys(hops));
+		try {
+			return teardownLocked(hops, circuitID);
+		} finally {
+			held.unlock();
+		}
+	}
+
+	private ISDNConnectorResponse teardownLocked(List<SDNHop> hops,
+			String circuitID) throws Exception {
+		FlowEntryBatch batch = new FlowEntryBatch(circuitID);
 		for (SDNHop h : hops) {
-			if (h.getNode().getId().matches("^11.*")) {
-				if (!hopRefCount.containsKey(h)) {
+			String key = HopRefCounter.keyOf(h);
+			if (isSharedHop(h)) {
+				int references = dropHop(circuitID, key);
+				if (references < 0) {
 					log.warn("FloodlightSDNConnector: where this hop "
-							+ h + " came from?");
-				} else if (hopRefCount.get(h) > 1) {
-					hopRefCount.put(h, new Integer(hopRefCount.get(h) - 1));
-					log.debug(String.format("Decreasing hopRefcount for %s to %d", 
-							h, hopRefCount.get(h)));
+							+ key + " came from?");
+				} else if (references > 0) {
+					log.debug(String.format("Decreased hopRefcount for %s to %d", 
+							key, references));
 					continue;
 				} else {
-					log.debug(String.format("Removing hopRefcount for %s", h));
-					hopRefCount.remove(h);
+					log.debug(String.format("Removing hopRefcount for %s", key));
 				}
 			}
+
+			// Delete exactly what was installed for this hop, if we know it.
+			// Entries of shared hops may have been installed by another
+			// circuit.
+			List<IndexedEntry> installed = isSharedHop(h) ? entryIndex
+					.entriesOfHop(key) : entryIndex.entriesOf(circuitID, key);
+			if (!installed.isEmpty()) {
+				for (IndexedEntry e : installed)
+					batch.delete(h, namedEntry(e.getName()));
+				continue;
+			}
 			
 
 			// Check for capabilities
 			if (h.getCapabilities().contains(SDNCapability.L2)) {
 				if (!h.isEntryHop() && !h.isExitHop())
-					response = teardownL2Bypass(h, circuitID);
+					teardownL2Bypass(h, circuitID, batch);
 				else
-					response = teardownL2Hop(h, circuitID);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+					teardownL2Hop(h, circuitID, batch);
 			}
 			else {
-				response = teardownL1Hop(h, circuitID);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+				teardownL1Hop(h, circuitID, batch);
 			}
 		}
 
-		return ISDNConnectorResponse.SUCCESS;
+		if (teardownMode == TeardownMode.BULK)
+			return pusher.deleteBySwitch(batch);
+		return pusher.push(batch);
 	}
 
 	// @formatter:off
@@ -390,15 +1180,20 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	 * 
 	 * {
 	 * 	"switch": "00:00:00:00:00:00:00:07",
-	 * 	"name":"00:00:00:00:00:00:00:07.test.f",
+	 * 	"name":"es.net-1234.7.1-3.l1.F",
 	 * 	"ether-type":"0x800",
-	 * 	"cookie":"0",
+	 * 	"cookie":"1257595871",
 	 * 	"priority":"32768",
 	 * 	"ingress-port":"1",
 	 * 	"active":"true",
 	 * 	"actions":"output=3"
 	 * }
 	 * 
+	 * If the entry is named after a reservation (see {@link EntryNames}) it
+	 * carries the reservation's cookie, which is only allocated by the
+	 * entries pushed through setupCircuit: other entries get the hash of the
+	 * GRI.
+	 * 
 	 * @param node
 	 *            the SDNNode that will receive the new entry
 	 * @param rule
@@ -407,32 +1202,46 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	@Override
 	public ISDNConnectorResponse installEntry(SDNNode node,
 			OFRule rule) throws Exception {
-		if (controller == null) {
+		if (controllers == null) {
 			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
 		}
-		if (!rule.containsKey("name")) {
+		if (rule.getName() == null) {
 			return ISDNConnectorResponse.FAILURE;
 		}
 
+		String circuitID = EntryNames.circuitOf(rule.getName());
+		long cookie = EntryCookies.NONE;
+		if (EntryNames.SHARED.equals(circuitID))
+			cookie = EntryCookies.SHARED;
+		else if (circuitID != null) {
+			cookie = entryIndex.cookieOf(circuitID);
+			if (cookie == EntryCookies.NONE)
+				cookie = EntryCookies.hash(circuitID);
+		}
+
+		String switchDPID = toDPID(node);
+		KeyLocks.Held held = switchLocks.lockShared(Collections
+				.singleton(switchDPID));
 		try {
-			String switchDPID = node.getId().replaceAll("\\.", ":");
-			String jsonRequest = String.format("{\"switch\":\"%s\"", switchDPID);
-			
-			for (Map.Entry<String,String> entry : rule.floodlightEntrySet()) {
-				  String key = entry.getKey();
-				  String value = entry.getValue();
-				  jsonRequest += String.format(",\"%s\":\"%s\"", key, value);
-				}
-			jsonRequest += "}";
-		
-	 		store(jsonRequest);
+	 		store(switchDPID, FloodlightRequestWriter.storeRequest(switchDPID,
+	 				rule, cookie));
 		}
 		catch (Exception e) {
 			log.warn("Couldn't install entry: " + e.getMessage());
 			return ISDNConnectorResponse.FAILURE;
 		}
+		finally {
+			held.unlock();
+		}
 		return ISDNConnectorResponse.SUCCESS;
 	}
+
+	/**
+	 * @return the node id formatted as a colon separated DPID
+	 */
+	private static String toDPID(SDNNode node) {
+		return FloodlightRequestWriter.toDPID(node);
+	}
 	
 	/**
      * Requests Floodlight staticflowentrypusher to delete a given entry. The resulting
@@ -451,21 +1260,17 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	@Override
 	public ISDNConnectorResponse deleteEntry(SDNNode node,
 			OFRule rule) throws Exception {
-		if (controller == null) {
+		return deleteEntry(toDPID(node), rule.getName());
+	}
+
+	private ISDNConnectorResponse deleteEntry(String switchDPID, String name) {
+		if (controllers == null) {
 			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
 		}
 		
-    	String baseJSONRequest = "{"
-    			+ "\"name\":\"{name}\","
-    			+ "\"switch\":\"{switch}\""
-    			+ "}";
-
-    	String switchDPID = node.getId().replaceAll("\\.", ":");
     	try {
-	 		String request = baseJSONRequest
-	 					.replaceAll("\\{switch\\}", switchDPID)
-						.replaceAll("\\{name\\}",   rule.get("name"));
-	 		delete(request);
+	 		delete(switchDPID,
+	 				FloodlightRequestWriter.deleteRequest(switchDPID, name));
     	}
     	catch (Exception e) {
     		log.warn("Couldn't delete entry: " + e.getMessage());
@@ -475,26 +1280,331 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	}
 	// @formatter:on
 
-	private void store(String request) throws IOException {
-		log.debug("Storing entry: " + request);
+	/**
+	 * Push one entry of a {@link FlowEntryBatch} and record the result in the
+	 * entry index and journal.
+	 */
+	ISDNConnectorResponse pushEntry(FlowEntry e) {
+		if (controllers == null) {
+			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
+		}
+		String switchDPID = toDPID(e.getNode());
+		String name = e.getName();
+		if (name == null) {
+			return ISDNConnectorResponse.FAILURE;
+		}
+
+		if (e.getOperation() == FlowEntry.Operation.DELETE) {
+			ISDNConnectorResponse response = deleteEntry(switchDPID, name);
+			if (response == ISDNConnectorResponse.SUCCESS)
+				forget(switchDPID, name);
+			return response;
+		}
+
+		boolean shared = EntryNames.SHARED.equals(EntryNames.circuitOf(name));
+		long cookie = shared ? EntryCookies.SHARED : entryIndex.cookieFor(e
+				.getCircuitID());
+		String request;
 		try {
-			ClientResource cr = restStoreResource;
-			cr.post(request);
-			// TODO: parse result
-		} catch (Exception e) {
-			throw new IOException(e.getMessage());
+			RequestBuffer buffer = FloodlightRequestWriter.storeRequest(
+					switchDPID, e.getRule(), cookie);
+			store(switchDPID, buffer);
+			// the index keeps the request to restore the entry later
+			request = buffer.toString();
+		}
+		catch (Exception ex) {
+			log.warn("Couldn't install entry: " + ex.getMessage());
+			return ISDNConnectorResponse.FAILURE;
 		}
+
+		// entries of shared hops outlive the circuit that installs them
+		IndexedEntry installed = new IndexedEntry(shared ? EntryNames.SHARED
+				: e.getCircuitID(), e.getHopKey(), switchDPID, name, request,
+				cookie);
+		entryIndex.add(installed);
+		// the controller acknowledged the entry
+		entryIndex.confirm(switchDPID, name, true, System.currentTimeMillis());
+		FlowJournal j = journal;
+		if (j != null)
+			j.installed(installed);
+		return ISDNConnectorResponse.SUCCESS;
 	}
 
-	private void delete(String request) throws IOException {
-		log.debug("Deleting entry: " + request);
+	/**
+	 * Remove a deleted entry from the entry index and journal.
+	 */
+	private static void forget(String switchDPID, String name) {
+		IndexedEntry removed = entryIndex.remove(switchDPID, name);
+		FlowJournal j = journal;
+		if (removed != null && j != null)
+			j.deleted(removed.getCircuitID(), switchDPID, name);
+	}
+
+	/**
+	 * Delete the entries a circuit has on one switch with as few calls as
+	 * possible. staticflowentrypusher can't delete entries by name prefix or
+	 * cookie, but it can clear all static entries of a switch. The switch is
+	 * listed once: if everything on it belongs to the circuit (the entries to
+	 * delete plus any other entry named with the circuit's prefix), it is
+	 * cleared in a single call. Otherwise only the entries that are actually on
+	 * the switch are left to delete one by one, including leftovers of the
+	 * circuit that weren't asked for. Entries the switch doesn't have are only
+	 * dropped from the index.
+	 * 
+	 * A clear would also remove the entries another circuit is storing on
+	 * the switch before they are indexed, so the switch is only cleared if
+	 * no setup is storing entries on it (see {@link #lockSwitches}); the
+	 * entries are deleted one by one otherwise.
+	 * 
+	 * @param entries
+	 *            deletes of one switch, all for the same circuit
+	 * @return the entries still to be deleted one by one
+	 */
+	List<FlowEntry> bulkDelete(List<FlowEntry> entries) throws IOException {
+		if (controllers == null)
+			throw new IOException("Controller not set");
+
+		String switchDPID = toDPID(entries.get(0).getNode());
+		KeyLocks.Held exclusive = switchLocks.tryLock(switchDPID);
 		try {
-			ClientResource cr = restDeleteResource;
-			cr.post(request);
-			// TODO: parse result
-		} catch (Exception e) {
-			throw new IOException(e.getMessage());
+			return bulkDelete(entries, switchDPID, exclusive != null);
+		} finally {
+			if (exclusive != null)
+				exclusive.unlock();
+		}
+	}
+
+	private List<FlowEntry> bulkDelete(List<FlowEntry> entries,
+			String switchDPID, boolean mayClear) throws IOException {
+		FlowEntry first = entries.get(0);
+		SDNNode node = first.getNode();
+		String circuitID = first.getCircuitID();
+		String prefix = EntryNames.prefixOf(circuitID);
+
+		Map<String, Long> listed = listEntries(switchDPID);
+		Set<String> present = listed.keySet();
+		Set<String> targets = new HashSet<String>();
+		for (FlowEntry e : entries)
+			targets.add(e.getName());
+		List<String> leftovers = new ArrayList<String>();
+		for (Map.Entry<String, Long> l : listed.entrySet()) {
+			String name = l.getKey();
+			// the cookie tells which indexed circuit an entry belongs to,
+			// even if one GRI is a prefix of another; entries of circuits
+			// the index doesn't know are matched by name, whose prefix
+			// may also be a GRI extending ours with dots
+			String owner = entryIndex.ownerOf(name, l.getValue());
+			boolean ours = owner == null ? name.startsWith(prefix)
+					&& circuitID.equals(EntryNames.circuitOf(name))
+					: owner.equals(circuitID);
+			if (ours && targets.add(name))
+				leftovers.add(name);
+		}
+
+		if (mayClear && !present.isEmpty() && targets.containsAll(present)) {
+			clear(switchDPID);
+			for (String name : targets)
+				forget(switchDPID, name);
+			return Collections.emptyList();
+		}
+
+		List<FlowEntry> remaining = new ArrayList<FlowEntry>();
+		for (FlowEntry e : entries) {
+			if (present.contains(e.getName()))
+				remaining.add(e);
+			else
+				forget(switchDPID, e.getName());
+		}
+		if (!leftovers.isEmpty()) {
+			Map<String, IndexedEntry> indexed = entryIndex
+					.entriesOnSwitch(switchDPID);
+			for (String name : leftovers) {
+				IndexedEntry e = indexed.get(name);
+				remaining.add(new FlowEntry(circuitID, e == null ? null : e
+						.getHopKey(), node, namedEntry(name),
+						FlowEntry.Operation.DELETE));
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Remove all static entries of a switch.
+	 */
+	private void clear(String switchDPID) throws IOException {
+		log.debug("Clearing switch " + switchDPID);
+		transport(switchDPID).get(CLEAR_PATH + switchDPID + "/json");
+	}
+
+	private void store(String switchDPID, RequestBuffer request)
+			throws IOException {
+		if (log.isDebugEnabled())
+			log.debug("Storing entry: " + request);
+		checkStored(transport(switchDPID).post(STORE_PATH, request.getBytes(), 0,
+				request.size()));
+	}
+
+	private void store(String switchDPID, String request) throws IOException {
+		log.debug("Storing entry: " + request);
+		byte[] body = request.getBytes(UTF8);
+		checkStored(transport(switchDPID).post(STORE_PATH, body, 0, body.length));
+	}
+
+	private static void checkStored(String response) throws IOException {
+		String status = parseStatus(response);
+		// staticflowentrypusher answers errors with a 200 and a message
+		if (!status.startsWith("Entry pushed"))
+			throw new IOException("Controller refused entry: " + status);
+	}
+
+	private void delete(String switchDPID, RequestBuffer request)
+			throws IOException {
+		if (log.isDebugEnabled())
+			log.debug("Deleting entry: " + request);
+		String status = parseStatus(transport(switchDPID).post(DELETE_PATH,
+				request.getBytes(), 0, request.size()));
+		log.debug("Delete status: " + status);
+	}
+
+	/**
+	 * @return the "status" message of a staticflowentrypusher response
+	 */
+	private static String parseStatus(String response) throws IOException {
+		if (response == null || response.length() == 0)
+			throw new IOException("Empty response from controller");
+		JsonNode status = jsonMapper.readTree(response).get("status");
+		if (status == null)
+			throw new IOException("No status in controller response");
+		return status.asText();
+	}
+
+	/**
+	 * Fetch the static entries the controller has for a switch, with the
+	 * reservation bits of their cookies (see {@link EntryCookies}). The
+	 * controller answers with an object of the form
+	 * 
+	 * <pre>
+	 * { "00:00:00:00:00:00:00:07": { "name": { "cookie": ..., ...flow mod... }, ... } }
+	 * </pre>
+	 * 
+	 * @param switchDPID
+	 *            colon separated DPID
+	 * @return entry name -> masked cookie, {@link EntryCookies#NONE} if the
+	 *         entry has none
+	 */
+	Map<String, Long> listEntries(String switchDPID) throws IOException {
+		if (controllers == null)
+			throw new IOException("Controller not set");
+
+		Map<String, Long> listed = new HashMap<String, Long>();
+		String response = transport(switchDPID).get(
+				"/wm/staticflowentrypusher/list/" + switchDPID + "/json");
+		JsonNode entries = jsonMapper.readTree(response).get(switchDPID);
+		if (entries != null) {
+			Iterator<Map.Entry<String, JsonNode>> it = entries.fields();
+			while (it.hasNext()) {
+				Map.Entry<String, JsonNode> e = it.next();
+				JsonNode cookie = e.getValue().get("cookie");
+				listed.put(e.getKey(), cookie == null ? EntryCookies.NONE
+						: EntryCookies.reservationOf(cookie.asLong()));
+			}
 		}
+		return listed;
+	}
+
+	/**
+	 * Send an indexed entry's store request to the controller again.
+	 */
+	ISDNConnectorResponse restoreEntry(IndexedEntry e) {
+		if (controllers == null) {
+			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
+		}
+		KeyLocks.Held held = switchLocks.lockShared(Collections.singleton(e
+				.getDPID()));
+		try {
+			store(e.getDPID(), e.getRequest());
+		} catch (IOException ex) {
+			log.warn("Couldn't restore entry " + e + ": " + ex.getMessage());
+			return ISDNConnectorResponse.FAILURE;
+		} finally {
+			held.unlock();
+		}
+		entryIndex.confirm(e.getDPID(), e.getName(), true,
+				System.currentTimeMillis());
+		return ISDNConnectorResponse.SUCCESS;
+	}
+
+	/**
+	 * Tell the state of a circuit's entries from the entry index. Switches
+	 * whose entries of the circuit weren't confirmed (see
+	 * {@link FlowEntryIndex#confirmationOf}) within maxAge are listed, one
+	 * request per switch, so a circuit that is kept confirmed by install
+	 * acknowledgements and the {@link FlowReconciler} is answered without
+	 * contacting the controller.
+	 * 
+	 * @param maxAge
+	 *            ms
+	 */
+	public CircuitStatus circuitStatus(String circuitID, long maxAge) {
+		long now = System.currentTimeMillis();
+		List<IndexedEntry> entries = entryIndex.entriesOf(circuitID);
+		// entries of the shared hops it holds, whichever circuit installed
+		// them
+		for (String hopKey : entryIndex.hopsHeldBy(circuitID))
+			entries.addAll(entryIndex.entriesOfHop(hopKey));
+
+		Set<String> stale = new LinkedHashSet<String>();
+		for (IndexedEntry e : entries) {
+			FlowEntryIndex.Confirmation c = entryIndex.confirmationOf(e);
+			if (c == null || c.getTime() < now - maxAge)
+				stale.add(e.getDPID());
+		}
+
+		int fetched = 0;
+		if (controllers != null) {
+			for (String dpid : stale) {
+				long listed = System.currentTimeMillis();
+				try {
+					entryIndex.confirmSwitch(dpid, listEntries(dpid).keySet(),
+							listed);
+					fetched++;
+				} catch (IOException ex) {
+					log.warn("Couldn't list entries of " + dpid + ": "
+							+ ex.getMessage());
+				}
+			}
+		}
+
+		int confirmed = 0, missing = 0, unconfirmed = 0;
+		for (IndexedEntry e : entries) {
+			FlowEntryIndex.Confirmation c = entryIndex.confirmationOf(e);
+			if (c == null || c.getTime() < now - maxAge)
+				unconfirmed++;
+			else if (c.isPresent())
+				confirmed++;
+			else
+				missing++;
+		}
+		return new CircuitStatus(circuitID, entries.size(), confirmed,
+				missing, unconfirmed, fetched);
+	}
+
+	/**
+	 * Delete an entry that isn't in the index from the controller.
+	 */
+	ISDNConnectorResponse removeEntry(String switchDPID, String name) {
+		return deleteEntry(switchDPID, name);
+	}
+
+	/**
+	 * @return true while a circuit is being set up or torn down, in which case
+	 *         its entries in the index and on the controller may differ.
+	 *         Entries of shared hops are busy while any circuit is.
+	 */
+	static boolean isBusy(String circuitID) {
+		if (EntryNames.SHARED.equals(circuitID))
+			return !busyCircuits.isEmpty();
+		return busyCircuits.contains(circuitID);
 	}
 
 	/**
@@ -510,7 +1620,22 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	@Override
 	public ISDNConnectorResponse setupCircuitImplicitly(List<SDNHop> hops,
 			String circuitID, OFRule rule) throws Exception {
-		if (controller == null) {
+		busyCircuits.add(circuitID);
+		long start = System.nanoTime();
+		ISDNConnectorResponse response = ISDNConnectorResponse.FAILURE;
+		try {
+			response = doSetupCircuitImplicitly(hops, circuitID, rule);
+			return response;
+		} finally {
+			busyCircuits.remove(circuitID);
+			SdnMetrics.getInstance().circuitDone(Operation.SETUP, circuitID,
+					start, response);
+		}
+	}
+
+	private ISDNConnectorResponse doSetupCircuitImplicitly(List<SDNHop> hops,
+			String circuitID, OFRule rule) throws Exception {
+		if (controllers == null) {
 			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
 		}
 
@@ -544,14 +1669,12 @@ public class FloodlightSDNConnector implements ISDNConnector {
 			}
 		}
 
-		ISDNConnectorResponse response;
+		FlowEntryBatch batch = new FlowEntryBatch(circuitID);
 		// Setup implicit connections
 		for (List<SDNHop> implicitCircuit : implicitCircuits) {
 			SDNHop startHop = implicitCircuit.get(0);
 			SDNHop endHop = implicitCircuit.get(implicitCircuit.size() - 1);
-			response = setupImplicitHop(startHop, endHop, circuitID);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
+			setupImplicitHop(startHop, endHop, circuitID, batch);
 		}
 
 		// Setup regular connections
@@ -559,23 +1682,32 @@ public class FloodlightSDNConnector implements ISDNConnector {
 			// Check for capabilities
 			if (h.getCapabilities().contains(SDNCapability.L2) && rule != null) {
 				if (!h.isEntryHop() && !h.isExitHop())
-					response = setupL2Bypass(h, circuitID, rule);
+					setupL2Bypass(h, circuitID, rule, batch);
 				else
-					response = setupL2Hop(h, circuitID, rule);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+					setupL2Hop(h, circuitID, rule, batch);
 			} else {
-				response = setupL1Hop(h, circuitID);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+				setupL1Hop(h, circuitID, batch);
 			}
 		}
 
-		return ISDNConnectorResponse.SUCCESS;
+		Reservation room = admit(circuitID, Collections.singletonList(batch));
+		if (room == null)
+			return ISDNConnectorResponse.FAILURE;
+		SetupTransaction tx = new SetupTransaction(circuitID);
+		KeyLocks.Held switches = lockSwitches(Collections.singletonList(batch));
+		try {
+			ISDNConnectorResponse response = pusher.push(batch, tx);
+			if (response != ISDNConnectorResponse.SUCCESS)
+				rollback(tx);
+			return response;
+		} finally {
+			switches.unlock();
+			flowTables.release(room);
+		}
 	}
 
-	private ISDNConnectorResponse setupImplicitHop(SDNHop src, SDNHop dst,
-			String circuitID) throws Exception {
+	private void setupImplicitHop(SDNHop src, SDNHop dst, String circuitID,
+			FlowEntryBatch batch) throws Exception {
 
 		log.debug("start setupImplicitHop " + src.getSrcLink() + " " + dst.getDstLink());
 
@@ -590,48 +1722,42 @@ public class FloodlightSDNConnector implements ISDNConnector {
 		String nw_src = srcTribInfo[1]; // src router ID
 		String nw_dst = dstTribInfo[1]; // dst router ID
 
-		if (!dl_src.matches(OFRule.MAC_REGEX)
-				|| !dl_dst.matches(OFRule.MAC_REGEX)
-				|| !nw_src.matches(OFRule.IP_REGEX)
-				|| !nw_dst.matches(OFRule.IP_REGEX)) {
+		if (!OFRule.isValidMAC(dl_src) || !OFRule.isValidMAC(dl_dst)
+				|| !OFRule.isValidIP(nw_src) || !OFRule.isValidIP(nw_dst)) {
 			throw new Exception("Invalid trib format in URN " + dl_src + " " + dl_dst + " " + src.getSrcLink() + " " + dst.getDstLink());
 		}
 
-		OFRule rule = new OFRule();
+		String entryID = implicitEntryName(src, dst, circuitID);
 
-		rule.put("in_port", src.getSrcPort());
-		rule.put("output", dst.getDstPort());
-		rule.put("dl_src", dl_src);
-		rule.put("dl_dst", dl_dst);
-		rule.put("nw_src", nw_src);
-		rule.put("nw_dst", nw_dst);
+		OFRule rule = OFRule.builder()
+				.inPort(src.getSrcPort())
+				.output(dst.getDstPort())
+				.set(Field.DL_SRC, dl_src)
+				.set(Field.DL_DST, dl_dst)
+				.set(Field.NW_SRC, nw_src)
+				.set(Field.NW_DST, nw_dst)
+				.name(entryID).build();
 
-		String entryID = src.hashCode() + ".gmpls." + dst.hashCode();
-		rule.put("name", entryID);
-
-		ISDNConnectorResponse response;
-
-		response = installEntry(src.getNode(), rule);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
+		batch.install(src, rule);
 
 		log.debug("end setupImplicitHop");
-		return ISDNConnectorResponse.SUCCESS;
 	}
 
-	private ISDNConnectorResponse teardownImplicitHop(SDNHop src, SDNHop dst,
-			String circuitID) throws Exception {
-		OFRule rule = new OFRule();
-
-		String entryID = src.hashCode() + ".gmpls." + dst.hashCode();
-		rule.put("name", entryID);
-
-		ISDNConnectorResponse response;
-		response = deleteEntry(src.getNode(), rule);
-		if (response != ISDNConnectorResponse.SUCCESS)
-			return response;
+	/**
+	 * @return the name of the entry of an implicit (GMPLS) circuit from src
+	 *         to dst, installed on the switch of src
+	 */
+	private static String implicitEntryName(SDNHop src, SDNHop dst,
+			String circuitID) {
+		return EntryNames.of(circuitID, src.getNode(), src.getSrcPort(),
+				dst.getDstPort(), EntryNames.KIND_GMPLS + "_"
+						+ EntryNames.compactDPID(dst.getNode().getId()),
+				Direction.FORWARD);
+	}
 
-		return ISDNConnectorResponse.SUCCESS;
+	private void teardownImplicitHop(SDNHop src, SDNHop dst,
+			String circuitID, FlowEntryBatch batch) throws Exception {
+		batch.delete(src, namedEntry(implicitEntryName(src, dst, circuitID)));
 	}
 
 	
@@ -647,7 +1773,22 @@ public class FloodlightSDNConnector implements ISDNConnector {
 	@Override
 	public ISDNConnectorResponse teardownCircuitImplicitly(List<SDNHop> hops,
 			String circuitID) throws Exception {
-		if (controller == null) {
+		busyCircuits.add(circuitID);
+		long start = System.nanoTime();
+		ISDNConnectorResponse response = ISDNConnectorResponse.FAILURE;
+		try {
+			response = doTeardownCircuitImplicitly(hops, circuitID);
+			return response;
+		} finally {
+			busyCircuits.remove(circuitID);
+			SdnMetrics.getInstance().circuitDone(Operation.TEARDOWN, circuitID,
+					start, response);
+		}
+	}
+
+	private ISDNConnectorResponse doTeardownCircuitImplicitly(List<SDNHop> hops,
+			String circuitID) throws Exception {
+		if (controllers == null) {
 			return ISDNConnectorResponse.CONTROLLER_NOT_SET;
 		}
 
@@ -682,14 +1823,12 @@ public class FloodlightSDNConnector implements ISDNConnector {
 		}
 
 		
-		ISDNConnectorResponse response;
+		FlowEntryBatch batch = new FlowEntryBatch(circuitID);
 		// Teardown implicit circuits
 		for (List<SDNHop> implicitCircuit : implicitCircuits) {
 			SDNHop startHop = implicitCircuit.get(0);
 			SDNHop endHop = implicitCircuit.get(implicitCircuit.size() - 1);
-			response = teardownImplicitHop(startHop, endHop, circuitID);
-			if (response != ISDNConnectorResponse.SUCCESS)
-				return response;
+			teardownImplicitHop(startHop, endHop, circuitID, batch);
 		}
 
 		// Teardown regular hops
@@ -697,20 +1836,18 @@ public class FloodlightSDNConnector implements ISDNConnector {
 			// Check for capabilities
 			if (h.getCapabilities().contains(SDNCapability.L2)) {
 				if (!h.isEntryHop() && !h.isExitHop())
-					response = teardownL2Bypass(h, circuitID);
+					teardownL2Bypass(h, circuitID, batch);
 				else
-					response = teardownL2Hop(h, circuitID);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+					teardownL2Hop(h, circuitID, batch);
 			}
 			else {
-				response = teardownL1Hop(h, circuitID);
-				if (response != ISDNConnectorResponse.SUCCESS)
-					return response;
+				teardownL1Hop(h, circuitID, batch);
 			}
 		}
 
-		return ISDNConnectorResponse.SUCCESS;
+		if (teardownMode == TeardownMode.BULK)
+			return pusher.deleteBySwitch(batch);
+		return pusher.push(batch);
 		
 	}
 
@@ -0,0 +1,71 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.IOException;
+
+/**
+ * HTTP transport used by {@link FloodlightSDNConnector} to talk to the
+ * controller's REST API. Implementations must be safe for concurrent use and
+ * are bound to a single controller address.
+ *
+ */
+public interface FloodlightTransport {
+
+	public enum Type {
+		/** persistent connections, see {@link PooledHttpTransport} */
+		POOLED,
+		/** a Restlet ClientResource per call, see {@link RestletTransport} */
+		RESTLET;
+	}
+
+	/**
+	 * @return the controller address, e.g. http://controller:8080
+	 */
+	public String getAddress();
+
+	/**
+	 * POST a JSON request to path.
+	 *
+	 * @return the response body
+	 * @throws IOException
+	 *             if the request fails or the controller answers with an
+	 *             error status
+	 */
+	public String post(String path, byte[] body, int off, int len)
+			throws IOException;
+
+	/**
+	 * POST a JSON request to path, giving up after timeout.
+	 *
+	 * @param timeout
+	 *            ms the call may wait for a connection, to connect and for
+	 *            each read; the transport's own timeouts apply if shorter
+	 * @see #post(String, byte[], int, int)
+	 */
+	public String post(String path, byte[] body, int off, int len,
+			int timeout) throws IOException;
+
+	/**
+	 * GET path.
+	 *
+	 * @return the response body
+	 * @throws IOException
+	 *             if the request fails or the controller answers with an
+	 *             error status
+	 */
+	public String get(String path) throws IOException;
+
+	/**
+	 * GET path, giving up after timeout.
+	 *
+	 * @param timeout
+	 *            ms, see {@link #post(String, byte[], int, int, int)}
+	 * @see #get(String)
+	 */
+	public String get(String path, int timeout) throws IOException;
+
+	/**
+	 * Release the transport's connections. Calls in progress complete, later
+	 * calls fail.
+	 */
+	public void close();
+}
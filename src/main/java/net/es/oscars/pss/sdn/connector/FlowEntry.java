@@ -0,0 +1,68 @@
+package net.es.oscars.pss.sdn.connector;
+
+import net.es.oscars.pss.sdn.openflow.OFRule;
+import net.es.oscars.topoBridge.sdn.SDNNode;
+
+/**
+ * A single flow entry operation (install or delete) targeting one switch. Flow
+ * entries are collected in a {@link FlowEntryBatch} while a circuit is being
+ * computed and are only sent to the controller when the batch is pushed.
+ *
+ */
+public class FlowEntry {
+
+	public enum Operation {
+		INSTALL, DELETE;
+	}
+
+	private final String circuitID;
+	private final String hopKey;
+	private final SDNNode node;
+	private final OFRule rule;
+	private final Operation operation;
+
+	/**
+	 * @param circuitID
+	 *            the reservation (GRI) this entry belongs to
+	 * @param hopKey
+	 *            the hop this entry belongs to, see
+	 *            {@link HopRefCounter#keyOf}
+	 */
+	public FlowEntry(String circuitID, String hopKey, SDNNode node,
+			OFRule rule, Operation operation) {
+		this.circuitID = circuitID;
+		this.hopKey = hopKey;
+		this.node = node;
+		this.rule = rule;
+		this.operation = operation;
+	}
+
+	public String getCircuitID() {
+		return circuitID;
+	}
+
+	public String getHopKey() {
+		return hopKey;
+	}
+
+	public SDNNode getNode() {
+		return node;
+	}
+
+	public OFRule getRule() {
+		return rule;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	public String getName() {
+		return rule.getName();
+	}
+
+	@Override
+	public String toString() {
+		return operation + " " + node.getId() + " " + getName();
+	}
+}
@@ -0,0 +1,96 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.es.oscars.pss.sdn.connector.FlowEntry.Operation;
+import net.es.oscars.pss.sdn.openflow.OFRule;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+/**
+ * Collects all the flow entries of a circuit before they are sent to the
+ * controller. Entries keep the order in which they were added, so entries
+ * targeting the same switch are pushed in the same order the hops were
+ * processed.
+ *
+ */
+public class FlowEntryBatch {
+	private final String circuitID;
+	private final List<FlowEntry> entries = new ArrayList<FlowEntry>();
+
+	public FlowEntryBatch(String circuitID) {
+		this.circuitID = circuitID;
+	}
+
+	public String getCircuitID() {
+		return circuitID;
+	}
+
+	/**
+	 * Queue the installation of an entry of hop h on the hop's switch.
+	 */
+	public void install(SDNHop h, OFRule rule) {
+		entries.add(new FlowEntry(circuitID, HopRefCounter.keyOf(h), h
+				.getNode(), rule, Operation.INSTALL));
+	}
+
+	/**
+	 * Queue the installation of a different rule in place of a planned entry,
+	 * on the same hop.
+	 */
+	public void install(FlowEntry planned, OFRule rule) {
+		entries.add(new FlowEntry(circuitID, planned.getHopKey(), planned
+				.getNode(), rule, Operation.INSTALL));
+	}
+
+	/**
+	 * Queue the removal of an entry of hop h from the hop's switch.
+	 */
+	public void delete(SDNHop h, OFRule rule) {
+		entries.add(new FlowEntry(circuitID, HopRefCounter.keyOf(h), h
+				.getNode(), rule, Operation.DELETE));
+	}
+
+	/**
+	 * Queue the removal of an entry that was installed before, e.g. to roll
+	 * back a failed setup.
+	 */
+	public void undo(FlowEntry installed) {
+		entries.add(new FlowEntry(installed.getCircuitID(), installed
+				.getHopKey(), installed.getNode(), installed.getRule(),
+				Operation.DELETE));
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public List<FlowEntry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return the entries of this batch grouped by switch (node id). Both the
+	 *         switches and the entries of each switch keep insertion order.
+	 */
+	public Map<String, List<FlowEntry>> groupBySwitch() {
+		Map<String, List<FlowEntry>> groups = new LinkedHashMap<String, List<FlowEntry>>();
+		for (FlowEntry e : entries) {
+			String id = e.getNode().getId();
+			List<FlowEntry> group = groups.get(id);
+			if (group == null) {
+				group = new ArrayList<FlowEntry>();
+				groups.put(id, group);
+			}
+			group.add(e);
+		}
+		return groups;
+	}
+}
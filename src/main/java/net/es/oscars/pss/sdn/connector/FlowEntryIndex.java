@@ -0,0 +1,492 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the flow entries currently installed by OSCARS, keyed
+ * by reservation (GRI), switch DPID and entry name. Every entry also records
+ * the hop it belongs to and the exact store request that was sent to the
+ * controller, so entries can be removed or pushed again without recomputing
+ * the circuit.
+ *
+ * Entries of shared hops belong to no circuit: they are indexed under
+ * {@link EntryNames#SHARED} and found by hop, and the index records which
+ * circuits hold each shared hop (see {@link #hold}), so they outlive the
+ * circuit that installed them and count for every circuit using them.
+ *
+ * The index also allocates the cookie of every circuit with entries (see
+ * {@link EntryCookies}) and maps cookies back to GRIs. A circuit keeps its
+ * cookie until its last entry is removed.
+ *
+ * Finally it keeps what the controller was last seen to have of every entry
+ * (a {@link Confirmation}), from install acknowledgements and switch
+ * listings, so the state of a circuit can be told without asking the
+ * controller as long as the confirmations are recent enough.
+ *
+ */
+public class FlowEntryIndex {
+
+	/**
+	 * An entry that was successfully installed on a switch.
+	 */
+	public static class IndexedEntry {
+		private final String circuitID;
+		private final String hopKey;
+		private final String dpid;
+		private final String name;
+		private final String request;
+		private final long cookie;
+
+		/**
+		 * An entry with the cookie found in its store request.
+		 */
+		public IndexedEntry(String circuitID, String hopKey, String dpid,
+				String name, String request) {
+			this(circuitID, hopKey, dpid, name, request,
+					FloodlightRequestWriter.cookieOf(request));
+		}
+
+		public IndexedEntry(String circuitID, String hopKey, String dpid,
+				String name, String request, long cookie) {
+			this.circuitID = circuitID;
+			this.hopKey = hopKey;
+			this.dpid = dpid;
+			this.name = name;
+			this.request = request;
+			this.cookie = cookie;
+		}
+
+		public String getCircuitID() {
+			return circuitID;
+		}
+
+		public String getHopKey() {
+			return hopKey;
+		}
+
+		public String getDPID() {
+			return dpid;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the JSON store request used to install this entry
+		 */
+		public String getRequest() {
+			return request;
+		}
+
+		/**
+		 * @return the cookie the entry was installed with, see
+		 *         {@link EntryCookies}
+		 */
+		public long getCookie() {
+			return cookie;
+		}
+
+		String key() {
+			return entryKey(dpid, name);
+		}
+
+		@Override
+		public String toString() {
+			return circuitID + " " + dpid + " " + name;
+		}
+	}
+
+	/**
+	 * Whether the controller had an entry, and when this was seen.
+	 */
+	public static final class Confirmation {
+		private final long time;
+		private final boolean present;
+
+		Confirmation(long time, boolean present) {
+			this.time = time;
+			this.present = present;
+		}
+
+		/**
+		 * @return when the entry was seen, in ms (System.currentTimeMillis())
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public boolean isPresent() {
+			return present;
+		}
+	}
+
+	/* circuitID -> (dpid/name -> entry) */
+	private final Map<String, Map<String, IndexedEntry>> byCircuit = new HashMap<String, Map<String, IndexedEntry>>();
+	/* hopKey -> (dpid/name -> entry) */
+	private final Map<String, Map<String, IndexedEntry>> byHop = new HashMap<String, Map<String, IndexedEntry>>();
+	/* dpid -> (name -> entry) */
+	private final Map<String, Map<String, IndexedEntry>> bySwitch = new HashMap<String, Map<String, IndexedEntry>>();
+	/* cookie -> circuitID and back, for circuits with entries */
+	private final Map<Long, String> circuitByCookie = new HashMap<Long, String>();
+	private final Map<String, Long> cookieByCircuit = new HashMap<String, Long>();
+	/* circuitID -> shared hops it holds */
+	private final Map<String, Set<String>> heldHops = new HashMap<String, Set<String>>();
+	/* dpid/name -> last confirmation of indexed entries */
+	private final Map<String, Confirmation> confirmations = new HashMap<String, Confirmation>();
+	private int size = 0;
+
+	static String entryKey(String dpid, String name) {
+		return dpid + "/" + name;
+	}
+
+	/**
+	 * Add an entry, replacing any entry with the same DPID and name in the
+	 * same circuit.
+	 */
+	public synchronized void add(IndexedEntry e) {
+		Map<String, IndexedEntry> circuit = byCircuit.get(e.getCircuitID());
+		if (circuit == null) {
+			circuit = new LinkedHashMap<String, IndexedEntry>();
+			byCircuit.put(e.getCircuitID(), circuit);
+		}
+		if (EntryCookies.isReservation(e.getCookie())
+				&& !cookieByCircuit.containsKey(e.getCircuitID())
+				&& !circuitByCookie.containsKey(e.getCookie())) {
+			// entries replayed from the journal bring their cookie back
+			circuitByCookie.put(e.getCookie(), e.getCircuitID());
+			cookieByCircuit.put(e.getCircuitID(), e.getCookie());
+		}
+		IndexedEntry old = circuit.put(e.key(), e);
+		if (old != null)
+			unlink(old);
+		else
+			size++;
+
+		Map<String, IndexedEntry> hop = byHop.get(e.getHopKey());
+		if (hop == null) {
+			hop = new LinkedHashMap<String, IndexedEntry>();
+			byHop.put(e.getHopKey(), hop);
+		}
+		hop.put(e.key(), e);
+
+		Map<String, IndexedEntry> sw = bySwitch.get(e.getDPID());
+		if (sw == null) {
+			sw = new HashMap<String, IndexedEntry>();
+			bySwitch.put(e.getDPID(), sw);
+		}
+		sw.put(e.getName(), e);
+	}
+
+	/**
+	 * Remove an entry from the index.
+	 *
+	 * @return the removed entry or null if it wasn't indexed
+	 */
+	public synchronized IndexedEntry remove(String circuitID, String dpid,
+			String name) {
+		Map<String, IndexedEntry> circuit = byCircuit.get(circuitID);
+		if (circuit == null)
+			return null;
+		IndexedEntry old = circuit.remove(entryKey(dpid, name));
+		if (old == null)
+			return null;
+		if (circuit.isEmpty()) {
+			byCircuit.remove(circuitID);
+			releaseCookie(circuitID);
+		}
+		unlink(old);
+		confirmations.remove(old.key());
+		size--;
+		return old;
+	}
+
+	/**
+	 * Remove an entry from the index, whichever circuit it was installed by.
+	 *
+	 * @return the removed entry or null if it wasn't indexed
+	 */
+	public synchronized IndexedEntry remove(String dpid, String name) {
+		Map<String, IndexedEntry> sw = bySwitch.get(dpid);
+		if (sw == null || !sw.containsKey(name))
+			return null;
+		return remove(sw.get(name).getCircuitID(), dpid, name);
+	}
+
+	/**
+	 * @return the cookie of a circuit, allocating one if it has none: the hash
+	 *         of its GRI, or the next free cookie after it if another circuit
+	 *         has it
+	 */
+	public synchronized long cookieFor(String circuitID) {
+		Long c = cookieByCircuit.get(circuitID);
+		if (c != null)
+			return c;
+		long cookie = EntryCookies.hash(circuitID);
+		while (circuitByCookie.containsKey(cookie))
+			cookie = EntryCookies.next(cookie);
+		circuitByCookie.put(cookie, circuitID);
+		cookieByCircuit.put(circuitID, cookie);
+		return cookie;
+	}
+
+	/**
+	 * @return the cookie of a circuit, or {@link EntryCookies#NONE} if it has
+	 *         none
+	 */
+	public synchronized long cookieOf(String circuitID) {
+		Long c = cookieByCircuit.get(circuitID);
+		return c == null ? EntryCookies.NONE : c;
+	}
+
+	/**
+	 * @return the circuit of a cookie read from the controller, or null
+	 */
+	public synchronized String circuitOf(long cookie) {
+		return circuitByCookie.get(EntryCookies.reservationOf(cookie));
+	}
+
+	/**
+	 * Give up the cookie of a circuit that has no entries left, e.g. after a
+	 * setup that failed before installing anything.
+	 */
+	public synchronized void releaseCookie(String circuitID) {
+		if (byCircuit.containsKey(circuitID))
+			return;
+		Long c = cookieByCircuit.remove(circuitID);
+		if (c != null)
+			circuitByCookie.remove(c);
+	}
+
+	/**
+	 * @return the indexed circuit an entry found on the controller belongs
+	 *         to, or null. The entry's cookie is looked up first and confirmed
+	 *         by the entry name; if the controller doesn't carry our cookies
+	 *         the circuit is found from the name alone, see
+	 *         {@link EntryNames#circuitOf}. Names of another scheme are
+	 *         matched to the shortest indexed GRI they start with, followed
+	 *         by a dot.
+	 */
+	public synchronized String ownerOf(String name, long cookie) {
+		String circuitID = circuitByCookie.get(EntryCookies
+				.reservationOf(cookie));
+		if (circuitID != null && name.length() > circuitID.length()
+				&& name.startsWith(circuitID)
+				&& name.charAt(circuitID.length()) == '.')
+			return circuitID;
+
+		circuitID = EntryNames.circuitOf(name);
+		if (circuitID != null && byCircuit.containsKey(circuitID))
+			return circuitID;
+		int dot = name.indexOf('.');
+		while (dot > 0) {
+			String prefix = name.substring(0, dot);
+			if (byCircuit.containsKey(prefix))
+				return prefix;
+			dot = name.indexOf('.', dot + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Record whether the controller has an indexed entry, e.g. when it
+	 * acknowledged the entry's store request.
+	 */
+	public synchronized void confirm(String dpid, String name,
+			boolean present, long time) {
+		Map<String, IndexedEntry> sw = bySwitch.get(dpid);
+		if (sw != null && sw.containsKey(name))
+			confirmations.put(entryKey(dpid, name), new Confirmation(time,
+					present));
+	}
+
+	/**
+	 * Record the entries the controller listed for a switch.
+	 *
+	 * @param listed
+	 *            names of the entries on the switch
+	 * @param time
+	 *            when the list request was sent: entries confirmed after
+	 *            that may be missing from the list and are left alone
+	 */
+	public synchronized void confirmSwitch(String dpid,
+			Collection<String> listed, long time) {
+		Map<String, IndexedEntry> sw = bySwitch.get(dpid);
+		if (sw == null)
+			return;
+		for (IndexedEntry e : sw.values()) {
+			boolean present = listed.contains(e.getName());
+			Confirmation c = confirmations.get(e.key());
+			if (!present && c != null && c.time > time)
+				continue;
+			confirmations.put(e.key(), new Confirmation(time, present));
+		}
+	}
+
+	/**
+	 * @return the last confirmation of an indexed entry, or null if the
+	 *         controller wasn't seen to have it or not since the index was
+	 *         loaded
+	 */
+	public synchronized Confirmation confirmationOf(IndexedEntry e) {
+		return confirmations.get(e.key());
+	}
+
+	/**
+	 * Remove e from the hop and switch maps.
+	 */
+	private void unlink(IndexedEntry e) {
+		Map<String, IndexedEntry> hop = byHop.get(e.getHopKey());
+		if (hop != null && hop.get(e.key()) == e) {
+			hop.remove(e.key());
+			if (hop.isEmpty())
+				byHop.remove(e.getHopKey());
+		}
+		Map<String, IndexedEntry> sw = bySwitch.get(e.getDPID());
+		if (sw != null && sw.get(e.getName()) == e) {
+			sw.remove(e.getName());
+			if (sw.isEmpty())
+				bySwitch.remove(e.getDPID());
+		}
+	}
+
+	/**
+	 * @return the entries installed for a circuit
+	 */
+	public synchronized List<IndexedEntry> entriesOf(String circuitID) {
+		Map<String, IndexedEntry> circuit = byCircuit.get(circuitID);
+		if (circuit == null)
+			return new ArrayList<IndexedEntry>();
+		return new ArrayList<IndexedEntry>(circuit.values());
+	}
+
+	/**
+	 * @return the entries installed for a hop by a circuit
+	 */
+	public synchronized List<IndexedEntry> entriesOf(String circuitID,
+			String hopKey) {
+		List<IndexedEntry> r = new ArrayList<IndexedEntry>();
+		Map<String, IndexedEntry> hop = byHop.get(hopKey);
+		if (hop != null) {
+			for (IndexedEntry e : hop.values()) {
+				if (e.getCircuitID().equals(circuitID))
+					r.add(e);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * @return the entries installed for a hop by any circuit
+	 */
+	public synchronized List<IndexedEntry> entriesOfHop(String hopKey) {
+		Map<String, IndexedEntry> hop = byHop.get(hopKey);
+		if (hop == null)
+			return new ArrayList<IndexedEntry>();
+		return new ArrayList<IndexedEntry>(hop.values());
+	}
+
+	/**
+	 * Record that a circuit holds a reference on a shared hop.
+	 */
+	public synchronized void hold(String circuitID, String hopKey) {
+		Set<String> hops = heldHops.get(circuitID);
+		if (hops == null) {
+			hops = new LinkedHashSet<String>();
+			heldHops.put(circuitID, hops);
+		}
+		hops.add(hopKey);
+	}
+
+	/**
+	 * Record that a circuit gave back its reference on a shared hop.
+	 *
+	 * @return true if the circuit held the hop
+	 */
+	public synchronized boolean unhold(String circuitID, String hopKey) {
+		Set<String> hops = heldHops.get(circuitID);
+		if (hops == null || !hops.remove(hopKey))
+			return false;
+		if (hops.isEmpty())
+			heldHops.remove(circuitID);
+		return true;
+	}
+
+	/**
+	 * @return the shared hops a circuit holds
+	 */
+	public synchronized List<String> hopsHeldBy(String circuitID) {
+		Set<String> hops = heldHops.get(circuitID);
+		if (hops == null)
+			return new ArrayList<String>();
+		return new ArrayList<String>(hops);
+	}
+
+	/**
+	 * @return a copy of the shared hops held, by circuit
+	 */
+	public synchronized Map<String, List<String>> holdings() {
+		Map<String, List<String>> r = new HashMap<String, List<String>>();
+		for (Map.Entry<String, Set<String>> h : heldHops.entrySet())
+			r.put(h.getKey(), new ArrayList<String>(h.getValue()));
+		return r;
+	}
+
+	/**
+	 * @return the entries installed on a switch, by entry name
+	 */
+	public synchronized Map<String, IndexedEntry> entriesOnSwitch(String dpid) {
+		Map<String, IndexedEntry> sw = bySwitch.get(dpid);
+		if (sw == null)
+			return new HashMap<String, IndexedEntry>();
+		return new HashMap<String, IndexedEntry>(sw);
+	}
+
+	/**
+	 * @return the number of entries installed on a switch
+	 */
+	public synchronized int countOnSwitch(String dpid) {
+		Map<String, IndexedEntry> sw = bySwitch.get(dpid);
+		return sw == null ? 0 : sw.size();
+	}
+
+	/**
+	 * @return true if an entry of that name is installed on the switch
+	 */
+	public synchronized boolean isInstalled(String dpid, String name) {
+		Map<String, IndexedEntry> sw = bySwitch.get(dpid);
+		return sw != null && sw.containsKey(name);
+	}
+
+	/**
+	 * @return the DPIDs of all switches with indexed entries
+	 */
+	public synchronized Collection<String> switches() {
+		return new ArrayList<String>(bySwitch.keySet());
+	}
+
+	/**
+	 * @return a copy of all the indexed entries
+	 */
+	public synchronized List<IndexedEntry> entries() {
+		List<IndexedEntry> r = new ArrayList<IndexedEntry>(size);
+		for (Map<String, IndexedEntry> circuit : byCircuit.values())
+			r.addAll(circuit.values());
+		return r;
+	}
+
+	public synchronized Collection<String> circuits() {
+		return new ArrayList<String>(byCircuit.keySet());
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,294 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.es.oscars.pss.sdn.connector.FlowEntry.Operation;
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.pss.sdn.metrics.SdnMetrics;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends a {@link FlowEntryBatch} to the controller. Entries are grouped by
+ * switch and each switch gets its own pipeline, in which its entries are sent
+ * back to back in batch order. Pipelines of different switches run
+ * concurrently on a bounded pool, so at most maxInFlight requests are
+ * outstanding at any time and the time to push a circuit grows with the number
+ * of switches instead of the number of entries.
+ *
+ * When the switches are split across several controllers (see
+ * {@link ControllerRegistry}), every controller gets its own pool: the
+ * pipelines of each controller run in parallel with those of the others, and
+ * maxInFlight bounds the requests outstanding on each controller.
+ *
+ */
+public class FlowEntryPusher {
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+	/* seconds before an idle pipeline thread exits */
+	private static final long IDLE_TIMEOUT = 60;
+
+	private static final Logger log = Logger.getLogger(FlowEntryPusher.class
+			.getName());
+
+	private final FloodlightSDNConnector connector;
+	private volatile int maxInFlight;
+	/* by controller address */
+	private final ConcurrentMap<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+	private final SdnMetrics metrics = SdnMetrics.getInstance();
+
+	public FlowEntryPusher(FloodlightSDNConnector connector) {
+		this(connector, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public FlowEntryPusher(FloodlightSDNConnector connector, int maxInFlight) {
+		this.connector = connector;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return the pool of the pipelines of a controller's switches
+	 */
+	private ExecutorService executorFor(String controller) {
+		// switches of no controller fail in their pipeline, on any pool
+		String key = controller == null ? "" : controller;
+		ThreadPoolExecutor e = executors.get(key);
+		if (e != null)
+			return e;
+		synchronized (this) {
+			e = executors.get(key);
+			if (e == null) {
+				// idle threads go away, so a pusher that is no longer used
+				// (e.g. of a connector replaced by a config reload) holds no
+				// threads
+				e = new ThreadPoolExecutor(maxInFlight, maxInFlight,
+						IDLE_TIMEOUT, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new PusherThreadFactory());
+				e.allowCoreThreadTimeOut(true);
+				executors.put(key, e);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Push every entry of the batch.
+	 *
+	 * @return SUCCESS if all entries were pushed, otherwise the first
+	 *         non-SUCCESS response in switch order
+	 */
+	public ISDNConnectorResponse push(FlowEntryBatch batch) {
+		return push(batch, null);
+	}
+
+	/**
+	 * Push every entry of the batch, recording the installed and failed
+	 * entries in tx. All pipelines stop once one of them fails, or if tx was
+	 * already aborted.
+	 *
+	 * @return SUCCESS if all entries were pushed, otherwise the first
+	 *         non-SUCCESS response in switch order
+	 */
+	public ISDNConnectorResponse push(FlowEntryBatch batch, SetupTransaction tx) {
+		if (batch.isEmpty())
+			return ISDNConnectorResponse.SUCCESS;
+
+		log.debug(String.format("Pushing %d entries of %s", batch.size(),
+				batch.getCircuitID()));
+
+		return run(batch, tx, null, false);
+	}
+
+	/**
+	 * Push a batch of deletes, removing the entries of each switch in bulk
+	 * (see {@link FloodlightSDNConnector#bulkDelete}) and falling back to
+	 * deleting them one by one if that fails.
+	 *
+	 * @return SUCCESS if all entries were deleted, otherwise the first
+	 *         non-SUCCESS response in switch order
+	 */
+	public ISDNConnectorResponse deleteBySwitch(FlowEntryBatch batch) {
+		if (batch.isEmpty())
+			return ISDNConnectorResponse.SUCCESS;
+
+		log.debug(String.format("Deleting %d entries of %s in bulk",
+				batch.size(), batch.getCircuitID()));
+
+		return run(batch, null, null, true);
+	}
+
+	/**
+	 * Push every entry of the batch, carrying on past failures. Used for
+	 * compensating deletes, which should remove as much as possible.
+	 *
+	 * @return the entries that failed
+	 */
+	public List<FlowEntry> pushAll(FlowEntryBatch batch) {
+		List<FlowEntry> failed = Collections
+				.synchronizedList(new ArrayList<FlowEntry>());
+		if (!batch.isEmpty())
+			run(batch, null, failed, false);
+		return failed;
+	}
+
+	private ISDNConnectorResponse run(FlowEntryBatch batch,
+			SetupTransaction tx, List<FlowEntry> failed, boolean bulk) {
+		Map<String, List<FlowEntry>> groups = batch.groupBySwitch();
+		// even a single pipeline runs on its controller's pool: running it
+		// on the caller's thread would go over maxInFlight when many
+		// circuits of one switch are pushed at once
+		List<Future<ISDNConnectorResponse>> pipelines = new ArrayList<Future<ISDNConnectorResponse>>();
+		for (List<FlowEntry> entries : groups.values()) {
+			ExecutorService executor = executorFor(connector
+					.controllerOf(entries.get(0).getNode()));
+			pipelines.add(executor.submit(new SwitchPipeline(entries, tx,
+					failed, bulk)));
+		}
+
+		ISDNConnectorResponse result = ISDNConnectorResponse.SUCCESS;
+		for (Future<ISDNConnectorResponse> f : pipelines) {
+			ISDNConnectorResponse response;
+			try {
+				response = f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				response = ISDNConnectorResponse.FAILURE;
+			} catch (ExecutionException e) {
+				log.warn("Flow entry pipeline failed: "
+						+ e.getCause().getMessage());
+				response = ISDNConnectorResponse.FAILURE;
+			}
+			if (result == ISDNConnectorResponse.SUCCESS)
+				result = response;
+		}
+		return result;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Resize the pools of all controllers. Pipelines already queued run
+	 * with the new bound.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		boolean grow = maxInFlight > this.maxInFlight;
+		this.maxInFlight = maxInFlight;
+		for (ThreadPoolExecutor e : executors.values()) {
+			// the core size can't exceed the maximum size at any time
+			if (grow) {
+				e.setMaximumPoolSize(maxInFlight);
+				e.setCorePoolSize(maxInFlight);
+			} else {
+				e.setCorePoolSize(maxInFlight);
+				e.setMaximumPoolSize(maxInFlight);
+			}
+		}
+	}
+
+	public void shutdown() {
+		for (ExecutorService e : executors.values())
+			e.shutdown();
+	}
+
+	/**
+	 * Sends the entries of one switch in order, stopping at the first failure
+	 * unless failed entries are collected. In bulk mode the entries are
+	 * deletes, which are first handed to the connector to be removed at once.
+	 */
+	private class SwitchPipeline implements Callable<ISDNConnectorResponse> {
+		private final List<FlowEntry> entries;
+		private final SetupTransaction tx;
+		private final List<FlowEntry> failed;
+		private final boolean bulk;
+
+		SwitchPipeline(List<FlowEntry> entries, SetupTransaction tx,
+				List<FlowEntry> failed, boolean bulk) {
+			this.entries = entries;
+			this.tx = tx;
+			this.failed = failed;
+			this.bulk = bulk;
+		}
+
+		@Override
+		public ISDNConnectorResponse call() {
+			List<FlowEntry> entries = this.entries;
+			if (bulk) {
+				try {
+					entries = connector.bulkDelete(entries);
+				} catch (Exception ex) {
+					log.warn("Couldn't delete entries of "
+							+ entries.get(0).getNode().getId()
+							+ " in bulk, deleting them one by one: "
+							+ ex.getMessage());
+				}
+			}
+
+			ISDNConnectorResponse result = ISDNConnectorResponse.SUCCESS;
+			for (FlowEntry e : entries) {
+				if (tx != null && tx.isAborted())
+					return ISDNConnectorResponse.FAILURE;
+
+				ISDNConnectorResponse response;
+				long start = System.nanoTime();
+				try {
+					response = connector.pushEntry(e);
+				} catch (Exception ex) {
+					log.warn("Couldn't push " + e + ": " + ex.getMessage());
+					response = ISDNConnectorResponse.FAILURE;
+				}
+				metrics.entryDone(e.getHopKey(), start,
+						response == ISDNConnectorResponse.SUCCESS);
+
+				if (response == ISDNConnectorResponse.SUCCESS) {
+					if (tx != null && e.getOperation() == Operation.INSTALL)
+						tx.installed(e);
+					continue;
+				}
+				if (tx != null) {
+					if (e.getOperation() == Operation.INSTALL)
+						tx.failed(e);
+					else
+						tx.abort();
+				}
+				if (failed == null)
+					return response;
+				failed.add(e);
+				if (result == ISDNConnectorResponse.SUCCESS)
+					result = response;
+			}
+			return result;
+		}
+	}
+
+	private static class PusherThreadFactory implements ThreadFactory {
+		private static final AtomicInteger poolNumber = new AtomicInteger();
+		private final AtomicInteger threadNumber = new AtomicInteger();
+		private final int pool = poolNumber.incrementAndGet();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "sdnpss-pusher-" + pool + "-"
+					+ threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
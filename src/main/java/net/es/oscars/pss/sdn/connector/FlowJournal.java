@@ -0,0 +1,353 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import net.es.oscars.pss.sdn.connector.FlowEntryIndex.IndexedEntry;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only on-disk journal of the flow entries installed and deleted by
+ * the connector and of shared hop reference counts and holders. Replaying the journal at
+ * startup rebuilds the {@link FlowEntryIndex} and {@link HopRefCounter} the
+ * PSS had before it stopped.
+ *
+ * The journal is a text file with one tab separated record per line:
+ *
+ * <pre>
+ * I  circuitID  hopKey  dpid  name  request    entry installed
+ * D  circuitID  dpid  name                     entry deleted
+ * R  hopKey  references                        hop reference count
+ * H  circuitID  hopKey  held                   circuit holds a shared hop (1)
+ *                                              or gave it back (0)
+ * </pre>
+ *
+ * All records carry absolute state, so replaying a record twice is harmless.
+ * Once the journal grows past the compaction threshold the current state is
+ * written to a snapshot file, which replaces the journal.
+ *
+ */
+public class FlowJournal {
+	public static final int DEFAULT_COMPACT_THRESHOLD = 50000;
+
+	private static final String JOURNAL_FILE = "flows.journal";
+	private static final String SNAPSHOT_FILE = "flows.snapshot";
+	private static final String BACKUP_FILE = "flows.snapshot.bak";
+	private static final String CHARSET = "UTF-8";
+
+	private static final Logger log = Logger.getLogger(FlowJournal.class
+			.getName());
+
+	private final File journalFile;
+	private final File snapshotFile;
+	private final File backupFile;
+	private final int compactThreshold;
+
+	private FlowEntryIndex index = null;
+	private HopRefCounter refCounts = null;
+	private Writer out = null;
+	private int records = 0;
+
+	public FlowJournal(File directory) throws IOException {
+		this(directory, DEFAULT_COMPACT_THRESHOLD);
+	}
+
+	public FlowJournal(File directory, int compactThreshold)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Couldn't create journal directory "
+					+ directory);
+		this.journalFile = new File(directory, JOURNAL_FILE);
+		this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+		this.backupFile = new File(directory, BACKUP_FILE);
+		this.compactThreshold = compactThreshold;
+	}
+
+	/**
+	 * Load the snapshot and the journal into index and refCounts and open the
+	 * journal for appending. Both are used as the source of future snapshots.
+	 * If a compaction was interrupted before the new snapshot was in place,
+	 * the previous one is loaded from its backup.
+	 */
+	public synchronized void replay(FlowEntryIndex index,
+			HopRefCounter refCounts) throws IOException {
+		long start = System.currentTimeMillis();
+		this.index = index;
+		this.refCounts = refCounts;
+
+		int snapshotRecords = load(snapshotFile.exists() ? snapshotFile
+				: backupFile);
+		records = load(journalFile);
+		out = open(journalFile, true);
+
+		log.info(String.format(
+				"Replayed %d snapshot and %d journal records in %d ms: "
+						+ "%d entries, %d shared hops", snapshotRecords,
+				records, System.currentTimeMillis() - start, index.size(),
+				refCounts.size()));
+	}
+
+	public synchronized void installed(IndexedEntry e) {
+		append(installRecord(e));
+	}
+
+	public synchronized void deleted(String circuitID, String dpid,
+			String name) {
+		append("D\t" + escape(circuitID) + "\t" + escape(dpid) + "\t"
+				+ escape(name));
+	}
+
+	public synchronized void refCount(String hopKey, int references) {
+		append("R\t" + escape(hopKey) + "\t" + references);
+	}
+
+	public synchronized void held(String circuitID, String hopKey,
+			boolean held) {
+		append(holdRecord(circuitID, hopKey, held));
+	}
+
+	private static String holdRecord(String circuitID, String hopKey,
+			boolean held) {
+		return "H\t" + escape(circuitID) + "\t" + escape(hopKey) + "\t"
+				+ (held ? 1 : 0);
+	}
+
+	private static String installRecord(IndexedEntry e) {
+		return "I\t" + escape(e.getCircuitID()) + "\t"
+				+ escape(e.getHopKey()) + "\t" + escape(e.getDPID()) + "\t"
+				+ escape(e.getName()) + "\t" + escape(e.getRequest());
+	}
+
+	private void append(String record) {
+		if (out == null) {
+			log.warn("Journal not open, dropping record " + record);
+			return;
+		}
+		try {
+			out.write(record);
+			out.write('\n');
+			out.flush();
+			if (++records >= compactThreshold)
+				compact();
+		} catch (IOException e) {
+			log.error("Couldn't write to flow journal: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the current state to the snapshot file and start a new, empty
+	 * journal.
+	 */
+	public synchronized void compact() throws IOException {
+		if (index == null)
+			return;
+		long start = System.currentTimeMillis();
+
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		Writer w = new BufferedWriter(new OutputStreamWriter(fos, CHARSET),
+				64 * 1024);
+		int count = 0;
+		try {
+			for (IndexedEntry e : index.entries()) {
+				w.write(installRecord(e));
+				w.write('\n');
+				count++;
+			}
+			for (Map.Entry<String, Integer> r : refCounts.snapshot()
+					.entrySet()) {
+				w.write("R\t" + escape(r.getKey()) + "\t" + r.getValue());
+				w.write('\n');
+				count++;
+			}
+			for (Map.Entry<String, List<String>> h : index.holdings()
+					.entrySet()) {
+				for (String hopKey : h.getValue()) {
+					w.write(holdRecord(h.getKey(), hopKey, true));
+					w.write('\n');
+					count++;
+				}
+			}
+			w.flush();
+			fos.getFD().sync();
+		} finally {
+			w.close();
+		}
+
+		// a crash leaves either the old snapshot, possibly as the backup, or
+		// the new one, and the journal replays over both
+		if (snapshotFile.exists()) {
+			if (backupFile.exists() && !backupFile.delete())
+				throw new IOException("Couldn't delete " + backupFile);
+			if (!snapshotFile.renameTo(backupFile))
+				throw new IOException("Couldn't rename " + snapshotFile
+						+ " to " + backupFile);
+		}
+		if (!tmp.renameTo(snapshotFile))
+			throw new IOException("Couldn't rename " + tmp + " to "
+					+ snapshotFile);
+
+		if (out != null)
+			out.close();
+		out = open(journalFile, false);
+		records = 0;
+		backupFile.delete();
+
+		log.info(String.format("Compacted flow journal into %d records in %d ms",
+				count, System.currentTimeMillis() - start));
+	}
+
+	public synchronized void close() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.warn("Couldn't close flow journal: " + e.getMessage());
+		}
+		out = null;
+	}
+
+	private static Writer open(File f, boolean append) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				f, append), CHARSET));
+	}
+
+	/**
+	 * Apply all records of a file.
+	 *
+	 * @return number of records read
+	 */
+	private int load(File f) throws IOException {
+		if (!f.exists())
+			return 0;
+
+		int count = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(f), CHARSET), 64 * 1024);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+				try {
+					apply(line.split("\t", -1));
+					count++;
+				} catch (RuntimeException e) {
+					// most likely a record truncated by a crash
+					log.warn("Skipping invalid journal record in " + f + ": "
+							+ line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	private void apply(String[] f) {
+		switch (f[0].charAt(0)) {
+		case 'I':
+			String name = unescape(f[4]);
+			index.add(new IndexedEntry(ownerOf(unescape(f[1]), name),
+					unescape(f[2]), unescape(f[3]), name, unescape(f[5])));
+			break;
+		case 'D':
+			name = unescape(f[3]);
+			index.remove(ownerOf(unescape(f[1]), name), unescape(f[2]), name);
+			break;
+		case 'R':
+			refCounts.set(unescape(f[1]), Integer.parseInt(f[2]));
+			break;
+		case 'H':
+			if (Integer.parseInt(f[3]) != 0)
+				index.hold(unescape(f[1]), unescape(f[2]));
+			else
+				index.unhold(unescape(f[1]), unescape(f[2]));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown record " + f[0]);
+		}
+	}
+
+	/**
+	 * @return the circuit an entry is indexed under: journals of older
+	 *         versions have entries of shared hops under the circuit that
+	 *         installed them
+	 */
+	private static String ownerOf(String circuitID, String name) {
+		return EntryNames.SHARED.equals(EntryNames.circuitOf(name))
+				? EntryNames.SHARED : circuitID;
+	}
+
+	/**
+	 * Escapes tabs, line breaks and backslashes, so every value fits in one
+	 * field of a record.
+	 */
+	static String escape(String s) {
+		if (s.indexOf('\t') < 0 && s.indexOf('\n') < 0
+				&& s.indexOf('\r') < 0 && s.indexOf('\\') < 0)
+			return s;
+
+		StringBuilder sb = new StringBuilder(s.length() + 8);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String unescape(String s) {
+		if (s.indexOf('\\') < 0)
+			return s;
+
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				char n = s.charAt(++i);
+				switch (n) {
+				case 't':
+					sb.append('\t');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				default:
+					sb.append(n);
+				}
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
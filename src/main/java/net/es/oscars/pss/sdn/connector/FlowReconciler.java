@@ -0,0 +1,221 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.es.oscars.pss.sdn.connector.FlowEntryIndex.IndexedEntry;
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically compares the static flow entries the controller has for every
+ * switch touched by OSCARS with the entries in the {@link FlowEntryIndex} and
+ * repairs the differences:
+ *
+ * <ul>
+ * <li>entries in the index but missing on the controller are stored again,
+ * using the exact request they were installed with;</li>
+ * <li>entries on the controller that belong to a reservation in the index but
+ * that the index doesn't know about (orphans) are deleted. The reservation
+ * of an entry is found from its cookie, or from its name if the controller
+ * doesn't keep our cookies.</li>
+ * </ul>
+ *
+ * Every listing is also recorded in the index as a confirmation of the
+ * switch's entries, which status queries are answered from (see
+ * {@link FloodlightSDNConnector#circuitStatus}).
+ *
+ * Switches are reconciled one at a time, each with a single list request and
+ * only the store/delete calls needed to repair it, so the cost of a pass is
+ * proportional to the number of switches plus the amount of drift. Circuits
+ * being set up or torn down are skipped until their operation completes.
+ *
+ */
+public class FlowReconciler implements Runnable {
+	private static final Logger log = Logger.getLogger(FlowReconciler.class
+			.getName());
+
+	private volatile FloodlightSDNConnector connector;
+	private final FlowEntryIndex index;
+	private ScheduledExecutorService scheduler = null;
+
+	private final AtomicLong passes = new AtomicLong();
+	private final AtomicLong switchesChecked = new AtomicLong();
+	private final AtomicLong switchErrors = new AtomicLong();
+	private final AtomicLong missingFound = new AtomicLong();
+	private final AtomicLong orphansFound = new AtomicLong();
+	private final AtomicLong repaired = new AtomicLong();
+	private final AtomicLong repairFailures = new AtomicLong();
+	private volatile int lastPassDrift = 0;
+	private volatile long lastPassMillis = 0;
+
+	public FlowReconciler(FloodlightSDNConnector connector, FlowEntryIndex index) {
+		this.connector = connector;
+		this.index = index;
+	}
+
+	/**
+	 * Reconcile through another connector from the next switch on, e.g. when
+	 * the controllers change.
+	 */
+	public void setConnector(FloodlightSDNConnector connector) {
+		this.connector = connector;
+	}
+
+	/**
+	 * Run a reconciliation pass every period seconds.
+	 */
+	public synchronized void start(long period) {
+		if (scheduler != null)
+			return;
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "sdnpss-reconciler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.SECONDS);
+		log.info("Reconciling flow entries every " + period + "s");
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null)
+			scheduler.shutdown();
+		scheduler = null;
+	}
+
+	/**
+	 * Reconcile every switch with entries in the index.
+	 */
+	@Override
+	public void run() {
+		long start = System.currentTimeMillis();
+		int drift = 0;
+		try {
+			for (String dpid : index.switches())
+				drift += reconcileSwitch(dpid);
+		} catch (RuntimeException e) {
+			// never let an exception cancel the periodic task
+			log.error("Reconciliation pass failed: " + e.getMessage());
+		}
+		passes.incrementAndGet();
+		lastPassDrift = drift;
+		lastPassMillis = System.currentTimeMillis() - start;
+		if (drift > 0)
+			log.warn(String.format(
+					"Reconciliation found %d drifted entries in %d ms", drift,
+					lastPassMillis));
+		else
+			log.debug("Reconciliation pass took " + lastPassMillis + " ms");
+	}
+
+	/**
+	 * Reconcile one switch.
+	 *
+	 * @return number of drifted entries found on the switch
+	 */
+	public int reconcileSwitch(String dpid) {
+		Map<String, Long> actual;
+		long listed = System.currentTimeMillis();
+		try {
+			actual = connector.listEntries(dpid);
+		} catch (IOException e) {
+			switchErrors.incrementAndGet();
+			log.warn("Couldn't list entries of " + dpid + ": " + e.getMessage());
+			return 0;
+		}
+		switchesChecked.incrementAndGet();
+		index.confirmSwitch(dpid, actual.keySet(), listed);
+
+		// read the index after the controller: anything that changes in
+		// between is repaired with idempotent store/delete requests
+		Map<String, IndexedEntry> expected = index.entriesOnSwitch(dpid);
+
+		List<IndexedEntry> missing = new ArrayList<IndexedEntry>();
+		for (IndexedEntry e : expected.values()) {
+			if (!actual.containsKey(e.getName())
+					&& !FloodlightSDNConnector.isBusy(e.getCircuitID()))
+				missing.add(e);
+		}
+
+		List<String> orphans = new ArrayList<String>();
+		for (Map.Entry<String, Long> a : actual.entrySet()) {
+			String name = a.getKey();
+			if (expected.containsKey(name))
+				continue;
+			String circuitID = index.ownerOf(name, a.getValue());
+			if (circuitID != null && !FloodlightSDNConnector.isBusy(circuitID))
+				orphans.add(name);
+		}
+
+		missingFound.addAndGet(missing.size());
+		orphansFound.addAndGet(orphans.size());
+
+		for (IndexedEntry e : missing) {
+			log.info("Restoring missing entry " + e);
+			count(connector.restoreEntry(e));
+		}
+		for (String name : orphans) {
+			log.info("Removing orphan entry " + dpid + " " + name);
+			count(connector.removeEntry(dpid, name));
+		}
+		return missing.size() + orphans.size();
+	}
+
+	private void count(ISDNConnectorResponse response) {
+		if (response == ISDNConnectorResponse.SUCCESS)
+			repaired.incrementAndGet();
+		else
+			repairFailures.incrementAndGet();
+	}
+
+	public long getPasses() {
+		return passes.get();
+	}
+
+	public long getSwitchesChecked() {
+		return switchesChecked.get();
+	}
+
+	public long getSwitchErrors() {
+		return switchErrors.get();
+	}
+
+	public long getMissingFound() {
+		return missingFound.get();
+	}
+
+	public long getOrphansFound() {
+		return orphansFound.get();
+	}
+
+	public long getRepaired() {
+		return repaired.get();
+	}
+
+	public long getRepairFailures() {
+		return repairFailures.get();
+	}
+
+	/**
+	 * @return number of drifted entries found by the last pass
+	 */
+	public int getLastPassDrift() {
+		return lastPassDrift;
+	}
+
+	public long getLastPassMillis() {
+		return lastPassMillis;
+	}
+}
@@ -0,0 +1,139 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How many flow entries OSCARS may install on each switch: a default for
+ * all switches and the capacities of the switches that differ, e.g. because
+ * their TCAM is smaller or shared with entries OSCARS doesn't manage.
+ *
+ * Capacities are immutable: a new one is built when the config changes and
+ * handed to the connector (see
+ * {@link FloodlightSDNConnector#configureCapacity}).
+ *
+ */
+public final class FlowTableCapacity {
+	/** no switch has a limit */
+	public static final FlowTableCapacity UNLIMITED = new FlowTableCapacity(0,
+			Collections.<String, Integer> emptyMap());
+
+	private final int defaultCapacity;
+	/* compact DPID -> capacity */
+	private final Map<String, Integer> capacities;
+
+	/**
+	 * @param defaultCapacity
+	 *            entries of a switch not in capacities, 0 for no limit
+	 * @param capacities
+	 *            DPID -> entries, 0 for no limit
+	 * @throws IllegalArgumentException
+	 *             if a capacity is negative
+	 */
+	public FlowTableCapacity(int defaultCapacity,
+			Map<String, Integer> capacities) {
+		if (defaultCapacity < 0)
+			throw new IllegalArgumentException("Negative flow table capacity");
+		Map<String, Integer> compact = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> c : capacities.entrySet()) {
+			if (c.getValue() < 0)
+				throw new IllegalArgumentException(
+						"Negative flow table capacity of " + c.getKey());
+			compact.put(EntryNames.compactDPID(c.getKey()), c.getValue());
+		}
+		this.defaultCapacity = defaultCapacity;
+		this.capacities = compact;
+	}
+
+	/**
+	 * Parse the capacities from the circuit service params:
+	 * flowTableCapacity, the default, and flowTableCapacities, a comma
+	 * separated list of dpid=entries.
+	 *
+	 * @return the capacities, {@link #UNLIMITED} if none is configured
+	 * @throws IllegalArgumentException
+	 *             if a capacity is malformed
+	 */
+	public static FlowTableCapacity fromParams(Map<String, String> params) {
+		int defaultCapacity = 0;
+		if (params.containsKey("flowTableCapacity"))
+			defaultCapacity = parse(params.get("flowTableCapacity"));
+
+		Map<String, Integer> capacities = new HashMap<String, Integer>();
+		if (params.containsKey("flowTableCapacities")) {
+			for (String c : params.get("flowTableCapacities").split(",")) {
+				if (c.trim().length() == 0)
+					continue;
+				int eq = c.indexOf('=');
+				if (eq <= 0 || eq == c.length() - 1)
+					throw new IllegalArgumentException(
+							"Invalid flow table capacity: " + c.trim());
+				capacities.put(c.substring(0, eq).trim(),
+						parse(c.substring(eq + 1)));
+			}
+		}
+
+		if (defaultCapacity == 0 && capacities.isEmpty())
+			return UNLIMITED;
+		return new FlowTableCapacity(defaultCapacity, capacities);
+	}
+
+	private static int parse(String capacity) {
+		try {
+			return Integer.parseInt(capacity.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid flow table capacity: "
+					+ capacity.trim());
+		}
+	}
+
+	/**
+	 * @param dpid
+	 *            the switch DPID, with or without separators
+	 * @return the entries OSCARS may install on the switch, 0 for no limit
+	 */
+	public int capacityOf(String dpid) {
+		if (capacities.isEmpty())
+			return defaultCapacity;
+		Integer c = capacities.get(EntryNames.compactDPID(dpid));
+		return c != null ? c : defaultCapacity;
+	}
+
+	/**
+	 * @return true if no switch has a limit
+	 */
+	public boolean isUnlimited() {
+		if (defaultCapacity != 0)
+			return false;
+		for (int c : capacities.values()) {
+			if (c != 0)
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof FlowTableCapacity))
+			return false;
+		FlowTableCapacity c = (FlowTableCapacity) o;
+		return defaultCapacity == c.defaultCapacity
+				&& capacities.equals(c.capacities);
+	}
+
+	@Override
+	public int hashCode() {
+		return defaultCapacity * 31 + capacities.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		if (isUnlimited())
+			return "unlimited";
+		return (defaultCapacity == 0 ? "unlimited" : defaultCapacity)
+				+ " entries per switch"
+				+ (capacities.isEmpty() ? "" : ", " + capacities.size()
+						+ " switches set apart");
+	}
+}
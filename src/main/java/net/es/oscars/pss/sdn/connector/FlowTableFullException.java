@@ -0,0 +1,31 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The entries of a setup don't fit in the flow table of some switches (see
+ * {@link FlowTableLedger#reserve}).
+ *
+ */
+public class FlowTableFullException extends Exception {
+	private static final long serialVersionUID = 4079203512361498716L;
+
+	private final List<String> switches;
+
+	/**
+	 * @param switches
+	 *            DPIDs of the switches that would overflow
+	 */
+	public FlowTableFullException(List<String> switches, String message) {
+		super(message);
+		this.switches = Collections.unmodifiableList(switches);
+	}
+
+	/**
+	 * @return the DPIDs of the switches that would overflow
+	 */
+	public List<String> getSwitches() {
+		return switches;
+	}
+}
@@ -0,0 +1,175 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Accounts for the flow table entries OSCARS has on each switch, so setups
+ * that don't fit are refused before anything is pushed instead of failing
+ * halfway when a switch's table is full and being rolled back.
+ *
+ * The entries of a switch are the ones installed (see
+ * {@link FlowEntryIndex}) plus the ones reserved by setups in progress. A
+ * setup reserves room for all the entries it will install before its first
+ * call to a controller, and releases the reservation once they are
+ * installed, and so indexed, or rolled back. Entries replacing an entry of
+ * the same name don't take room.
+ *
+ */
+public class FlowTableLedger {
+	private static final Logger log = Logger.getLogger(FlowTableLedger.class
+			.getName());
+
+	private final FlowEntryIndex index;
+	private volatile FlowTableCapacity capacity = FlowTableCapacity.UNLIMITED;
+	/* dpid -> entries reserved by setups in progress, guarded by this */
+	private final Map<String, int[]> reserved = new HashMap<String, int[]>();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Room reserved on the switches by a setup.
+	 */
+	public static final class Reservation {
+		/* dpid -> entries */
+		private final Map<String, Integer> entries;
+		private boolean released = false;
+
+		private Reservation(Map<String, Integer> entries) {
+			this.entries = entries;
+		}
+
+		/**
+		 * @return DPID -> entries reserved on the switch
+		 */
+		public Map<String, Integer> getEntries() {
+			return entries;
+		}
+	}
+
+	public FlowTableLedger(FlowEntryIndex index) {
+		this.index = index;
+	}
+
+	public FlowTableCapacity getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Set the capacities. Reservations already made are kept, even if they
+	 * no longer fit.
+	 */
+	public void setCapacity(FlowTableCapacity capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserve room for the entries a setup will install.
+	 *
+	 * @param batches
+	 *            the batches of the setup; deletions are ignored
+	 * @return the reservation, to release once the entries are installed or
+	 *         rolled back
+	 * @throws FlowTableFullException
+	 *             if the entries don't fit on some switch; nothing is
+	 *             reserved then
+	 */
+	public Reservation reserve(String circuitID, List<FlowEntryBatch> batches)
+			throws FlowTableFullException {
+		// entries that take room, by switch
+		Map<String, Integer> needed = new LinkedHashMap<String, Integer>();
+		Set<String> seen = new HashSet<String>();
+		for (FlowEntryBatch batch : batches) {
+			for (FlowEntry e : batch.getEntries()) {
+				if (e.getOperation() != FlowEntry.Operation.INSTALL)
+					continue;
+				String dpid = FloodlightRequestWriter.toDPID(e.getNode());
+				if (!seen.add(FlowEntryIndex.entryKey(dpid, e.getName()))
+						|| index.isInstalled(dpid, e.getName()))
+					continue;
+				Integer n = needed.get(dpid);
+				needed.put(dpid, n == null ? 1 : n + 1);
+			}
+		}
+
+		FlowTableCapacity capacity = this.capacity;
+		synchronized (this) {
+			List<String> full = new ArrayList<String>();
+			StringBuilder why = new StringBuilder();
+			for (Map.Entry<String, Integer> n : needed.entrySet()) {
+				int limit = capacity.capacityOf(n.getKey());
+				if (limit == 0)
+					continue;
+				int used = index.countOnSwitch(n.getKey())
+						+ reservedOn(n.getKey());
+				if (used + n.getValue() > limit) {
+					full.add(n.getKey());
+					why.append(String.format(
+							"%s%s needs %d entries, %d of %d used",
+							why.length() == 0 ? "" : "; ", n.getKey(),
+							n.getValue(), used, limit));
+				}
+			}
+			if (!full.isEmpty()) {
+				rejected.incrementAndGet();
+				throw new FlowTableFullException(full, "Flow tables full for "
+						+ circuitID + ": " + why);
+			}
+
+			for (Map.Entry<String, Integer> n : needed.entrySet()) {
+				int[] r = reserved.get(n.getKey());
+				if (r == null) {
+					r = new int[1];
+					reserved.put(n.getKey(), r);
+				}
+				r[0] += n.getValue();
+			}
+		}
+		if (log.isDebugEnabled())
+			log.debug("Reserved " + needed + " for " + circuitID);
+		return new Reservation(needed);
+	}
+
+	/**
+	 * Give back the room of a reservation; releasing it again does nothing.
+	 */
+	public synchronized void release(Reservation reservation) {
+		if (reservation == null || reservation.released)
+			return;
+		reservation.released = true;
+		for (Map.Entry<String, Integer> n : reservation.entries.entrySet()) {
+			int[] r = reserved.get(n.getKey());
+			if (r == null)
+				continue;
+			r[0] -= n.getValue();
+			if (r[0] <= 0)
+				reserved.remove(n.getKey());
+		}
+	}
+
+	private int reservedOn(String dpid) {
+		int[] r = reserved.get(dpid);
+		return r == null ? 0 : r[0];
+	}
+
+	/**
+	 * @return the entries installed and reserved on a switch
+	 */
+	public synchronized int usedOn(String dpid) {
+		return index.countOnSwitch(dpid) + reservedOn(dpid);
+	}
+
+	/**
+	 * @return the number of setups refused because a flow table was full
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+}
@@ -0,0 +1,142 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+/**
+ * Reference counts for hops shared by several circuits. A shared hop is only
+ * programmed by the first circuit that uses it and only removed by the last
+ * one.
+ *
+ * Counts are kept in lock-striped maps: operations on different hops rarely
+ * contend, and the test-and-update of a single hop is atomic. Hops are keyed
+ * by a string built from the node id and ports (see {@link #keyOf(SDNHop)}),
+ * which is stable across JVMs, unlike SDNHop's identity hash code.
+ *
+ */
+public class HopRefCounter {
+	private static final int DEFAULT_STRIPES = 16;
+
+	private final Stripe[] stripes;
+
+	private static class Stripe {
+		/* int[1] holders are updated in place, no boxing per change */
+		final Map<String, int[]> counts = new HashMap<String, int[]>();
+	}
+
+	public HopRefCounter() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public HopRefCounter(int stripeCount) {
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * @return a key identifying the hop by node id and in/out ports
+	 */
+	public static String keyOf(SDNHop h) {
+		return h.getNode().getId() + "/" + h.getSrcPort() + "/"
+				+ h.getDstPort();
+	}
+
+	private Stripe stripeFor(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Add a reference to the hop.
+	 *
+	 * @return the number of references, with this one: 1 if this is the
+	 *         first reference, i.e. the hop still has to be programmed
+	 */
+	public int acquire(String key) {
+		Stripe s = stripeFor(key);
+		synchronized (s) {
+			int[] count = s.counts.get(key);
+			if (count == null) {
+				s.counts.put(key, new int[] { 1 });
+				return 1;
+			}
+			return ++count[0];
+		}
+	}
+
+	/**
+	 * Drop a reference to the hop.
+	 *
+	 * @return the number of references left: 0 if this was the last one (the
+	 *         hop must be removed) or -1 if the hop had no references
+	 */
+	public int release(String key) {
+		Stripe s = stripeFor(key);
+		synchronized (s) {
+			int[] count = s.counts.get(key);
+			if (count == null)
+				return -1;
+			if (--count[0] <= 0) {
+				s.counts.remove(key);
+				return 0;
+			}
+			return count[0];
+		}
+	}
+
+	/**
+	 * @return the current number of references to the hop
+	 */
+	public int get(String key) {
+		Stripe s = stripeFor(key);
+		synchronized (s) {
+			int[] count = s.counts.get(key);
+			return count == null ? 0 : count[0];
+		}
+	}
+
+	/**
+	 * Overwrite the number of references to the hop. A count of 0 or less
+	 * removes the hop.
+	 */
+	public void set(String key, int references) {
+		Stripe s = stripeFor(key);
+		synchronized (s) {
+			if (references <= 0)
+				s.counts.remove(key);
+			else
+				s.counts.put(key, new int[] { references });
+		}
+	}
+
+	/**
+	 * @return number of hops with at least one reference
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				size += s.counts.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return a copy of all counts, taken one stripe at a time
+	 */
+	public Map<String, Integer> snapshot() {
+		Map<String, Integer> copy = new HashMap<String, Integer>();
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				for (Map.Entry<String, int[]> e : s.counts.entrySet())
+					copy.put(e.getKey(), e.getValue()[0]);
+			}
+		}
+		return copy;
+	}
+}
@@ -78,6 +78,19 @@ public interface ISDNConnector {
 	public ISDNConnectorResponse teardownCircuit(List<SDNHop> hops,
 			String circuitID) throws Exception;
 
+	/**
+	 * SDN Connector implementation of a circuit modification: move a circuit
+	 * that was set up with setupCircuit to a new list of hops and/or a new
+	 * OpenFlow rule without tearing it down.
+	 * 
+	 * @param oldHops the hops the circuit currently uses, or null if unknown
+	 * @param hops the new hops of the circuit
+	 * @param rule the new OpenFlow rule
+	 * @throws Exception
+	 */
+	public ISDNConnectorResponse modifyCircuit(List<SDNHop> oldHops,
+			List<SDNHop> hops, String circuitID, OFRule rule) throws Exception;
+
 
 
     
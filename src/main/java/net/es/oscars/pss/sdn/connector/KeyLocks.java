@@ -0,0 +1,105 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks keyed by string, e.g. shared hops or switches, held across the
+ * several calls to the controllers of a step that must not interleave with
+ * another circuit's step on the same keys.
+ *
+ * Locks are striped like {@link HopRefCounter}: keys of the same stripe
+ * share a lock. A set of keys is locked stripe by stripe in stripe order, so
+ * callers locking overlapping sets don't deadlock.
+ *
+ */
+public class KeyLocks {
+	private static final int DEFAULT_STRIPES = 64;
+
+	private final ReentrantReadWriteLock[] stripes;
+
+	/**
+	 * Locks taken by one call, to be unlocked by the same thread.
+	 */
+	public static final class Held {
+		private final List<Lock> locks;
+
+		private Held(List<Lock> locks) {
+			this.locks = locks;
+		}
+
+		public void unlock() {
+			for (int i = locks.size() - 1; i >= 0; i--)
+				locks.get(i).unlock();
+			locks.clear();
+		}
+	}
+
+	public KeyLocks() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public KeyLocks(int stripeCount) {
+		stripes = new ReentrantReadWriteLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new ReentrantReadWriteLock();
+	}
+
+	private int stripeOf(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % stripes.length;
+	}
+
+	private TreeSet<Integer> stripesOf(Collection<String> keys) {
+		TreeSet<Integer> ordered = new TreeSet<Integer>();
+		for (String key : keys)
+			ordered.add(stripeOf(key));
+		return ordered;
+	}
+
+	/**
+	 * Lock the keys exclusively, waiting for other holders of any of them.
+	 */
+	public Held lock(Collection<String> keys) {
+		List<Lock> locks = new ArrayList<Lock>();
+		for (int s : stripesOf(keys)) {
+			Lock l = stripes[s].writeLock();
+			l.lock();
+			locks.add(l);
+		}
+		return new Held(locks);
+	}
+
+	/**
+	 * Lock the keys shared with other shared holders, waiting for exclusive
+	 * holders of any of them.
+	 */
+	public Held lockShared(Collection<String> keys) {
+		List<Lock> locks = new ArrayList<Lock>();
+		for (int s : stripesOf(keys)) {
+			Lock l = stripes[s].readLock();
+			l.lock();
+			locks.add(l);
+		}
+		return new Held(locks);
+	}
+
+	/**
+	 * Lock a key exclusively if no one holds it.
+	 *
+	 * @return the lock, or null if the key is held
+	 */
+	public Held tryLock(String key) {
+		Lock l = stripes[stripeOf(key)].writeLock();
+		if (!l.tryLock())
+			return null;
+		List<Lock> locks = new ArrayList<Lock>();
+		locks.add(l);
+		return new Held(locks);
+	}
+}
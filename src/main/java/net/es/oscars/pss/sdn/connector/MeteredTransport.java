@@ -0,0 +1,89 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.IOException;
+
+import net.es.oscars.pss.sdn.metrics.SdnMetrics;
+
+/**
+ * Transport decorator recording the latency and failures of every call in
+ * {@link SdnMetrics}, per staticflowentrypusher endpoint. It sits below the
+ * {@link ResilientTransport}, so each attempt is recorded on its own.
+ *
+ */
+public class MeteredTransport implements FloodlightTransport {
+	private static final String BASE_PATH = "/wm/staticflowentrypusher/";
+
+	private final FloodlightTransport delegate;
+	private final SdnMetrics metrics;
+
+	public MeteredTransport(FloodlightTransport delegate, SdnMetrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the endpoint of a path without its switch, e.g. "json/store"
+	 *         or "list"
+	 */
+	static String endpointOf(String path) {
+		if (!path.startsWith(BASE_PATH))
+			return path;
+		String endpoint = path.substring(BASE_PATH.length());
+		if (endpoint.startsWith("json/"))
+			return endpoint;
+		int slash = endpoint.indexOf('/');
+		return slash < 0 ? endpoint : endpoint.substring(0, slash);
+	}
+
+	public FloodlightTransport getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getAddress() {
+		return delegate.getAddress();
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len)
+			throws IOException {
+		return post(path, body, off, len, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len,
+			int timeout) throws IOException {
+		long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			String response = delegate.post(path, body, off, len, timeout);
+			ok = true;
+			return response;
+		} finally {
+			metrics.restDone(endpointOf(path), start, ok);
+		}
+	}
+
+	@Override
+	public String get(String path) throws IOException {
+		return get(path, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public String get(String path, int timeout) throws IOException {
+		long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			String response = delegate.get(path, timeout);
+			ok = true;
+			return response;
+		} finally {
+			metrics.restDone(endpointOf(path), start, ok);
+		}
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+}
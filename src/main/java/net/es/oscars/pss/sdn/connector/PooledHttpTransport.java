@@ -0,0 +1,568 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP/1.1 transport keeping a pool of persistent (keep-alive) connections to
+ * the controller, so pushing an entry costs a request/response exchange
+ * instead of a TCP (and TLS) handshake as well.
+ *
+ * At most maxConnections calls are in progress at any time; further calls
+ * wait for a connection up to the connect timeout. Connections idle for more
+ * than {@link #IDLE_TIMEOUT} ms are not reused, since the controller may have
+ * closed them already. A call on a reused connection is retried once on a
+ * new connection if the request couldn't be written or the controller
+ * closed the connection without answering, i.e. it had closed it already.
+ * A call that timed out isn't retried here: the controller may still be
+ * working on it (see {@link ResilientTransport} for retries).
+ *
+ * HTTPS connections check that the controller's certificate matches its
+ * host name.
+ *
+ */
+public class PooledHttpTransport implements FloodlightTransport {
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+	public static final long IDLE_TIMEOUT = 30000;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger log = Logger.getLogger(PooledHttpTransport.class
+			.getName());
+
+	private final String address;
+	private final String host;
+	private final int port;
+	private final boolean ssl;
+	private final String basePath;
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+
+	private final Permits permits;
+	/* guarded by permits */
+	private int maxConnections;
+	/* most recently used connection first */
+	private final LinkedList<Connection> idle = new LinkedList<Connection>();
+	private volatile boolean closed = false;
+
+	/**
+	 * A semaphore whose permits can be taken away for good.
+	 */
+	private static class Permits extends Semaphore {
+		private static final long serialVersionUID = 5219346018572391734L;
+
+		Permits(int permits) {
+			super(permits, true);
+		}
+
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+	/**
+	 * Thrown when a reused connection turns out to be closed by the peer
+	 * before it answered.
+	 */
+	private static class StaleConnectionException extends IOException {
+		private static final long serialVersionUID = 3418226154542098413L;
+
+		StaleConnectionException(String message) {
+			super(message);
+		}
+	}
+
+	private class Connection {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private long lastUsed;
+		private boolean reusable = true;
+
+		Connection(int connectTimeout, int readTimeout) throws IOException {
+			Socket s = new Socket();
+			try {
+				s.setTcpNoDelay(true);
+				s.setKeepAlive(true);
+				s.connect(new InetSocketAddress(host, port), connectTimeout);
+				s.setSoTimeout(readTimeout);
+				if (ssl) {
+					SSLSocket tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory
+							.getDefault()).createSocket(s, host, port, true);
+					tls.startHandshake();
+					// check the certificate is the controller's, as
+					// HttpsURLConnection does: the default verifier only
+					// decides when the certificate doesn't name the host
+					if (!certifies(tls.getSession(), host)
+							&& !HttpsURLConnection.getDefaultHostnameVerifier()
+									.verify(host, tls.getSession())) {
+						tls.close();
+						throw new SSLPeerUnverifiedException(
+								"Certificate doesn't match host name " + host);
+					}
+					s = tls;
+				}
+			} catch (IOException e) {
+				s.close();
+				throw e;
+			}
+			socket = s;
+			in = new BufferedInputStream(s.getInputStream(), 8192);
+			out = new BufferedOutputStream(s.getOutputStream(), 8192);
+		}
+
+		String exchange(String method, String path, byte[] body, int off,
+				int len, int readTimeout, boolean reused) throws IOException {
+			socket.setSoTimeout(readTimeout);
+			StringBuilder head = new StringBuilder(256);
+			head.append(method).append(' ').append(basePath).append(path)
+					.append(" HTTP/1.1\r\nHost: ").append(host).append(':')
+					.append(port).append("\r\nAccept: application/json\r\n")
+					.append("Connection: keep-alive\r\n");
+			if (body != null)
+				head.append("Content-Type: application/json\r\n")
+						.append("Content-Length: ").append(len).append("\r\n");
+			head.append("\r\n");
+
+			try {
+				out.write(head.toString().getBytes(ASCII));
+				if (body != null)
+					out.write(body, off, len);
+				out.flush();
+			} catch (IOException e) {
+				// not sent, or not all of it
+				if (reused && !(e instanceof SocketTimeoutException))
+					throw new StaleConnectionException(e.getMessage());
+				throw e;
+			}
+
+			int first;
+			try {
+				first = in.read();
+			} catch (SocketTimeoutException e) {
+				// the controller may be working on it
+				throw e;
+			} catch (IOException e) {
+				// reset before answering anything
+				if (reused)
+					throw new StaleConnectionException(e.getMessage());
+				throw e;
+			}
+			if (first < 0) {
+				if (reused)
+					throw new StaleConnectionException("Connection closed");
+				throw new IOException("Connection closed by controller");
+			}
+			String statusLine = readLine(first);
+
+			int status = parseStatus(statusLine);
+			long contentLength = -1;
+			boolean chunked = false;
+			String line;
+			while ((line = readLine()) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon < 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					contentLength = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.equalsIgnoreCase("chunked");
+				else if (name.equalsIgnoreCase("Connection")
+						&& value.equalsIgnoreCase("close"))
+					reusable = false;
+			}
+			if (line == null)
+				throw new IOException("Truncated response headers");
+			if (statusLine.startsWith("HTTP/1.0"))
+				reusable = false;
+
+			ByteArrayOutputStream content = new ByteArrayOutputStream(
+					contentLength > 0 ? (int) contentLength : 256);
+			if (chunked) {
+				readChunked(content);
+			} else if (contentLength >= 0) {
+				copy(content, contentLength);
+			} else {
+				// body delimited by the end of the connection
+				copy(content, Long.MAX_VALUE);
+				reusable = false;
+			}
+			lastUsed = System.currentTimeMillis();
+
+			String text = new String(content.toByteArray(), UTF8);
+			if (status < 200 || status >= 300)
+				throw new ControllerResponseException(status,
+						"Controller answered " + statusLine + ": " + text);
+			return text;
+		}
+
+		private int parseStatus(String statusLine) throws IOException {
+			int sp = statusLine.indexOf(' ');
+			if (!statusLine.startsWith("HTTP/") || sp < 0
+					|| statusLine.length() < sp + 4)
+				throw new IOException("Invalid status line: " + statusLine);
+			try {
+				return Integer.parseInt(statusLine.substring(sp + 1, sp + 4));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid status line: " + statusLine);
+			}
+		}
+
+		private void readChunked(ByteArrayOutputStream content)
+				throws IOException {
+			while (true) {
+				String size = readLine();
+				if (size == null)
+					throw new IOException("Truncated chunked response");
+				int semi = size.indexOf(';');
+				if (semi >= 0)
+					size = size.substring(0, semi);
+				long n;
+				try {
+					n = Long.parseLong(size.trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: " + size);
+				}
+				if (n == 0)
+					break;
+				copy(content, n);
+				readLine();
+			}
+			// trailers
+			String line;
+			while ((line = readLine()) != null && line.length() > 0)
+				;
+		}
+
+		/**
+		 * Copy n bytes, or everything up to the end of the stream if n is
+		 * Long.MAX_VALUE.
+		 */
+		private void copy(ByteArrayOutputStream content, long n)
+				throws IOException {
+			byte[] b = new byte[4096];
+			while (n > 0) {
+				int r = in.read(b, 0, (int) Math.min(b.length, n));
+				if (r < 0) {
+					if (n == Long.MAX_VALUE)
+						return;
+					throw new IOException("Truncated response body");
+				}
+				content.write(b, 0, r);
+				if (n != Long.MAX_VALUE)
+					n -= r;
+			}
+		}
+
+		/**
+		 * @return a CRLF (or LF) terminated line without the terminator, or
+		 *         null at the end of the stream
+		 */
+		private String readLine() throws IOException {
+			return readLine(in.read());
+		}
+
+		/**
+		 * @param c
+		 *            the first byte of the line, already read
+		 */
+		private String readLine(int c) throws IOException {
+			StringBuilder sb = new StringBuilder(64);
+			for (; c >= 0; c = in.read()) {
+				if (c == '\n') {
+					int len = sb.length();
+					if (len > 0 && sb.charAt(len - 1) == '\r')
+						sb.setLength(len - 1);
+					return sb.toString();
+				}
+				sb.append((char) c);
+			}
+			return sb.length() > 0 ? sb.toString() : null;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	public PooledHttpTransport(String address) throws MalformedURLException {
+		this(address, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT,
+				DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * @param address
+	 *            controller base URL, e.g. http://controller:8080
+	 * @param maxConnections
+	 *            maximum number of connections (and of calls in progress)
+	 * @param connectTimeout
+	 *            ms
+	 * @param readTimeout
+	 *            ms
+	 */
+	public PooledHttpTransport(String address, int maxConnections,
+			int connectTimeout, int readTimeout) throws MalformedURLException {
+		URL url = new URL(address);
+		if (!url.getProtocol().equals("http")
+				&& !url.getProtocol().equals("https"))
+			throw new MalformedURLException("Unsupported protocol in "
+					+ address);
+		this.address = address;
+		this.host = url.getHost();
+		this.ssl = url.getProtocol().equals("https");
+		this.port = url.getPort() > 0 ? url.getPort() : (ssl ? 443 : 80);
+		String path = url.getPath();
+		this.basePath = path.endsWith("/") ? path.substring(0,
+				path.length() - 1) : path;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnections = maxConnections;
+		this.permits = new Permits(maxConnections);
+	}
+
+	/**
+	 * Change the pool size and timeouts while calls are in progress. Calls in
+	 * progress complete as they started; if the pool shrinks, new calls wait
+	 * until enough of them are done. Idle connections are closed, so every
+	 * new connection gets the new timeouts.
+	 */
+	public void resize(int maxConnections, int connectTimeout,
+			int readTimeout) {
+		synchronized (permits) {
+			int delta = maxConnections - this.maxConnections;
+			if (delta > 0)
+				permits.release(delta);
+			else if (delta < 0)
+				permits.reduce(-delta);
+			this.maxConnections = maxConnections;
+		}
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		synchronized (idle) {
+			for (Connection c : idle)
+				c.close();
+			idle.clear();
+		}
+	}
+
+	@Override
+	public String getAddress() {
+		return address;
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len)
+			throws IOException {
+		return execute("POST", path, body, off, len, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len,
+			int timeout) throws IOException {
+		return execute("POST", path, body, off, len, timeout);
+	}
+
+	@Override
+	public String get(String path) throws IOException {
+		return execute("GET", path, null, 0, 0, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public String get(String path, int timeout) throws IOException {
+		return execute("GET", path, null, 0, 0, timeout);
+	}
+
+	private String execute(String method, String path, byte[] body, int off,
+			int len, int timeout) throws IOException {
+		if (closed)
+			throw new IOException("Transport to " + address + " is closed");
+		int connectTimeout = Math.min(this.connectTimeout, timeout);
+		int readTimeout = Math.min(this.readTimeout, timeout);
+		try {
+			if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS))
+				throw new IOException("No connection to " + address
+						+ " available");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection");
+		}
+
+		try {
+			Connection c = takeIdle();
+			if (c != null) {
+				try {
+					return exchange(c, method, path, body, off, len,
+							readTimeout, true);
+				} catch (StaleConnectionException e) {
+					log.debug("Retrying on a new connection: " + e.getMessage());
+				}
+			}
+			return exchange(new Connection(connectTimeout, readTimeout),
+					method, path, body, off, len, readTimeout, false);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private String exchange(Connection c, String method, String path,
+			byte[] body, int off, int len, int readTimeout, boolean reused)
+			throws IOException {
+		boolean ok = false;
+		try {
+			String response = c.exchange(method, path, body, off, len,
+					readTimeout, reused);
+			ok = true;
+			return response;
+		} finally {
+			if (ok && c.reusable)
+				giveBack(c);
+			else
+				c.close();
+		}
+	}
+
+	private Connection takeIdle() {
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			while (!idle.isEmpty()) {
+				Connection c = idle.removeFirst();
+				if (now - c.lastUsed < IDLE_TIMEOUT)
+					return c;
+				c.close();
+			}
+		}
+		return null;
+	}
+
+	private void giveBack(Connection c) {
+		synchronized (idle) {
+			if (!closed) {
+				idle.addFirst(c);
+				return;
+			}
+		}
+		c.close();
+	}
+
+	/**
+	 * @return whether the peer's certificate names host, in a subject
+	 *         alternative name or, if it has no DNS names, in its common name
+	 */
+	static boolean certifies(SSLSession session, String host)
+			throws SSLPeerUnverifiedException {
+		Certificate[] chain = session.getPeerCertificates();
+		if (chain.length == 0 || !(chain[0] instanceof X509Certificate))
+			return false;
+		X509Certificate cert = (X509Certificate) chain[0];
+		String name = host.toLowerCase(Locale.ENGLISH);
+		// IP addresses only match IP address entries
+		boolean ip = name.indexOf(':') >= 0
+				|| name.matches("[0-9]+(\\.[0-9]+){3}");
+
+		Collection<List<?>> alternatives;
+		try {
+			alternatives = cert.getSubjectAlternativeNames();
+		} catch (CertificateParsingException e) {
+			return false;
+		}
+		boolean dnsNames = false;
+		if (alternatives != null) {
+			for (List<?> alt : alternatives) {
+				int type = ((Integer) alt.get(0)).intValue();
+				String value = String.valueOf(alt.get(1)).toLowerCase(
+						Locale.ENGLISH);
+				if (type == 2) {
+					dnsNames = true;
+					if (!ip && matchesName(value, name))
+						return true;
+				} else if (type == 7 && ip && value.equals(name)) {
+					return true;
+				}
+			}
+		}
+		if (dnsNames || ip)
+			return false;
+
+		String subject = cert.getSubjectX500Principal().getName(
+				X500Principal.RFC2253);
+		for (String rdn : subject.split("(?<!\\\\),")) {
+			if (rdn.regionMatches(true, 0, "CN=", 0, 3))
+				return matchesName(rdn.substring(3).toLowerCase(
+						Locale.ENGLISH), name);
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether name matches pattern, whose leftmost label may be *
+	 */
+	private static boolean matchesName(String pattern, String name) {
+		if (!pattern.startsWith("*."))
+			return pattern.equals(name);
+		int dot = name.indexOf('.');
+		return dot > 0 && name.substring(dot).equals(pattern.substring(1));
+	}
+
+	/**
+	 * @return number of idle connections in the pool
+	 */
+	public int getIdleConnections() {
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+
+	/**
+	 * @return number of calls that may start right now
+	 */
+	public int getAvailablePermits() {
+		return permits.availablePermits();
+	}
+
+	@Override
+	public void close() {
+		synchronized (idle) {
+			closed = true;
+			for (Connection c : idle)
+				c.close();
+			idle.clear();
+		}
+	}
+}
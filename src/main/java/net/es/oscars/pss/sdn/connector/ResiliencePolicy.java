@@ -0,0 +1,102 @@
+package net.es.oscars.pss.sdn.connector;
+
+/**
+ * Retry and circuit breaker settings of a {@link ResilientTransport}.
+ *
+ */
+public class ResiliencePolicy {
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	public static final long DEFAULT_RETRY_BASE = 100;
+	public static final long DEFAULT_RETRY_MAX = 2000;
+	public static final long DEFAULT_CALL_DEADLINE = 15000;
+	public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+	public static final long DEFAULT_BREAKER_OPEN_INTERVAL = 10000;
+
+	public static final ResiliencePolicy DEFAULT = new ResiliencePolicy(
+			DEFAULT_MAX_RETRIES, DEFAULT_RETRY_BASE, DEFAULT_RETRY_MAX,
+			DEFAULT_CALL_DEADLINE, DEFAULT_BREAKER_THRESHOLD,
+			DEFAULT_BREAKER_OPEN_INTERVAL);
+
+	private final int maxRetries;
+	private final long retryBase;
+	private final long retryMax;
+	private final long callDeadline;
+	private final int breakerThreshold;
+	private final long breakerOpenInterval;
+
+	/**
+	 * @param maxRetries
+	 *            retries after the first attempt of a call (0 disables)
+	 * @param retryBase
+	 *            ms, upper bound of the first retry's backoff, doubled for
+	 *            every further retry
+	 * @param retryMax
+	 *            ms, upper bound of any backoff
+	 * @param callDeadline
+	 *            ms a call may take, retries included: attempts time out
+	 *            at the deadline and aren't retried past it
+	 * @param breakerThreshold
+	 *            consecutive failed calls that open the circuit breaker (0
+	 *            disables)
+	 * @param breakerOpenInterval
+	 *            ms the breaker stays open before letting a trial call
+	 *            through
+	 */
+	public ResiliencePolicy(int maxRetries, long retryBase, long retryMax,
+			long callDeadline, int breakerThreshold, long breakerOpenInterval) {
+		this.maxRetries = maxRetries;
+		this.retryBase = retryBase;
+		this.retryMax = retryMax;
+		this.callDeadline = callDeadline;
+		this.breakerThreshold = breakerThreshold;
+		this.breakerOpenInterval = breakerOpenInterval;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getRetryBase() {
+		return retryBase;
+	}
+
+	public long getRetryMax() {
+		return retryMax;
+	}
+
+	public long getCallDeadline() {
+		return callDeadline;
+	}
+
+	public int getBreakerThreshold() {
+		return breakerThreshold;
+	}
+
+	public long getBreakerOpenInterval() {
+		return breakerOpenInterval;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ResiliencePolicy))
+			return false;
+		ResiliencePolicy p = (ResiliencePolicy) o;
+		return maxRetries == p.maxRetries && retryBase == p.retryBase
+				&& retryMax == p.retryMax && callDeadline == p.callDeadline
+				&& breakerThreshold == p.breakerThreshold
+				&& breakerOpenInterval == p.breakerOpenInterval;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (maxRetries * 31 + retryBase * 17 + callDeadline * 7
+				+ breakerThreshold * 3 + breakerOpenInterval + retryMax);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("retries=%d backoff=%d-%dms deadline=%dms "
+				+ "breaker=%d/%dms", maxRetries, retryBase, retryMax,
+				callDeadline, breakerThreshold, breakerOpenInterval);
+	}
+}
@@ -0,0 +1,293 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Transport decorator adding retries, a per-call deadline and a circuit
+ * breaker to the calls of another transport.
+ *
+ * Failed calls are retried with jittered exponential backoff as long as the
+ * call's deadline allows it. Every attempt is given the time left until the
+ * deadline as its timeout, so a call doesn't overrun its deadline by a whole
+ * attempt. All the connector's calls can be repeated safely: entries are
+ * stored and deleted by name, and lists are read-only.
+ * Calls the controller rejected as invalid (4xx) are not retried.
+ *
+ * After breakerThreshold consecutive failed calls the breaker opens and calls
+ * fail immediately with a {@link CircuitOpenException}, instead of each one
+ * waiting for the controller to time out. Once the open interval elapses a
+ * single trial call is let through (half open): the breaker closes if it
+ * succeeds and opens again otherwise.
+ *
+ */
+public class ResilientTransport implements FloodlightTransport {
+	private static final Logger log = Logger.getLogger(ResilientTransport.class
+			.getName());
+	private static final Random random = new Random();
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	/**
+	 * The call wasn't attempted because the circuit breaker is open.
+	 */
+	public static class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = 6904529011853262779L;
+
+		CircuitOpenException(String message) {
+			super(message);
+		}
+	}
+
+	private interface Call {
+		String run(int timeout) throws IOException;
+	}
+
+	private final FloodlightTransport delegate;
+	private volatile ResiliencePolicy policy;
+
+	/* breaker state, guarded by this */
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+	private boolean trialInProgress = false;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong breakerOpens = new AtomicLong();
+
+	public ResilientTransport(FloodlightTransport delegate,
+			ResiliencePolicy policy) {
+		this.delegate = delegate;
+		this.policy = policy;
+	}
+
+	@Override
+	public String getAddress() {
+		return delegate.getAddress();
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len)
+			throws IOException {
+		return post(path, body, off, len, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public String post(final String path, final byte[] body, final int off,
+			final int len, int timeout) throws IOException {
+		return execute(new Call() {
+			@Override
+			public String run(int timeout) throws IOException {
+				return delegate.post(path, body, off, len, timeout);
+			}
+		}, timeout);
+	}
+
+	@Override
+	public String get(String path) throws IOException {
+		return get(path, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public String get(final String path, int timeout) throws IOException {
+		return execute(new Call() {
+			@Override
+			public String run(int timeout) throws IOException {
+				return delegate.get(path, timeout);
+			}
+		}, timeout);
+	}
+
+	/**
+	 * @param timeout
+	 *            ms, shortens the policy's call deadline
+	 */
+	private String execute(Call call, int timeout) throws IOException {
+		calls.incrementAndGet();
+		long deadline = System.currentTimeMillis()
+				+ Math.min(policy.getCallDeadline(), timeout);
+
+		for (int attempt = 0;; attempt++) {
+			if (!allow()) {
+				rejected.incrementAndGet();
+				throw new CircuitOpenException("Controller "
+						+ delegate.getAddress() + " is unavailable");
+			}
+
+			// at least 1 ms: a timeout of 0 means none to sockets
+			long left = Math.max(1, deadline - System.currentTimeMillis());
+			IOException failure;
+			try {
+				String response = call.run((int) Math.min(left,
+						Integer.MAX_VALUE));
+				onSuccess();
+				return response;
+			} catch (ControllerResponseException e) {
+				if (!e.isServerError()) {
+					// the controller is fine, the request isn't
+					onSuccess();
+					throw e;
+				}
+				failure = e;
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			long backoff = backoff(attempt);
+			if (attempt >= policy.getMaxRetries()
+					|| System.currentTimeMillis() + backoff >= deadline) {
+				onFailure();
+				failures.incrementAndGet();
+				throw failure;
+			}
+
+			// the attempt doesn't count for the breaker yet, but a trial
+			// call must give way to another trial
+			releaseTrial();
+			retries.incrementAndGet();
+			log.debug(String.format("Retrying call to %s in %d ms: %s",
+					delegate.getAddress(), backoff, failure.getMessage()));
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				onFailure();
+				failures.incrementAndGet();
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * @return a random backoff between 0 and retryBase * 2^attempt, capped
+	 *         at retryMax
+	 */
+	private long backoff(int attempt) {
+		long max = Math.min(policy.getRetryMax(),
+				policy.getRetryBase() << Math.min(attempt, 20));
+		if (max <= 0)
+			return 0;
+		synchronized (random) {
+			return (long) (random.nextDouble() * max);
+		}
+	}
+
+	private synchronized boolean allow() {
+		switch (state) {
+		case OPEN:
+			if (System.currentTimeMillis() - openedAt < policy
+					.getBreakerOpenInterval())
+				return false;
+			state = State.HALF_OPEN;
+			trialInProgress = true;
+			log.info("Trying controller " + delegate.getAddress() + " again");
+			return true;
+		case HALF_OPEN:
+			if (trialInProgress)
+				return false;
+			trialInProgress = true;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	private synchronized void releaseTrial() {
+		trialInProgress = false;
+	}
+
+	private synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		trialInProgress = false;
+		if (state != State.CLOSED) {
+			log.info("Controller " + delegate.getAddress() + " is back");
+			state = State.CLOSED;
+		}
+	}
+
+	private synchronized void onFailure() {
+		consecutiveFailures++;
+		trialInProgress = false;
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && policy.getBreakerThreshold() > 0 && consecutiveFailures >= policy
+						.getBreakerThreshold())) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			breakerOpens.incrementAndGet();
+			log.warn(String.format(
+					"Controller %s failed %d calls in a row, failing calls "
+							+ "for the next %d ms", delegate.getAddress(),
+					consecutiveFailures, policy.getBreakerOpenInterval()));
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return when the breaker last opened (ms since the epoch), 0 if never
+	 */
+	public synchronized long getOpenedAt() {
+		return openedAt;
+	}
+
+	public ResiliencePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Change the policy. Calls in progress finish their current attempt and
+	 * retry under the new policy, the breaker keeps its state.
+	 */
+	public void setPolicy(ResiliencePolicy policy) {
+		this.policy = policy;
+	}
+
+	public FloodlightTransport getDelegate() {
+		return delegate;
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return calls that failed after all their attempts
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return calls failed by the open breaker without being attempted
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getBreakerOpens() {
+		return breakerOpens.get();
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+}
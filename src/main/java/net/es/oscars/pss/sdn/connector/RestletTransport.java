@@ -0,0 +1,110 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.restlet.data.MediaType;
+import org.restlet.representation.InputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ClientResource;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Transport sending every call through a new Restlet ClientResource, as the
+ * connector used to. ClientResources aren't thread safe, so they are never
+ * shared between calls.
+ *
+ * Restlet's client connector has no per-call timeouts: calls with a timeout
+ * run like any other, bounded by the connector's own settings only.
+ *
+ */
+public class RestletTransport implements FloodlightTransport {
+	private final String address;
+	private volatile boolean closed = false;
+
+	public RestletTransport(String address) {
+		this.address = address;
+	}
+
+	@Override
+	public String getAddress() {
+		return address;
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len)
+			throws IOException {
+		ClientResource cr = resource(path);
+		try {
+			return text(cr.post(new InputRepresentation(
+					new ByteArrayInputStream(body, off, len),
+					MediaType.APPLICATION_JSON, len)));
+		} catch (IOException e) {
+			throw e;
+		} catch (ResourceException e) {
+			throw responseException(e);
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			cr.release();
+		}
+	}
+
+	@Override
+	public String post(String path, byte[] body, int off, int len,
+			int timeout) throws IOException {
+		return post(path, body, off, len);
+	}
+
+	@Override
+	public String get(String path, int timeout) throws IOException {
+		return get(path);
+	}
+
+	@Override
+	public String get(String path) throws IOException {
+		ClientResource cr = resource(path);
+		try {
+			return text(cr.get());
+		} catch (IOException e) {
+			throw e;
+		} catch (ResourceException e) {
+			throw responseException(e);
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			cr.release();
+		}
+	}
+
+	private ClientResource resource(String path) throws IOException {
+		if (closed)
+			throw new IOException("Transport to " + address + " is closed");
+		return new ClientResource(address + path);
+	}
+
+	/**
+	 * Restlet reports connector errors (connection refused, timeouts) with
+	 * status codes above 1000, which are treated like server errors.
+	 */
+	private static ControllerResponseException responseException(
+			ResourceException e) {
+		return new ControllerResponseException(e.getStatus().getCode(),
+				e.getMessage());
+	}
+
+	private static String text(Representation response) throws IOException {
+		if (response == null)
+			throw new IOException("Empty response from controller");
+		try {
+			return response.getText();
+		} finally {
+			response.release();
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
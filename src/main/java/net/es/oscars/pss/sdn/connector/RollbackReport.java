@@ -0,0 +1,89 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the rollback of a failed circuit setup undid, see
+ * {@link SetupTransaction}.
+ *
+ */
+public class RollbackReport {
+	private final String circuitID;
+	private final List<FlowEntry> removed;
+	private final List<FlowEntry> notRemoved;
+	private final List<FlowEntry> kept;
+	private final List<String> releasedHops;
+	private final long time;
+
+	/**
+	 * @param removed
+	 *            entries deleted from their switch
+	 * @param notRemoved
+	 *            entries whose deletion failed, which may still be on their
+	 *            switch
+	 * @param kept
+	 *            entries of shared hops left in place because another circuit
+	 *            took a reference on the hop in the meantime
+	 * @param releasedHops
+	 *            hop references given back
+	 */
+	public RollbackReport(String circuitID, List<FlowEntry> removed,
+			List<FlowEntry> notRemoved, List<FlowEntry> kept,
+			List<String> releasedHops) {
+		this.circuitID = circuitID;
+		this.removed = Collections.unmodifiableList(removed);
+		this.notRemoved = Collections.unmodifiableList(notRemoved);
+		this.kept = Collections.unmodifiableList(kept);
+		this.releasedHops = Collections.unmodifiableList(releasedHops);
+		this.time = System.currentTimeMillis();
+	}
+
+	public String getCircuitID() {
+		return circuitID;
+	}
+
+	public List<FlowEntry> getRemoved() {
+		return removed;
+	}
+
+	public List<FlowEntry> getNotRemoved() {
+		return notRemoved;
+	}
+
+	public List<FlowEntry> getKept() {
+		return kept;
+	}
+
+	public List<String> getReleasedHops() {
+		return releasedHops;
+	}
+
+	/**
+	 * @return when the rollback completed (ms since the epoch)
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return true if nothing the setup installed was left behind
+	 */
+	public boolean isComplete() {
+		return notRemoved.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Rollback of ").append(circuitID).append(": removed ")
+				.append(removed.size()).append(" entries, released ")
+				.append(releasedHops.size()).append(" hop references");
+		if (!kept.isEmpty())
+			sb.append(", kept ").append(kept.size())
+					.append(" entries of shared hops");
+		if (!notRemoved.isEmpty())
+			sb.append(", FAILED to remove ").append(notRemoved);
+		return sb.toString();
+	}
+}
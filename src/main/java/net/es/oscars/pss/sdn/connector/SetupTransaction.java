@@ -0,0 +1,89 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records everything a circuit setup changed, so it can be undone if the
+ * setup fails halfway: the hop references it took and the entries it
+ * installed. Entries whose installation failed are recorded too, since the
+ * controller may have stored them before the call failed (e.g. on a read
+ * timeout).
+ *
+ * Switch pipelines record entries concurrently, so all methods are
+ * thread safe. Once a pipeline aborts the transaction the other pipelines
+ * stop pushing, as everything they install would be rolled back anyway.
+ *
+ */
+public class SetupTransaction {
+	private final String circuitID;
+
+	/* guarded by this */
+	private final List<String> acquiredHops = new ArrayList<String>();
+	private final List<FlowEntry> installed = new ArrayList<FlowEntry>();
+	private final List<FlowEntry> uncertain = new ArrayList<FlowEntry>();
+
+	private volatile boolean aborted = false;
+
+	public SetupTransaction(String circuitID) {
+		this.circuitID = circuitID;
+	}
+
+	public String getCircuitID() {
+		return circuitID;
+	}
+
+	/**
+	 * Record a reference taken on a shared hop.
+	 */
+	public synchronized void acquired(String hopKey) {
+		acquiredHops.add(hopKey);
+	}
+
+	/**
+	 * Record an entry the controller confirmed.
+	 */
+	public synchronized void installed(FlowEntry e) {
+		installed.add(e);
+	}
+
+	/**
+	 * Record an entry that failed to install and abort the transaction.
+	 */
+	public void failed(FlowEntry e) {
+		synchronized (this) {
+			uncertain.add(e);
+		}
+		abort();
+	}
+
+	public void abort() {
+		aborted = true;
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * @return the hop references taken, in order
+	 */
+	public synchronized List<String> getAcquiredHops() {
+		return new ArrayList<String>(acquiredHops);
+	}
+
+	/**
+	 * @return the entries confirmed by the controller, in the order they were
+	 *         confirmed
+	 */
+	public synchronized List<FlowEntry> getInstalled() {
+		return new ArrayList<FlowEntry>(installed);
+	}
+
+	/**
+	 * @return the entries that failed and may or may not be on their switch
+	 */
+	public synchronized List<FlowEntry> getUncertain() {
+		return new ArrayList<FlowEntry>(uncertain);
+	}
+}
@@ -0,0 +1,117 @@
+package net.es.oscars.pss.sdn.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds, with log-linear buckets
+ * in the manner of HdrHistogram: every power of two is split into 16 linear
+ * sub-buckets, so any recorded value is reported within about 6% while the
+ * whole range from 1us to days fits in a few hundred counters. Recording is
+ * a couple of atomic increments and never allocates.
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	/* values above 2^40 us (12 days) are clamped */
+	private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS + 1;
+	private static final int BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return value < 0 ? 0 : (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS + 1;
+		if (shift > MAX_SHIFT)
+			return BUCKETS - 1;
+		return SUB_BUCKETS + (shift - 1) * HALF
+				+ (int) ((value >> shift) - HALF);
+	}
+
+	/**
+	 * @return the highest value counted in the bucket
+	 */
+	private static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param micros
+	 *            latency in microseconds
+	 */
+	public void record(long micros) {
+		counts.incrementAndGet(indexOf(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get()))
+			if (max.compareAndSet(m, micros))
+				break;
+	}
+
+	/**
+	 * Record the time elapsed since startNanos, a System.nanoTime() value.
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return sum of all recorded values (us)
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return the value (us) below which the given percentage of the
+	 *         recorded values fall, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.min(percentile, 100) / 100 * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+}
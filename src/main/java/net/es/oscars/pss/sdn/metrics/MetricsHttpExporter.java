@@ -0,0 +1,95 @@
+package net.es.oscars.pss.sdn.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the {@link SdnMetrics} snapshot as plain text (the Prometheus
+ * exposition format) on GET /metrics, from a single daemon thread.
+ *
+ */
+public class MetricsHttpExporter {
+	private static final Logger log = Logger
+			.getLogger(MetricsHttpExporter.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final SdnMetrics metrics;
+	private final HttpServer server;
+
+	/**
+	 * @param address
+	 *            interface to listen on, e.g. 127.0.0.1 to only allow local
+	 *            scrapes
+	 */
+	public MetricsHttpExporter(SdnMetrics metrics, String address, int port)
+			throws IOException {
+		this.metrics = metrics;
+		server = HttpServer.create(new InetSocketAddress(address, port), 16);
+		server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sdnpss-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = render().getBytes(UTF8);
+					exchange.getResponseHeaders().set("Content-Type",
+							"text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.flush();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+		log.info("Serving metrics on http:/" + server.getAddress()
+				+ "/metrics");
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * @return the port actually listened on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	String render() {
+		StringBuilder sb = new StringBuilder(8192);
+		for (Map.Entry<String, Double> e : metrics.snapshot().entrySet()) {
+			sb.append(e.getKey()).append(' ');
+			double v = e.getValue();
+			if (v == Math.rint(v) && !Double.isInfinite(v))
+				sb.append((long) v);
+			else
+				sb.append(v);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,93 @@
+package net.es.oscars.pss.sdn.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the {@link SdnMetrics} snapshot over JMX, one read-only
+ * attribute per metric. The attribute set follows the snapshot, so metrics
+ * appearing later (a new endpoint, hop or gauge) show up once the MBean info
+ * is fetched again.
+ *
+ */
+public class MetricsMBean implements DynamicMBean {
+	public static final String OBJECT_NAME = "net.es.oscars.pss.sdn:type=Metrics";
+
+	private final SdnMetrics metrics;
+
+	public MetricsMBean(SdnMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Register with the platform MBean server under {@link #OBJECT_NAME}.
+	 */
+	public void register() throws JMException {
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Double value = metrics.snapshot().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Double> snapshot = metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String a : attributes) {
+			Double value = snapshot.get(a);
+			if (value != null)
+				list.add(new Attribute(a, value));
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName()
+				+ " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Double> e : metrics.snapshot().entrySet())
+			attributes.add(new MBeanAttributeInfo(e.getKey(), Double.class
+					.getName(), e.getKey(), true, false, false));
+		return new MBeanInfo(getClass().getName(), "SDN PSS metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,73 @@
+package net.es.oscars.pss.sdn.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and keeps their one minute exponentially weighted moving
+ * average rate, as Unix load averages do. The average is updated every
+ * {@link #TICK} ms by whichever thread marks or reads the meter first, so
+ * there is no timer thread.
+ *
+ */
+public class RateMeter {
+	public static final long TICK = 5000;
+
+	private static final double ALPHA = 1 - Math.exp(-TICK / 60000.0);
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong uncounted = new AtomicLong();
+	private final AtomicLong lastTick;
+	/* events per TICK, guarded by this */
+	private double rate = 0;
+	private boolean initialized = false;
+
+	public RateMeter() {
+		lastTick = new AtomicLong(System.currentTimeMillis());
+	}
+
+	public void mark() {
+		mark(1);
+	}
+
+	public void mark(long n) {
+		tickIfNecessary();
+		count.addAndGet(n);
+		uncounted.addAndGet(n);
+	}
+
+	private void tickIfNecessary() {
+		long old = lastTick.get();
+		long now = System.currentTimeMillis();
+		long age = now - old;
+		if (age < TICK)
+			return;
+		long newTick = now - age % TICK;
+		if (!lastTick.compareAndSet(old, newTick))
+			return;
+		synchronized (this) {
+			for (long i = age / TICK; i > 0; i--) {
+				double instant = uncounted.getAndSet(0);
+				if (initialized) {
+					rate += ALPHA * (instant - rate);
+				} else {
+					rate = instant;
+					initialized = true;
+				}
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return events per second over the last minute or so
+	 */
+	public double getOneMinuteRate() {
+		tickIfNecessary();
+		synchronized (this) {
+			return rate * 1000 / TICK;
+		}
+	}
+}
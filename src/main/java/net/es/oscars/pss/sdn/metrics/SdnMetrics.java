@@ -0,0 +1,259 @@
+package net.es.oscars.pss.sdn.metrics;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+
+/**
+ * Metrics of the PSS: circuit and flow entry provisioning latencies, REST
+ * call latencies per controller endpoint, entry throughput, outcomes of
+ * circuit operations and gauges registered by other components (reference
+ * counts, queue depths...).
+ *
+ * {@link #snapshot()} flattens everything into name/value pairs, which
+ * {@link MetricsHttpExporter} and {@link MetricsMBean} publish. Names follow
+ * the Prometheus conventions: latencies are summaries in seconds with
+ * quantile, _count, _sum and _max series.
+ *
+ */
+public class SdnMetrics {
+	public static final String PREFIX = "sdnpss_";
+	/* bounds the number of per GRI and per hop series */
+	public static final int MAX_KEYS = 1024;
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final SdnMetrics instance = new SdnMetrics();
+
+	/**
+	 * Reports the current value of something, e.g. the size of a map.
+	 */
+	public interface Gauge {
+		double getValue();
+	}
+
+	public enum Operation {
+		SETUP, TEARDOWN, MODIFY;
+
+		String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	private final EnumMap<Operation, LatencyHistogram> circuitLatency = new EnumMap<Operation, LatencyHistogram>(
+			Operation.class);
+	private final EnumMap<Operation, EnumMap<ISDNConnectorResponse, AtomicLong>> responses = new EnumMap<Operation, EnumMap<ISDNConnectorResponse, AtomicLong>>(
+			Operation.class);
+	/* latency of the last operations on recent circuits, guarded by itself */
+	private final Map<String, long[]> recentCircuits = new LinkedHashMap<String, long[]>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+			return size() > MAX_RECENT_CIRCUITS;
+		}
+	};
+	private static final int MAX_RECENT_CIRCUITS = 256;
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	private final LatencyHistogram entryLatency = new LatencyHistogram();
+	private final ConcurrentMap<String, LatencyHistogram> hopLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, LatencyHistogram> restLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, AtomicLong> restFailures = new ConcurrentHashMap<String, AtomicLong>();
+	private final RateMeter entriesPushed = new RateMeter();
+	private final AtomicLong entryFailures = new AtomicLong();
+	private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	public static SdnMetrics getInstance() {
+		return instance;
+	}
+
+	SdnMetrics() {
+		for (Operation op : Operation.values()) {
+			circuitLatency.put(op, new LatencyHistogram());
+			EnumMap<ISDNConnectorResponse, AtomicLong> counts = new EnumMap<ISDNConnectorResponse, AtomicLong>(
+					ISDNConnectorResponse.class);
+			for (ISDNConnectorResponse r : ISDNConnectorResponse.values())
+				counts.put(r, new AtomicLong());
+			responses.put(op, counts);
+		}
+	}
+
+	/**
+	 * Record a circuit setup, teardown or modification that started at startNanos
+	 * (System.nanoTime()).
+	 */
+	public void circuitDone(Operation op, String gri, long startNanos,
+			ISDNConnectorResponse response) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		circuitLatency.get(op).record(micros);
+		responses.get(op).get(response).incrementAndGet();
+		synchronized (recentCircuits) {
+			long[] latency = recentCircuits.get(gri);
+			if (latency == null) {
+				latency = new long[OPERATIONS.length];
+				Arrays.fill(latency, -1);
+				recentCircuits.put(gri, latency);
+			}
+			latency[op.ordinal()] = micros;
+		}
+	}
+
+	/**
+	 * Record a flow entry push (install or delete) of a hop.
+	 */
+	public void entryDone(String hopKey, long startNanos, boolean success) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		entryLatency.record(micros);
+		LatencyHistogram hop = hopKey == null ? null : keyed(hopLatency,
+				hopKey);
+		if (hop != null)
+			hop.record(micros);
+		if (success)
+			entriesPushed.mark();
+		else
+			entryFailures.incrementAndGet();
+	}
+
+	/**
+	 * Record a REST call to a controller endpoint, e.g. "json/store".
+	 */
+	public void restDone(String endpoint, long startNanos, boolean success) {
+		LatencyHistogram h = keyed(restLatency, endpoint);
+		if (h != null)
+			h.recordSince(startNanos);
+		if (!success) {
+			AtomicLong failures = restFailures.get(endpoint);
+			if (failures == null) {
+				AtomicLong n = new AtomicLong();
+				failures = restFailures.putIfAbsent(endpoint, n);
+				if (failures == null)
+					failures = n;
+			}
+			failures.incrementAndGet();
+		}
+	}
+
+	private static LatencyHistogram keyed(
+			ConcurrentMap<String, LatencyHistogram> map, String key) {
+		LatencyHistogram h = map.get(key);
+		if (h == null) {
+			if (map.size() >= MAX_KEYS)
+				return null;
+			LatencyHistogram n = new LatencyHistogram();
+			h = map.putIfAbsent(key, n);
+			if (h == null)
+				h = n;
+		}
+		return h;
+	}
+
+	/**
+	 * Publish a gauge under the given name (without prefix), replacing any
+	 * gauge of the same name.
+	 */
+	public void register(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public LatencyHistogram getCircuitLatency(Operation op) {
+		return circuitLatency.get(op);
+	}
+
+	public LatencyHistogram getEntryLatency() {
+		return entryLatency;
+	}
+
+	public RateMeter getEntriesPushed() {
+		return entriesPushed;
+	}
+
+	public long getResponseCount(Operation op, ISDNConnectorResponse response) {
+		return responses.get(op).get(response).get();
+	}
+
+	/**
+	 * @return all metrics by name, labels included (e.g.
+	 *         sdnpss_rest_seconds{endpoint="json/store",quantile="0.99"})
+	 */
+	public SortedMap<String, Double> snapshot() {
+		SortedMap<String, Double> s = new TreeMap<String, Double>();
+
+		for (Operation op : Operation.values()) {
+			String labels = "operation=\"" + op.label() + "\"";
+			summary(s, "circuit_seconds", labels, circuitLatency.get(op));
+			for (Map.Entry<ISDNConnectorResponse, AtomicLong> e : responses
+					.get(op).entrySet())
+				s.put(name("circuit_responses_total", labels + ",response=\""
+						+ e.getKey().name().toLowerCase() + "\""), (double) e
+						.getValue().get());
+		}
+		synchronized (recentCircuits) {
+			for (Map.Entry<String, long[]> e : recentCircuits.entrySet()) {
+				for (Operation op : Operation.values()) {
+					long micros = e.getValue()[op.ordinal()];
+					if (micros >= 0)
+						s.put(name("circuit_last_seconds", "gri=\""
+								+ escape(e.getKey()) + "\",operation=\""
+								+ op.label() + "\""), micros / 1e6);
+				}
+			}
+		}
+
+		summary(s, "entry_seconds", null, entryLatency);
+		for (Map.Entry<String, LatencyHistogram> e : hopLatency.entrySet())
+			summary(s, "hop_entry_seconds",
+					"hop=\"" + escape(e.getKey()) + "\"", e.getValue());
+		s.put(name("entries_pushed_total", null),
+				(double) entriesPushed.getCount());
+		s.put(name("entries_pushed_per_second", null),
+				entriesPushed.getOneMinuteRate());
+		s.put(name("entry_failures_total", null), (double) entryFailures.get());
+
+		for (Map.Entry<String, LatencyHistogram> e : restLatency.entrySet())
+			summary(s, "rest_seconds",
+					"endpoint=\"" + escape(e.getKey()) + "\"", e.getValue());
+		for (Map.Entry<String, AtomicLong> e : restFailures.entrySet())
+			s.put(name("rest_failures_total",
+					"endpoint=\"" + escape(e.getKey()) + "\""), (double) e
+					.getValue().get());
+
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			try {
+				s.put(name(e.getKey(), null), e.getValue().getValue());
+			} catch (RuntimeException ex) {
+				// a broken gauge mustn't hide the other metrics
+			}
+		}
+		return s;
+	}
+
+	private static void summary(Map<String, Double> s, String name,
+			String labels, LatencyHistogram h) {
+		String l = labels == null ? "" : labels + ",";
+		for (double q : QUANTILES)
+			s.put(name(name, l + "quantile=\"" + q + "\""),
+					h.getValueAtPercentile(q * 100) / 1e6);
+		s.put(name(name + "_count", labels), (double) h.getCount());
+		s.put(name(name + "_sum", labels), h.getSum() / 1e6);
+		s.put(name(name + "_max", labels), h.getMax() / 1e6);
+	}
+
+	private static String name(String name, String labels) {
+		if (labels == null)
+			return PREFIX + name;
+		return PREFIX + name + "{" + labels + "}";
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
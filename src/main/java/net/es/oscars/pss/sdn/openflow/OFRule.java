@@ -1,482 +1,868 @@
 package net.es.oscars.pss.sdn.openflow;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * OFRule represents an entry in an OpenFlow table. It is basically a map of
- * OpenFlow key,value pairs that get inserted in an OpenFlow switch table. It is
- * used by sdnPSS to parse OF match input and OF actions and to generate the
- * final Floodlight request.
- * 
+ * OFRule represents an entry in an OpenFlow table: a set of OpenFlow match
+ * fields, the actions applied to matching packets, the name of the entry and
+ * optionally its priority.
+ * It is used by sdnPSS to parse OF match input and OF actions and to generate
+ * the final Floodlight request.
+ *
+ * Rules are immutable and are created with a {@link Builder}. Match fields are
+ * kept as primitives in an array indexed by {@link Field}: ports, VLAN ids and
+ * the EtherType as plain numbers, MAC addresses packed in the low 48 bits of a
+ * long and IPv4 addresses in the low 32 bits with the prefix length above
+ * them. The action string is computed once, the first time it is needed.
+ *
  * @author Henrique Rodrigues <hsr@cs.ucsd.edu>
- * 
- *         TODO: create a new child class FloodlightOFRule that extends this,
- *         but that override the entrySet() method to return Floodlight specific
- *         tokens using Floodlight's specific translation.
  */
-public class OFRule extends HashMap<String, String> {
-	private static final long serialVersionUID = 5955370395586986465L;
-
-	public static String IP_REGEX = "" + "^([01]?\\d\\d?|2[0-4]\\d|25[0-5])"
-			+ "\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])"
-			+ "\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])"
-			+ "\\.([01]?\\d\\d?|2[0-4]\\d|25[0-5])(|(\\/(\\d|[1-2]\\d|3[0-2])))$";
-
-	public static String MAC_REGEX = "^([0-9A-Fa-f]{2}[:]){5}([0-9A-Fa-f]{2})$";
-	private static String INT_REGEX = "^[1-9]\\d*$";
-	private static String HEX_REGEX = "^(0x|)[0-9A-Fa-f]*$";
-	private static String EMPTY_REGEX = "^$";
-	private static String ANY_REGEX = "^.*$";
-
-	private static String OF_STR_ACTIONS = "actions";
-	private static String OF_STR_SET_VLAN = "set-vlan-id";
-	private static String OF_STR_STRIP_VLAN = "strip-vlan";
-	private static String OF_STR_DL_VLAN = "dl_vlan";
-	private static String OF_STR_OUTPUT = "output";
-	private static String OF_STR_NW_DST = "nw_dst";
-	private static String OF_STR_NW_SRC = "nw_src";
-
-	// TODO: replace the strings on the maps below by class static strings
-	private static Map<String, String> OFACTIONS_REGEX = new HashMap<String, String>() {
-		private static final long serialVersionUID = -4517039142009168646L;
-		{
-			// actions
-			put(OF_STR_OUTPUT, INT_REGEX);
-			put(OF_STR_SET_VLAN, INT_REGEX);
-			put(OF_STR_STRIP_VLAN, EMPTY_REGEX);
-		}
-	};
-
-	private static Map<String, String> OFRULE_REGEX = new HashMap<String, String>() {
-		private static final long serialVersionUID = 4335160907174232213L;
-		{
-			put("in_port", INT_REGEX);
-			put("dl_dst", MAC_REGEX);
-			put("dl_src", MAC_REGEX);
-			put("dl_type", HEX_REGEX);
-			put(OF_STR_DL_VLAN, INT_REGEX);
-			put("dl_vlan_pcp", INT_REGEX);
-			put(OF_STR_NW_DST, IP_REGEX);
-			put(OF_STR_NW_SRC, IP_REGEX);
-			put("nw_proto", INT_REGEX);
-			put("nw_tos", INT_REGEX);
-			put("tp_dst", INT_REGEX);
-			put("tp_src", INT_REGEX);
-			// actions
-			put(OF_STR_OUTPUT, INT_REGEX);
-			put(OF_STR_SET_VLAN, INT_REGEX);
-			put(OF_STR_STRIP_VLAN, EMPTY_REGEX);
-			// name
-			put("name", ANY_REGEX);
-			put(OF_STR_ACTIONS, ANY_REGEX);
-		}
-	};
-
-	private static Map<String, String> OFRULE_REVERSE = new HashMap<String, String>() {
-		private static final long serialVersionUID = -8409540222829712936L;
-
-		{
-			put("in_port", OF_STR_OUTPUT);
-			put(OF_STR_OUTPUT, "in_port");
-			put("dl_dst", "dl_src");
-			put("dl_src", "dl_dst");
-			put(OF_STR_DL_VLAN, OF_STR_SET_VLAN);
-			put(OF_STR_SET_VLAN, OF_STR_DL_VLAN);
-
-			put("tp_dst", "tp_src");
-			put("tp_src", "tp_dst");
-			put("nw_tos", "nw_tos");
-			put(OF_STR_NW_DST, OF_STR_NW_SRC);
-			put(OF_STR_NW_SRC, OF_STR_NW_DST);
-			put("dl_type", "dl_type");
-			put("nw_proto", "nw_proto");
-			put(OF_STR_STRIP_VLAN, "");
-			put("dl_vlan_pcp", "dl_vlan_pcp");
-		}
-	};
-
-	private static Map<String, String> OFRULE_TO_FLOODLIGHT = new HashMap<String, String>() {
-		private static final long serialVersionUID = -8776965333516612787L;
-
-		{
-			put("in_port", "ingress-port");
-			put("dl_dst", "dst-mac");
-			put("dl_src", "src-mac");
-			put("dl_type", "ether-type");
-			put(OF_STR_DL_VLAN, "vlan-id");
-			put("dl_vlan_pcp", "vlan-priority");
-			put(OF_STR_NW_DST, "dst-ip");
-			put(OF_STR_NW_SRC, "src-ip");
-			put("nw_proto", "protocol");
-			put("nw_tos", "tos-bits");
-			put("tp_dst", "dst-port");
-			put("tp_src", "src-port");
-			put("name", "name");
-			put(OF_STR_ACTIONS, OF_STR_ACTIONS);
-		}
-	};
-
-	public Map<String, String> actions = null;
-
-	public OFRule() {
-		super();
-		this.actions = new HashMap<String, String>();
-	}
-
-	public OFRule(String match) throws Exception {
-		super();
-		this.actions = new HashMap<String, String>();
-
-		if (!OFRule.isValidOFRuleString(match)) {
-			throw new Exception("Invalid match");
+public final class OFRule {
+
+	private static final String OF_STR_NAME = "name";
+
+	/** priority of entries that don't set one, as in Floodlight */
+	public static final int DEFAULT_PRIORITY = 32767;
+	public static final int MAX_PRIORITY = 65535;
+
+	/**
+	 * Value formats accepted by OFRule fields.
+	 */
+	private enum ValueType {
+		/** positive decimal integer without leading zeros */
+		INT,
+		/** 6 colon separated hex bytes */
+		MAC,
+		/** dotted IPv4 address with an optional /0-32 prefix length */
+		IP,
+		/** hex number, optionally prefixed by 0x */
+		HEX,
+		/** empty string */
+		EMPTY;
+	}
+
+	/**
+	 * OpenFlow match fields, with their OF and Floodlight staticflowpusher
+	 * names.
+	 */
+	public enum Field {
+		IN_PORT("in_port", "ingress-port", ValueType.INT, Integer.MAX_VALUE),
+		DL_DST("dl_dst", "dst-mac", ValueType.MAC, 0xffffffffffffL),
+		DL_SRC("dl_src", "src-mac", ValueType.MAC, 0xffffffffffffL),
+		DL_TYPE("dl_type", "ether-type", ValueType.HEX, 0xffff),
+		DL_VLAN("dl_vlan", "vlan-id", ValueType.INT, 4095),
+		DL_VLAN_PCP("dl_vlan_pcp", "vlan-priority", ValueType.INT, 7),
+		NW_DST("nw_dst", "dst-ip", ValueType.IP, 0),
+		NW_SRC("nw_src", "src-ip", ValueType.IP, 0),
+		NW_PROTO("nw_proto", "protocol", ValueType.INT, 255),
+		NW_TOS("nw_tos", "tos-bits", ValueType.INT, 255),
+		TP_DST("tp_dst", "dst-port", ValueType.INT, 65535),
+		TP_SRC("tp_src", "src-port", ValueType.INT, 65535);
+
+		private final String ofName;
+		private final String floodlightName;
+		private final ValueType type;
+		private final long max;
+
+		private Field(String ofName, String floodlightName, ValueType type,
+				long max) {
+			this.ofName = ofName;
+			this.floodlightName = floodlightName;
+			this.type = type;
+			this.max = max;
+		}
+
+		public String getOFName() {
+			return ofName;
+		}
+
+		public String getFloodlightName() {
+			return floodlightName;
+		}
+
+		/**
+		 * @return the field matching the same value in the opposite direction
+		 */
+		Field reverse() {
+			switch (this) {
+			case DL_DST:
+				return DL_SRC;
+			case DL_SRC:
+				return DL_DST;
+			case NW_DST:
+				return NW_SRC;
+			case NW_SRC:
+				return NW_DST;
+			case TP_DST:
+				return TP_SRC;
+			case TP_SRC:
+				return TP_DST;
+			default:
+				return this;
+			}
 		}
-		this.putAll(OFRule.parseOFRule(match));
 	}
 
-	public OFRule(String match, String action) throws Exception {
-		super();
-		this.actions = new HashMap<String, String>();
+	/**
+	 * An OpenFlow action. Types are declared in the order they are applied.
+	 */
+	public static final class Action {
+		public enum Type {
+			STRIP_VLAN("strip-vlan", ValueType.EMPTY, 0),
+			SET_VLAN_ID("set-vlan-id", ValueType.INT, 4095),
+			OUTPUT("output", ValueType.INT, Integer.MAX_VALUE);
+
+			private final String ofName;
+			private final ValueType type;
+			private final long max;
+
+			private Type(String ofName, ValueType type, long max) {
+				this.ofName = ofName;
+				this.type = type;
+				this.max = max;
+			}
+
+			public String getOFName() {
+				return ofName;
+			}
+		}
+
+		private final Type type;
+		private final int value;
 
-		if (!OFRule.isValidOFRuleString(match)
-				|| !OFRule.isValidOFRuleString(action)) {
-			throw new Exception("Invalid match and/or action");
+		private Action(Type type, int value) {
+			this.type = type;
+			this.value = value;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * @return the port or VLAN id of the action, 0 for strip-vlan
+		 */
+		public int getValue() {
+			return value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Action))
+				return false;
+			Action a = (Action) o;
+			return type == a.type && value == a.value;
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + value;
+		}
+
+		@Override
+		public String toString() {
+			if (type.type == ValueType.EMPTY)
+				return type.ofName;
+			return type.ofName + "=" + value;
 		}
-		this.putAll(OFRule.parseOFRule(match));
-		this.actions.putAll(OFRule.parseOFRule(match));
 	}
 
-	public OFRule(Map<String, String> m) throws Exception {
-		this.actions = new HashMap<String, String>();
+	private static final Field[] FIELDS = Field.values();
+	private static final Action.Type[] ACTION_TYPES = Action.Type.values();
 
-		if (!OFRule.isValidOFRule((Map<String, String>) m)) {
-			throw new Exception("Invalid match");
+	private final long[] values;
+	private final int fields;
+	private final String name;
+	private final int priority;
+	private final List<Action> actions;
+
+	/* computed on first use; racing threads compute the same string */
+	private String actionString;
+
+	private OFRule(Builder b) {
+		this.values = b.values.clone();
+		this.fields = b.fields;
+		this.name = b.name;
+		this.priority = b.priority;
+
+		List<Action> l = new ArrayList<Action>(ACTION_TYPES.length);
+		for (Action.Type t : ACTION_TYPES) {
+			if ((b.actions & (1 << t.ordinal())) != 0)
+				l.add(new Action(t, b.actionValues[t.ordinal()]));
 		}
-		this.putAll(m);
+		this.actions = Collections.unmodifiableList(l);
 	}
 
-	@Override
-	public String put(String key, String value) {
-		if (!OFRULE_REGEX.containsKey(key))
-			return null;
-		if (!value.matches(OFRULE_REGEX.get(key)))
-			return null;
+	/**
+	 * @return a builder for a new, empty rule
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
 
-		if (OFACTIONS_REGEX.containsKey(key))
-			return this.actions.put(key, value);
-		return super.put(key, value);
+	/**
+	 * @return a builder initialized with an OF match and/or action string,
+	 *         such as "in_port=1,dl_vlan=100,output=2". Rules matching on L4
+	 *         fields also match on TCP over IP unless told otherwise.
+	 * @throws Exception
+	 *             if the string is empty or invalid
+	 */
+	public static Builder builder(String match) throws Exception {
+		Builder b = new Builder();
+		if (!parse(match, b))
+			throw new Exception("Invalid match");
+		b.putL4Defaults();
+		return b;
 	}
 
 	/**
-	 * 
+	 * @return a rule only carrying an entry name, which is all that is needed
+	 *         to delete an entry
 	 */
-	@Override
-	public void putAll(Map<? extends String, ? extends String> m) {
-		for (Map.Entry<? extends String, ? extends String> e : m.entrySet()) {
-			String key = e.getKey();
-			String value = e.getValue();
-
-			if (!OFRULE_REGEX.containsKey(key)
-					|| !value.matches(OFRULE_REGEX.get(key))) {
-				m.remove(key);
-				continue;
-			}
+	public static OFRule named(String name) {
+		return new Builder().name(name).build();
+	}
 
-			if (OFACTIONS_REGEX.containsKey(key)) {
-				this.actions.put(key, value);
-				m.remove(key);
-			}
-		}
-		super.putAll(m);
+	/**
+	 * @return a builder initialized with the contents of this rule
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	public boolean has(Field f) {
+		return (fields & (1 << f.ordinal())) != 0;
 	}
 
 	/**
-	 * @param A
-	 *            OF-formatted match or action key
-	 * @return Floodlight staticflowpusher formatted value
-	 * 
-	 *         This method updates the "actions" key value before returning all
-	 *         the pairs.
+	 * @return the raw value of a match field: MAC addresses in the low 48
+	 *         bits, IPv4 addresses in the low 32 bits with the prefix length
+	 *         in bits 32-39, or -1 if the field is not set
 	 */
-	@Override
-	public String get(Object obj) {
-		if (obj.getClass().equals(String.class)) {
-			String key = (String) obj;
-			if (OFACTIONS_REGEX.containsKey(key))
-				return actions.get(key);
-
-			if (key.equals(OF_STR_ACTIONS)) {
-				try {
-					rebuildOFActionString();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		return super.get(obj);
+	public long get(Field f) {
+		return has(f) ? values[f.ordinal()] : -1;
 	}
 
-	public int ruleSize() {
-		try {
-			rebuildOFActionString();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return super.size();
+	/**
+	 * @return the IPv4 address of an IP field
+	 */
+	public int getIPv4(Field f) {
+		return (int) values[f.ordinal()];
 	}
 
-	public int matchSize() {
-		int entries = super.size();
-		if (this.containsKey(OF_STR_ACTIONS))
-			entries -= 1;
-		if (this.containsKey("name"))
-			entries -= 1;
-		return entries;
+	/**
+	 * @return the prefix length of an IP field
+	 */
+	public int getPrefixLength(Field f) {
+		return (int) (values[f.ordinal()] >>> 32);
 	}
 
 	/**
-	 * @return all key, value pairs in this OFRule, including action key,value
-	 *         pairs
+	 * @return the OF formatted value of a match field, or null if it is not
+	 *         set
 	 */
-	@Override
-	public Set<Entry<String, String>> entrySet() {
+	public String getString(Field f) {
+		if (!has(f))
+			return null;
+		StringBuilder sb = new StringBuilder(24);
+		appendValue(sb, f, values[f.ordinal()]);
+		return sb.toString();
+	}
 
-		// TODO: There might be a better/more efficient way to do this
-		Map<String, String> r = new HashMap<String, String>();
-		for (Map.Entry<String, String> entry : super.entrySet()) {
-			r.put(entry.getKey(), entry.getValue());
-		}
+	public String getName() {
+		return name;
+	}
 
-		for (Map.Entry<String, String> entry : this.actions.entrySet()) {
-			r.put(entry.getKey(), entry.getValue());
-		}
+	public boolean hasPriority() {
+		return priority >= 0;
+	}
 
-		return r.entrySet();
+	/**
+	 * @return the priority of the entry, or {@link #DEFAULT_PRIORITY} if the
+	 *         rule doesn't set one
+	 */
+	public int getPriority() {
+		return priority >= 0 ? priority : DEFAULT_PRIORITY;
 	}
 
 	/**
-	 * @return Floodlight staticflowpusher formatted key,value pairs.
-	 * 
-	 *         This method updates the "actions" key value before returning all
-	 *         the pairs.
+	 * @return the actions of this rule, in the order they are applied
 	 */
-	public Set<Entry<String, String>> floodlightEntrySet() {
-		try {
-			rebuildOFActionString();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		// There might be a better way/efficient to do this
-		// but I coded this way because it is faster
-		Map<String, String> r = new HashMap<String, String>();
-		for (Map.Entry<String, String> entry : super.entrySet()) {
-			try {
-				String key = entry.getKey();
-				
-				if (OFRULE_TO_FLOODLIGHT.containsKey(key)) {
-					String value = entry.getValue();
-					// Add netmask if not present
-					if ((key.equals(OF_STR_NW_DST) || key.equals(OF_STR_NW_SRC))
-						&& !value.matches(".*\\/.*")) {
-						value += "/32";
-					} 
-					r.put(OFRULE_TO_FLOODLIGHT.get(key), value);
-				} else {
-					r.put(key, entry.getValue());
-					System.out
-							.println("WARNING: Couldn't find translation for: "
-									+ key);
-				}
+	public List<Action> getActions() {
+		return actions;
+	}
 
-			} catch (Exception e) {
-				System.out.println("WARNING: Error translating key: "
-						+ entry.getKey());
-				e.printStackTrace();
-			}
+	public boolean hasAction(Action.Type t) {
+		return getAction(t) >= 0;
+	}
+
+	/**
+	 * @return the value of an action, or -1 if the rule doesn't have it
+	 */
+	public int getAction(Action.Type t) {
+		for (Action a : actions) {
+			if (a.type == t)
+				return a.value;
 		}
+		return -1;
+	}
 
-		return r.entrySet();
+	/**
+	 * @return number of match fields
+	 */
+	public int matchSize() {
+		return Integer.bitCount(fields);
 	}
 
 	/**
-	 * @return ordered action string
-	 * @throws Exception
+	 * @return the ordered OF action string, e.g.
+	 *         "strip-vlan,set-vlan-id=10,output=3"
 	 */
-	private void rebuildOFActionString() throws Exception {
-		String set_vlan = "", strip_vlan = "", output = "";
-
-		if (!this.actions.containsKey(OF_STR_OUTPUT))
-			throw new Exception("OSCARS require at least an OUTPUT action");
-
-		try {
-			for (Map.Entry<String, String> entry : this.actions.entrySet()) {
-				String key = entry.getKey();
-				String value = entry.getValue();
-
-				if (key == OF_STR_SET_VLAN)
-					set_vlan = String.format("%s=%s,", key, value);
-				else if (key == OF_STR_STRIP_VLAN)
-					strip_vlan = String.format("%s,", key);
-				else if (key == OF_STR_OUTPUT)
-					output = String.format("%s=%s", key, value);
+	public String getActionString() {
+		String s = actionString;
+		if (s == null) {
+			StringBuilder sb = new StringBuilder(32);
+			for (Action a : actions) {
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(a);
 			}
-		} catch (Exception e) {
-			throw new Exception(String.format("Error processing actions"));
+			actionString = s = sb.toString();
 		}
+		return s;
+	}
 
-		if (output.length() == 0)
-			throw new Exception("OSCARS require at least an OUTPUT action");
+	/**
+	 * Append the Floodlight staticflowpusher formatted value of a match field
+	 * that is set.
+	 */
+	public void appendFloodlightValue(Field f, StringBuilder sb) {
+		long v = values[f.ordinal()];
+		appendValue(sb, f, v);
+		if (f.type == ValueType.IP && v >>> 32 == 32)
+			// Floodlight needs the netmask even for hosts
+			sb.append("/32");
+	}
 
-		if (strip_vlan.length() > 0)
-			this.put("actions", strip_vlan + set_vlan + output);
-		else
-			this.put("actions", set_vlan + output);
+	/**
+	 * @return a rule matching the packets this rule outputs, in the opposite
+	 *         direction: source and destination fields are swapped, the input
+	 *         port becomes the output and the VLAN set by this rule becomes the
+	 *         matched one (and vice versa). The name, the priority and the
+	 *         strip-vlan action are not carried over.
+	 */
+	public OFRule reverse() {
+		Builder b = new Builder();
+		for (Field f : FIELDS) {
+			if (has(f) && f != Field.IN_PORT && f != Field.DL_VLAN)
+				b.setRaw(f.reverse(), values[f.ordinal()]);
+		}
 
+		if (has(Field.IN_PORT))
+			b.action(Action.Type.OUTPUT, values[Field.IN_PORT.ordinal()]);
+		if (has(Field.DL_VLAN))
+			b.action(Action.Type.SET_VLAN_ID, values[Field.DL_VLAN.ordinal()]);
+		for (Action a : actions) {
+			if (a.type == Action.Type.OUTPUT)
+				b.setRaw(Field.IN_PORT, a.value);
+			else if (a.type == Action.Type.SET_VLAN_ID)
+				b.setRaw(Field.DL_VLAN, a.value);
+		}
+		return b.build();
 	}
 
-	public static Map<String, String> translateOFRule(String match)
-			throws Exception {
-		OFRule rule = new OFRule(match);
-		Map<String, String> r = new HashMap<String, String>();
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof OFRule))
+			return false;
+		OFRule r = (OFRule) o;
+		return fields == r.fields && Arrays.equals(values, r.values)
+				&& (name == null ? r.name == null : name.equals(r.name))
+				&& priority == r.priority && actions.equals(r.actions);
+	}
 
-		for (Map.Entry<String, String> entry : rule.floodlightEntrySet())
-			r.put(entry.getKey(), entry.getValue());
+	@Override
+	public int hashCode() {
+		int h = fields;
+		h = h * 31 + Arrays.hashCode(values);
+		h = h * 31 + (name == null ? 0 : name.hashCode());
+		h = h * 31 + priority;
+		return h * 31 + actions.hashCode();
+	}
 
-		return r;
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(128);
+		if (name != null)
+			sb.append("\"name\": \"").append(name).append("\"\n");
+		if (priority >= 0)
+			sb.append("\"priority\": \"").append(priority).append("\"\n");
+		for (Field f : FIELDS) {
+			if (!has(f))
+				continue;
+			sb.append('"').append(f.ofName).append("\": \"");
+			appendValue(sb, f, values[f.ordinal()]);
+			sb.append("\"\n");
+		}
+		if (!actions.isEmpty())
+			sb.append("\"actions\": \"").append(getActionString())
+					.append("\"\n");
+		return sb.toString();
 	}
 
-	public static Map<String, String> parseOFRule(String rule) throws Exception {
-		Map<String, String> matchMap = new HashMap<String, String>();
+	/**
+	 * Mutable rule under construction. Builders may be reused to build
+	 * several rules that differ in a few fields.
+	 */
+	public static final class Builder {
+		private final long[] values = new long[FIELDS.length];
+		private int fields = 0;
+		private String name = null;
+		private int priority = -1;
+		private final int[] actionValues = new int[ACTION_TYPES.length];
+		private int actions = 0;
+
+		private Builder() {
+		}
 
-		try {
-			String[] tokens = rule.split(",");
+		private Builder(OFRule r) {
+			System.arraycopy(r.values, 0, values, 0, values.length);
+			fields = r.fields;
+			name = r.name;
+			priority = r.priority;
+			for (Action a : r.actions) {
+				actions |= 1 << a.type.ordinal();
+				actionValues[a.type.ordinal()] = a.value;
+			}
+		}
 
-			for (String token : tokens) {
-				String[] values = token.toLowerCase().split("=");
+		/**
+		 * Set a match field from its OF formatted value.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not valid for the field
+		 */
+		public Builder set(Field f, String value) {
+			long v = value == null ? -1 : parseValue(f.type, f.max, value, 0,
+					value.length());
+			if (v < 0)
+				throw new IllegalArgumentException("Invalid " + f.ofName
+						+ " " + value);
+			return setRaw(f, v);
+		}
 
-				if (OFRULE_REGEX.containsKey(values[0])) {
-					if (values[1].matches(OFRULE_REGEX.get(values[0])))
-						matchMap.put(values[0], values[1]);
-					else
-						throw new Exception(String.format(
-								"Invalid match %s=%s", values[0], values[1]));
-				}
-			}
-		} catch (Exception e) {
-			throw new Exception(String.format("Invalid match %s", rule));
+		/**
+		 * Set a match field from its raw value, see {@link OFRule#get}.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is out of range for the field
+		 */
+		public Builder set(Field f, long value) {
+			if (value < 0 || (f.type != ValueType.IP && value > f.max)
+					|| (f.type == ValueType.IP && value >>> 32 > 32))
+				throw new IllegalArgumentException("Invalid " + f.ofName
+						+ " " + value);
+			return setRaw(f, value);
 		}
 
-		if (matchMap.size() > 0) {
-			if (matchMap.containsKey("tp_dst")
-					|| matchMap.containsKey("tp_src")
-					|| matchMap.containsKey("nw_proto")) {
-				if (!matchMap.containsKey("nw_proto"))
-					// if no L4 specified, assume TCP
-					matchMap.put("nw_proto", "6");
-				if (!matchMap.containsKey("dl_type"))
-					// if no L3 specified, assume IP
-					matchMap.put("dl_type", "0x800");
-			}
-			return matchMap;
+		public Builder remove(Field f) {
+			values[f.ordinal()] = 0;
+			fields &= ~(1 << f.ordinal());
+			return this;
 		}
-		return null;
-	}
 
-	public static boolean isValidOFRule(Map<String, String> rule) {
+		private Builder setRaw(Field f, long value) {
+			values[f.ordinal()] = value;
+			fields |= 1 << f.ordinal();
+			return this;
+		}
 
-		try {
-			for (Map.Entry<String, String> entry : rule.entrySet()) {
-				String key = entry.getKey();
-				String value = entry.getValue();
+		public boolean has(Field f) {
+			return (fields & (1 << f.ordinal())) != 0;
+		}
 
-				if (OFRULE_REGEX.containsKey(key)) {
-					if (!value.matches(OFRULE_REGEX.get(key)))
-						return false;
-				} else {
-					return false;
-				}
+		public Builder inPort(String port) {
+			return set(Field.IN_PORT, port);
+		}
+
+		/**
+		 * Set the output action.
+		 */
+		public Builder output(String port) {
+			return action(Action.Type.OUTPUT, port);
+		}
+
+		/**
+		 * Set an action from its OF formatted value ("" for strip-vlan).
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not valid for the action
+		 */
+		public Builder action(Action.Type t, String value) {
+			long v = value == null ? -1 : parseValue(t.type, t.max, value, 0,
+					value.length());
+			if (v < 0)
+				throw new IllegalArgumentException("Invalid " + t.ofName + " "
+						+ value);
+			return action(t, v);
+		}
+
+		private Builder action(Action.Type t, long value) {
+			actionValues[t.ordinal()] = (int) value;
+			actions |= 1 << t.ordinal();
+			return this;
+		}
+
+		public Builder removeAction(Action.Type t) {
+			actionValues[t.ordinal()] = 0;
+			actions &= ~(1 << t.ordinal());
+			return this;
+		}
+
+		public Builder name(String name) {
+			this.name = name;
+			return this;
+		}
+
+		/**
+		 * Set the priority of the entry, -1 to leave it to the controller.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the priority is out of range
+		 */
+		public Builder priority(int priority) {
+			if (priority < -1 || priority > MAX_PRIORITY)
+				throw new IllegalArgumentException("Invalid priority "
+						+ priority);
+			this.priority = priority;
+			return this;
+		}
+
+		/**
+		 * Set a match field, action or the name from an OF key,value pair.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the key is unknown or the value is not valid
+		 */
+		public Builder set(String key, String value) {
+			int k = lookupKey(key, 0, key.length());
+			if (k < 0)
+				throw new IllegalArgumentException("Unknown key " + key);
+			if (k < FIELDS.length)
+				return set(FIELDS[k], value);
+			if (k < FIELDS.length + ACTION_TYPES.length)
+				return action(ACTION_TYPES[k - FIELDS.length], value);
+			return name(value);
+		}
+
+		/**
+		 * Insert OFRule entries based on reservation's VLAN specifications
+		 *
+		 * @param srcIsTagged
+		 * @param srcVlan
+		 * @param dstIsTagged
+		 * @param dstVlan
+		 */
+		public Builder putVlan(boolean srcIsTagged, String srcVlan,
+				boolean dstIsTagged, String dstVlan) {
+
+			if (srcIsTagged) {
+				set(Field.DL_VLAN, srcVlan);
 			}
-		} catch (Exception e) {
-			return false;
+			if (dstIsTagged) {
+				action(Action.Type.SET_VLAN_ID, dstVlan);
+			}
+			if (srcIsTagged && !dstIsTagged) {
+				action(Action.Type.STRIP_VLAN, 0);
+			}
+			return this;
 		}
-		return true;
-	}
 
-	public OFRule reverse() {
-		OFRule rule = new OFRule();
-
-		for (Map.Entry<String, String> entry : this.entrySet()) {
-			String key = entry.getKey();
-			String value = entry.getValue();
-			try {
-				String reverseKey = OFRULE_REVERSE.get(key);
-				if (reverseKey.length() > 0)
-					rule.put(reverseKey, value);
-			} catch (Exception e) {
-				System.out.println("Couldn't find reverse for key " + key);
-				e.printStackTrace();
+		/**
+		 * If the rule matches on L4 fields, make sure it also matches on the L3
+		 * protocol and ethertype they depend on.
+		 */
+		private void putL4Defaults() {
+			if (has(Field.TP_DST) || has(Field.TP_SRC) || has(Field.NW_PROTO)) {
+				if (!has(Field.NW_PROTO))
+					// if no L4 specified, assume TCP
+					setRaw(Field.NW_PROTO, 6);
+				if (!has(Field.DL_TYPE))
+					// if no L3 specified, assume IP
+					setRaw(Field.DL_TYPE, 0x800);
 			}
 		}
-		return rule;
+
+		public OFRule build() {
+			return new OFRule(this);
+		}
 	}
 
 	public static boolean isValidOFRuleString(String rule) {
+		return parse(rule, null);
+	}
+
+	public static boolean isValidMAC(String mac) {
+		return mac != null && parseMAC(mac, 0, mac.length()) >= 0;
+	}
 
-		String[] tokens = rule.split(",");
+	public static boolean isValidIP(String ip) {
+		return ip != null && parseIP(ip, 0, ip.length()) >= 0;
+	}
 
-		try {
-			for (String token : tokens) {
-				String[] entry = token.toLowerCase().split("=");
-				String key = entry[0];
-				String value = entry[1];
+	/**
+	 * Parse a comma separated list of key=value pairs (keys are case
+	 * insensitive) in a single pass over the string, converting every value
+	 * in place. Valid pairs are stored in target, if not null.
+	 *
+	 * @return false if the string is empty or has an empty token, an unknown
+	 *         key or an invalid value. target may have been partially filled
+	 *         in that case.
+	 */
+	private static boolean parse(String rule, Builder target) {
+		int len = rule == null ? 0 : rule.length();
+		if (len == 0)
+			return false;
 
-				if (OFRULE_REGEX.containsKey(key)) {
-					if (!value.matches(OFRULE_REGEX.get(key)))
-						return false;
-				} else {
+		int start = 0;
+		while (start < len) {
+			int end = rule.indexOf(',', start);
+			if (end < 0)
+				end = len;
+			int eq = rule.indexOf('=', start);
+			if (eq < 0 || eq > end)
+				eq = end;
+			int from = Math.min(eq + 1, end);
+
+			int k = lookupKey(rule, start, eq);
+			if (k < 0)
+				return false;
+			if (k < FIELDS.length) {
+				Field f = FIELDS[k];
+				long v = parseValue(f.type, f.max, rule, from, end);
+				if (eq == end || v < 0)
+					return false;
+				if (target != null)
+					target.setRaw(f, v);
+			} else if (k < FIELDS.length + ACTION_TYPES.length) {
+				Action.Type t = ACTION_TYPES[k - FIELDS.length];
+				// only valueless actions (strip-vlan) may omit the '='
+				if (eq == end && t.type != ValueType.EMPTY)
 					return false;
+				long v = parseValue(t.type, t.max, rule, from, end);
+				if (v < 0)
+					return false;
+				if (target != null)
+					target.action(t, v);
+			} else {
+				if (eq == end)
+					return false;
+				for (int i = from; i < end; i++) {
+					char c = rule.charAt(i);
+					if (c == '\n' || c == '\r')
+						return false;
 				}
+				if (target != null)
+					target.name(rule.substring(from, end));
 			}
-		} catch (Exception e) {
-			return false;
+			start = end + 1;
 		}
 		return true;
 	}
 
+	/* field, action and name keys, indexed like lookupKey's return value */
+	private static final String[] KEYS = new String[FIELDS.length
+			+ ACTION_TYPES.length + 1];
+	static {
+		for (Field f : FIELDS)
+			KEYS[f.ordinal()] = f.ofName;
+		for (Action.Type t : ACTION_TYPES)
+			KEYS[FIELDS.length + t.ordinal()] = t.ofName;
+		KEYS[KEYS.length - 1] = OF_STR_NAME;
+	}
+
 	/**
-	 * Insert OFRule entries based on reservation's VLAN specifications
-	 * 
-	 * @param srcIsTagged
-	 * @param srcVlan
-	 * @param dstIsTagged
-	 * @param dstVlan
+	 * @return the index in KEYS of the key equal to s[from, to) ignoring
+	 *         case, or -1: a Field ordinal, FIELDS.length + an Action.Type
+	 *         ordinal or the name
 	 */
-	public void putVlan(boolean srcIsTagged, String srcVlan,
-			boolean dstIsTagged, String dstVlan) {
+	private static int lookupKey(String s, int from, int to) {
+		int len = to - from;
+		for (int i = 0; i < KEYS.length; i++) {
+			if (KEYS[i].length() == len
+					&& s.regionMatches(true, from, KEYS[i], 0, len))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the raw value of s[from, to), or -1 if it is not a valid value
+	 *         of the given type up to max
+	 */
+	private static long parseValue(ValueType type, long max, String s,
+			int from, int to) {
+		switch (type) {
+		case INT:
+			return parseInt(s, from, to, max);
+		case MAC:
+			return parseMAC(s, from, to);
+		case IP:
+			return parseIP(s, from, to);
+		case HEX:
+			return parseHex(s, from, to, max);
+		default:
+			return from == to ? 0 : -1;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
 
-		if (srcIsTagged) {
-			this.put(OF_STR_DL_VLAN, srcVlan);
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+
+	/* ^[1-9]\d*$, up to max */
+	private static long parseInt(String s, int from, int to, long max) {
+		if (from == to || s.charAt(from) < '1' || s.charAt(from) > '9')
+			return -1;
+		long v = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (!isDigit(c))
+				return -1;
+			v = v * 10 + (c - '0');
+			if (v > max)
+				return -1;
 		}
-		if (dstIsTagged) {
-			this.put(OF_STR_SET_VLAN, dstVlan);
+		return v;
+	}
+
+	/* ^(0x|)[0-9A-Fa-f]+$, up to max */
+	private static long parseHex(String s, int from, int to, long max) {
+		if (to - from >= 2 && s.charAt(from) == '0'
+				&& (s.charAt(from + 1) == 'x' || s.charAt(from + 1) == 'X'))
+			from += 2;
+		if (from == to)
+			return -1;
+		long v = 0;
+		for (int i = from; i < to; i++) {
+			int d = hexDigit(s.charAt(i));
+			if (d < 0)
+				return -1;
+			v = (v << 4) | d;
+			if (v > max)
+				return -1;
 		}
-		if (srcIsTagged && !dstIsTagged) {
-			this.put(OF_STR_STRIP_VLAN, "");
+		return v;
+	}
+
+	/* six colon separated hex bytes, packed in 48 bits */
+	private static long parseMAC(String s, int from, int to) {
+		if (to - from != 17)
+			return -1;
+		long v = 0;
+		for (int i = 0; i < 17; i++) {
+			char c = s.charAt(from + i);
+			if (i % 3 == 2) {
+				if (c != ':')
+					return -1;
+			} else {
+				int d = hexDigit(c);
+				if (d < 0)
+					return -1;
+				v = (v << 4) | d;
+			}
 		}
+		return v;
 	}
 
-	@Override
-	public String toString() {
-		String str = "";
-		for (Map.Entry<String, String> entry : this.entrySet()) {
-			String key = entry.getKey();
-			String value = entry.getValue();
-			str += String.format("\"%s\": \"%s\"\n", key, value);
+	/*
+	 * four 0-255 octets and an optional /0-32 prefix length (32 if absent),
+	 * packed as address | prefix << 32
+	 */
+	private static long parseIP(String s, int from, int to) {
+		int i = from;
+		long addr = 0;
+		for (int octet = 0; octet < 4; octet++) {
+			if (octet > 0) {
+				if (i >= to || s.charAt(i) != '.')
+					return -1;
+				i++;
+			}
+			int value = 0, digits = 0;
+			while (i < to && digits < 3 && isDigit(s.charAt(i))) {
+				value = value * 10 + (s.charAt(i) - '0');
+				digits++;
+				i++;
+			}
+			if (digits == 0 || value > 255)
+				return -1;
+			addr = (addr << 8) | value;
 		}
-		return str;
+		long prefix;
+		if (i == to) {
+			prefix = 32;
+		} else {
+			if (s.charAt(i) != '/')
+				return -1;
+			i++;
+			int digits = to - i;
+			if (digits == 1 && isDigit(s.charAt(i))) {
+				prefix = s.charAt(i) - '0';
+			} else if (digits == 2 && s.charAt(i) >= '1'
+					&& s.charAt(i) <= '3' && isDigit(s.charAt(i + 1))) {
+				prefix = (s.charAt(i) - '0') * 10 + (s.charAt(i + 1) - '0');
+				if (prefix > 32)
+					return -1;
+			} else {
+				return -1;
+			}
+		}
+		return addr | (prefix << 32);
 	}
 
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Append the OF formatted value of a field. IP addresses only carry their
+	 * prefix length if it is shorter than 32.
+	 */
+	private static void appendValue(StringBuilder sb, Field f, long v) {
+		switch (f.type) {
+		case MAC:
+			for (int shift = 40; shift >= 0; shift -= 8) {
+				sb.append(HEX[(int) (v >>> (shift + 4)) & 0xf]);
+				sb.append(HEX[(int) (v >>> shift) & 0xf]);
+				if (shift > 0)
+					sb.append(':');
+			}
+			break;
+		case IP:
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				sb.append((v >>> shift) & 0xff);
+				if (shift > 0)
+					sb.append('.');
+			}
+			if (v >>> 32 < 32)
+				sb.append('/').append(v >>> 32);
+			break;
+		case HEX:
+			sb.append("0x").append(Long.toHexString(v));
+			break;
+		default:
+			sb.append(v);
+		}
+	}
 }
@@ -0,0 +1,247 @@
+package net.es.oscars.pss.sdn.common;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.es.oscars.pss.sdn.common.SdnPSSWorkQueue.OverflowPolicy;
+
+import org.testng.annotations.Test;
+
+/**
+ * Ordering of the requests of a reservation, overflow and resizing of the
+ * work queue.
+ *
+ */
+public class SdnPSSWorkQueueTest {
+
+	/**
+	 * Task waiting for the gate to open.
+	 */
+	private static Runnable waitFor(final CountDownLatch gate) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gate.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	private static Runnable nothing() {
+		return new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+	}
+
+	/**
+	 * Wait until count requests are done and have given their slot back.
+	 */
+	private static void awaitCompleted(SdnPSSWorkQueue q, long count)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (q.getCompletedCount() < count
+				|| q.getPendingCount() > q.getSubmittedCount()
+						- q.getRejectedCount() - count) {
+			if (System.currentTimeMillis() > end)
+				fail(q.getCompletedCount() + " of " + count
+						+ " requests completed");
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void sameKeyRunsInOrder() throws Exception {
+		SdnPSSWorkQueue q = new SdnPSSWorkQueue(4, 64, OverflowPolicy.REJECT);
+		final List<Integer> order = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final AtomicBoolean running = new AtomicBoolean();
+		final AtomicInteger overlaps = new AtomicInteger();
+		try {
+			for (int i = 0; i < 20; i++) {
+				final int n = i;
+				assertTrue(q.submit("es.net-1", new Runnable() {
+					@Override
+					public void run() {
+						if (!running.compareAndSet(false, true))
+							overlaps.incrementAndGet();
+						try {
+							Thread.sleep(2);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						order.add(n);
+						running.set(false);
+					}
+				}));
+				// other reservations share the workers
+				assertTrue(q.submit("es.net-" + (i + 2), nothing()));
+			}
+			awaitCompleted(q, 40);
+
+			assertEquals(overlaps.get(), 0);
+			assertEquals(order.size(), 20);
+			for (int i = 0; i < 20; i++)
+				assertEquals(order.get(i).intValue(), i);
+			assertEquals(q.getActiveKeys(), 0);
+			assertEquals(q.getPendingCount(), 0);
+		} finally {
+			q.shutdown();
+		}
+	}
+
+	@Test
+	public void otherKeysRunInParallel() throws Exception {
+		SdnPSSWorkQueue q = new SdnPSSWorkQueue(2, 64, OverflowPolicy.REJECT);
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch gate = new CountDownLatch(1);
+		try {
+			for (String key : new String[] { "es.net-1", "es.net-2" }) {
+				q.submit(key, new Runnable() {
+					@Override
+					public void run() {
+						started.countDown();
+						waitFor(gate).run();
+					}
+				});
+			}
+			assertTrue(started.await(5, TimeUnit.SECONDS),
+					"Requests of two reservations didn't run together");
+			assertEquals(q.getActiveKeys(), 2);
+			gate.countDown();
+			awaitCompleted(q, 2);
+		} finally {
+			gate.countDown();
+			q.shutdown();
+		}
+	}
+
+	@Test
+	public void rejectWhenFull() throws Exception {
+		SdnPSSWorkQueue q = new SdnPSSWorkQueue(1, 2, OverflowPolicy.REJECT);
+		CountDownLatch gate = new CountDownLatch(1);
+		try {
+			assertTrue(q.submit("es.net-1", waitFor(gate)));
+			assertTrue(q.submit("es.net-2", nothing()));
+			assertEquals(q.getPendingCount(), 2);
+
+			assertFalse(q.submit("es.net-3", nothing()));
+			assertFalse(q.submit("es.net-1", nothing()));
+			assertEquals(q.getRejectedCount(), 2);
+			assertEquals(q.getSubmittedCount(), 4);
+
+			gate.countDown();
+			awaitCompleted(q, 2);
+			assertTrue(q.submit("es.net-3", nothing()));
+			awaitCompleted(q, 3);
+			assertEquals(q.getRejectedCount(), 2);
+		} finally {
+			gate.countDown();
+			q.shutdown();
+		}
+	}
+
+	@Test
+	public void blockWaitsForRoom() throws Exception {
+		final SdnPSSWorkQueue q = new SdnPSSWorkQueue(1, 1,
+				OverflowPolicy.BLOCK, 5000);
+		CountDownLatch gate = new CountDownLatch(1);
+		try {
+			assertTrue(q.submit("es.net-1", waitFor(gate)));
+
+			final AtomicBoolean accepted = new AtomicBoolean();
+			Thread caller = new Thread() {
+				@Override
+				public void run() {
+					accepted.set(q.submit("es.net-2", nothing()));
+				}
+			};
+			caller.start();
+			caller.join(200);
+			assertTrue(caller.isAlive(), "Caller didn't wait for room");
+
+			gate.countDown();
+			caller.join(5000);
+			assertFalse(caller.isAlive());
+			assertTrue(accepted.get());
+			awaitCompleted(q, 2);
+			assertEquals(q.getRejectedCount(), 0);
+		} finally {
+			gate.countDown();
+			q.shutdown();
+		}
+	}
+
+	@Test
+	public void blockTimesOut() throws Exception {
+		SdnPSSWorkQueue q = new SdnPSSWorkQueue(1, 1, OverflowPolicy.BLOCK,
+				100);
+		CountDownLatch gate = new CountDownLatch(1);
+		try {
+			assertTrue(q.submit("es.net-1", waitFor(gate)));
+			long start = System.currentTimeMillis();
+			assertFalse(q.submit("es.net-2", nothing()));
+			assertTrue(System.currentTimeMillis() - start >= 90);
+			assertEquals(q.getRejectedCount(), 1);
+		} finally {
+			gate.countDown();
+			q.shutdown();
+		}
+	}
+
+	@Test
+	public void tuneResizesQueue() throws Exception {
+		SdnPSSWorkQueue q = new SdnPSSWorkQueue(1, 1, OverflowPolicy.REJECT);
+		CountDownLatch gate = new CountDownLatch(1);
+		try {
+			assertTrue(q.submit("es.net-1", waitFor(gate)));
+			assertFalse(q.submit("es.net-2", nothing()));
+
+			// room for one more
+			q.tune(2, 2, OverflowPolicy.REJECT);
+			assertEquals(q.getCapacity(), 2);
+			assertEquals(q.getWorkers(), 2);
+			CountDownLatch gate2 = new CountDownLatch(1);
+			assertTrue(q.submit("es.net-2", waitFor(gate2)));
+			assertFalse(q.submit("es.net-3", nothing()));
+
+			// below the pending requests: nothing is dropped, new
+			// requests overflow until both are done
+			q.tune(1, 1, OverflowPolicy.REJECT);
+			assertEquals(q.getPendingCount(), 2);
+			gate.countDown();
+			awaitCompleted(q, 1);
+			assertFalse(q.submit("es.net-3", nothing()));
+			gate2.countDown();
+			awaitCompleted(q, 2);
+			assertEquals(q.getPendingCount(), 0);
+			assertTrue(q.submit("es.net-3", nothing()));
+			awaitCompleted(q, 3);
+			assertEquals(q.getRejectedCount(), 3);
+
+			try {
+				q.tune(0, 1, OverflowPolicy.REJECT);
+				fail("Accepted no workers");
+			} catch (IllegalArgumentException e) {
+			}
+			assertEquals(q.getWorkers(), 1);
+		} finally {
+			gate.countDown();
+			q.shutdown();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Switches are owned by the controller they are assigned to, or else by the
+ * one they hash to.
+ *
+ */
+public class ControllerRegistryTest {
+	private static final String C1 = "http://c1:8080";
+	private static final String C2 = "http://c2:8080";
+	private static final String C3 = "http://c3:8080";
+	private static final String C4 = "http://c4:8080";
+
+	private static final Map<String, String> NONE = Collections.emptyMap();
+
+	private static String dpid(int i) {
+		return String.format("00:00:00:00:00:%02x:%02x:%02x", (i >> 16) & 0xff,
+				(i >> 8) & 0xff, i & 0xff);
+	}
+
+	private static Map<String, String> params(String key, String value) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(key, value);
+		return params;
+	}
+
+	@Test
+	public void assignmentsWinOverHashing() {
+		ControllerRegistry hashed = new ControllerRegistry(Arrays.asList(C1,
+				C2, C3), NONE);
+		String dpid = dpid(7);
+		String other = hashed.controllerOf(dpid).equals(C1) ? C2 : C1;
+
+		Map<String, String> assignments = new HashMap<String, String>();
+		assignments.put(dpid, other);
+		ControllerRegistry assigned = new ControllerRegistry(Arrays.asList(C1,
+				C2, C3), assignments);
+		assertEquals(assigned.controllerOf(dpid), other);
+		// the other switches don't move
+		for (int i = 0; i < 1000; i++) {
+			if (i != 7)
+				assertEquals(assigned.controllerOf(dpid(i)),
+						hashed.controllerOf(dpid(i)));
+		}
+	}
+
+	@Test
+	public void assignedControllersTakeNoHashedSwitches() {
+		Map<String, String> assignments = new HashMap<String, String>();
+		assignments.put(dpid(1), C4);
+		ControllerRegistry r = new ControllerRegistry(Arrays.asList(C1, C2),
+				assignments);
+		assertEquals(r.getControllers(), Arrays.asList(C1, C2, C4));
+		assertEquals(r.controllerOf(dpid(1)), C4);
+		for (int i = 2; i < 1000; i++)
+			assertTrue(!r.controllerOf(dpid(i)).equals(C4), dpid(i));
+	}
+
+	@Test
+	public void addingControllerOnlyMovesItsSwitches() {
+		ControllerRegistry before = new ControllerRegistry(Arrays.asList(C1,
+				C2, C3), NONE);
+		ControllerRegistry after = new ControllerRegistry(Arrays.asList(C1,
+				C2, C3, C4), NONE);
+
+		int moved = 0;
+		for (int i = 0; i < 4000; i++) {
+			String was = before.controllerOf(dpid(i));
+			String is = after.controllerOf(dpid(i));
+			if (!is.equals(was)) {
+				assertEquals(is, C4, dpid(i));
+				moved++;
+			}
+		}
+		// about a quarter of the switches, with room for an uneven ring
+		assertTrue(moved > 500 && moved < 1700, moved + " switches moved");
+	}
+
+	@Test
+	public void everyControllerGetsSwitches() {
+		ControllerRegistry r = new ControllerRegistry(Arrays.asList(C1, C2,
+				C3), NONE);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < 3000; i++) {
+			String c = r.controllerOf(dpid(i));
+			Integer n = counts.get(c);
+			counts.put(c, n == null ? 1 : n + 1);
+		}
+		for (String c : Arrays.asList(C1, C2, C3))
+			assertTrue(counts.containsKey(c) && counts.get(c) > 500, c + ": "
+					+ counts.get(c));
+	}
+
+	@Test
+	public void dpidSeparatorsDontMatter() {
+		ControllerRegistry r = new ControllerRegistry(Arrays.asList(C1, C2,
+				C3), NONE);
+		for (int i = 0; i < 200; i++) {
+			String colons = dpid(i);
+			String owner = r.controllerOf(colons);
+			assertEquals(r.controllerOf(colons.replace(':', '.')), owner);
+			assertEquals(r.controllerOf(colons.replace(":", "")), owner);
+			assertEquals(r.controllerOf(colons.toUpperCase()), owner);
+			assertEquals(r.controllerOf(EntryNames.compactDPID(colons)), owner);
+		}
+
+		Map<String, String> assignments = new HashMap<String, String>();
+		assignments.put("00.00.00.00.00.00.00.0A", C4);
+		r = new ControllerRegistry(Arrays.asList(C1, C2, C3), assignments);
+		assertEquals(r.controllerOf("00:00:00:00:00:00:00:0a"), C4);
+		assertEquals(r.controllerOf("000000000000000a"), C4);
+		assertEquals(r.controllerOf("a"), C4);
+	}
+
+	@Test
+	public void fromParams() {
+		assertNull(ControllerRegistry.fromParams(NONE));
+
+		ControllerRegistry single = ControllerRegistry.fromParams(params(
+				"controller", " " + C1 + " "));
+		assertEquals(single, ControllerRegistry.single(C1));
+
+		Map<String, String> params = params("controllers", C1 + ", " + C2
+				+ ",");
+		params.put("controller", C3);
+		params.put("assignments", " 00:00:00:00:00:00:00:0a = " + C3 + " ,");
+		ControllerRegistry r = ControllerRegistry.fromParams(params);
+		assertEquals(r.getControllers(), Arrays.asList(C1, C2, C3));
+		assertEquals(r.controllerOf("0a"), C3);
+
+		List<String> both = new ArrayList<String>(Arrays.asList(C1, C2));
+		assertEquals(r, new ControllerRegistry(both, Collections.singletonMap(
+				"a", C3)));
+	}
+
+	@Test
+	public void fromParamsRejectsMalformedAssignments() {
+		for (String a : new String[] { "00:00:00:00:00:00:00:0a=", "=" + C1,
+				"00:00:00:00:00:00:00:0a", "00:00:00:00:00:00:00:0a= ",
+				" =" + C1, "=" }) {
+			try {
+				ControllerRegistry.fromParams(params("assignments", a));
+				fail("Accepted " + a);
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage().startsWith("Invalid assignment"),
+						e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void registryNeedsController() {
+		try {
+			new ControllerRegistry(Collections.<String> emptyList(), NONE);
+			fail("Registry without controller");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.es.oscars.pss.sdn.connector.EntryNames.Direction;
+import net.es.oscars.pss.sdn.connector.FlowEntryIndex.IndexedEntry;
+import net.es.oscars.topoBridge.sdn.BaseSDNTopologyService;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.ogf.schema.network.topology.ctrlplane.CtrlPlaneHopContent;
+import org.testng.annotations.Test;
+
+/**
+ * Entry names are built from the GRI, the switch, the ports and the
+ * direction, and parsed back from the right.
+ *
+ */
+public class EntryNamesTest {
+
+	/**
+	 * @return the hop of a path crossing node, entering on inPort and leaving
+	 *         on outPort
+	 */
+	private static SDNHop hop(String node, int inPort, int outPort)
+			throws Exception {
+		List<CtrlPlaneHopContent> path = new ArrayList<CtrlPlaneHopContent>();
+		for (int port : new int[] { inPort, outPort }) {
+			CtrlPlaneHopContent hop = new CtrlPlaneHopContent();
+			hop.setId(String.valueOf(path.size()));
+			hop.setLinkIdRef("urn:ogf:network:domain=d:node=" + node
+					+ ":port=" + port + ":link=1");
+			path.add(hop);
+		}
+		return BaseSDNTopologyService.extractSDNHops(path).get(0);
+	}
+
+	private static String name(String gri) throws Exception {
+		return EntryNames.of(gri, hop("00.00.00.00.00.00.00.04", 1, 2),
+				EntryNames.KIND_L2, Direction.FORWARD);
+	}
+
+	private static void assertRoundTrip(String gri, String name) {
+		assertEquals(EntryNames.circuitOf(name), gri, name);
+		assertTrue(name.startsWith(EntryNames.prefixOf(gri)), name);
+		assertEquals(EntryNames.generationOf(name), 0, name);
+		assertEquals(EntryNames.baseName(name), name);
+	}
+
+	@Test
+	public void namesRoundTrip() throws Exception {
+		String name = name("es.net-1234");
+		assertEquals(name, "es.net-1234.4.1-2.l2.F");
+		assertRoundTrip("es.net-1234", name);
+
+		String reverse = EntryNames.of("es.net-1234", hop(
+				"00.00.00.00.00.0A.BC.00", 3, 4), EntryNames.KIND_L1,
+				Direction.REVERSE);
+		assertEquals(reverse, "es.net-1234.abc00.3-4.l1.R");
+		assertRoundTrip("es.net-1234", reverse);
+		// names don't depend on how the DPID is written
+		assertEquals(EntryNames.compactDPID("00:00:00:00:00:0a:bc:00"),
+				"abc00");
+		assertEquals(EntryNames.compactDPID("00:00:00:00:00:00:00:00"), "0");
+	}
+
+	@Test
+	public void grisMayContainDots() throws Exception {
+		for (String gri : new String[] { "es.net-1", "a.b.c.d.e-1",
+				"sub.domain.es.net-1234", "gri." })
+			assertRoundTrip(gri, name(gri));
+	}
+
+	@Test
+	public void separatorsInPortsAndKindsAreReplaced() throws Exception {
+		String name = EntryNames.of("gri-1", hop("00.00.00.00.00.00.00.01", 1,
+				2).getNode(), "1.1", "2-2", "l#2", Direction.FORWARD);
+		assertEquals(name, "gri-1.1.1_1-2_2.l_2.F");
+		assertRoundTrip("gri-1", name);
+	}
+
+	@Test
+	public void sharedEntriesHaveNoCircuit() throws Exception {
+		String name = EntryNames.shared(hop("11.00.00.00.00.00.00.01", 1, 2),
+				EntryNames.KIND_L1, Direction.REVERSE);
+		assertEquals(name, "shared.1100000000000001.1-2.l1.R");
+		assertRoundTrip(EntryNames.SHARED, name);
+	}
+
+	@Test
+	public void generationsRoundTrip() throws Exception {
+		String name = name("es.net-1234");
+		String g1 = EntryNames.withGeneration(name, 1);
+		assertEquals(g1, "es.net-1234.4.1-2.l2#1.F");
+		assertEquals(EntryNames.generationOf(g1), 1);
+		assertEquals(EntryNames.baseName(g1), name);
+		assertEquals(EntryNames.circuitOf(g1), "es.net-1234");
+
+		String g12 = EntryNames.withGeneration(g1, 12);
+		assertEquals(g12, "es.net-1234.4.1-2.l2#12.F");
+		assertEquals(EntryNames.generationOf(g12), 12);
+		assertEquals(EntryNames.withGeneration(g12, 0), name);
+
+		// a '#' in the GRI isn't a generation
+		String hashed = name("es.net#5");
+		assertRoundTrip("es.net#5", hashed);
+		assertEquals(EntryNames.generationOf(EntryNames.withGeneration(
+				hashed, 3)), 3);
+		assertEquals(EntryNames.circuitOf(EntryNames.withGeneration(hashed,
+				3)), "es.net#5");
+	}
+
+	@Test
+	public void griPrefixOfAnotherGri() throws Exception {
+		String shorter = name("es.net-1");
+		String longer = name("es.net-12");
+		String dotted = name("es.net-1.2");
+		assertFalse(longer.startsWith(EntryNames.prefixOf("es.net-1")));
+		// the prefix alone can't tell these apart, the parsed GRI can
+		assertTrue(dotted.startsWith(EntryNames.prefixOf("es.net-1")));
+		assertEquals(EntryNames.circuitOf(shorter), "es.net-1");
+		assertEquals(EntryNames.circuitOf(dotted), "es.net-1.2");
+
+		FlowEntryIndex index = new FlowEntryIndex();
+		index.add(new IndexedEntry("es.net-1", "h", "00:00:00:00:00:00:00:04",
+				shorter, "{}", EntryCookies.NONE));
+		index.add(new IndexedEntry("es.net-1.2", "h",
+				"00:00:00:00:00:00:00:04", dotted, "{}", EntryCookies.NONE));
+		assertEquals(index.ownerOf(shorter, EntryCookies.NONE), "es.net-1");
+		assertEquals(index.ownerOf(dotted, EntryCookies.NONE), "es.net-1.2");
+		assertNull(index.ownerOf(longer, EntryCookies.NONE));
+	}
+
+	@Test
+	public void otherNamesHaveNoCircuit() {
+		assertNull(EntryNames.circuitOf("not-oscars"));
+		assertNull(EntryNames.circuitOf("a.b.c"));
+		assertNull(EntryNames.circuitOf(".4.1-2.l2.F"));
+		assertEquals(EntryNames.generationOf("not-oscars"), 0);
+		assertEquals(EntryNames.baseName("not#1.oscars"), "not#1.oscars");
+	}
+}
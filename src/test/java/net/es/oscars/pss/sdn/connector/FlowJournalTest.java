@@ -0,0 +1,189 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.es.oscars.pss.sdn.connector.FlowEntryIndex.IndexedEntry;
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * The state journalled while circuits are set up and torn down is what a
+ * restarted PSS replays.
+ *
+ */
+public class FlowJournalTest extends SimulatorTestSupport {
+	private File dir;
+
+	@Override
+	protected int switchGroup() {
+		return 3;
+	}
+
+	@BeforeMethod
+	public void createDirectory() throws IOException {
+		dir = File.createTempFile("flows", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Couldn't create " + dir);
+	}
+
+	@AfterMethod
+	public void deleteDirectory() {
+		FloodlightSDNConnector.setJournal(null);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Journal to a new journal of the directory.
+	 */
+	private FlowJournal journal(int compactThreshold) throws IOException {
+		FlowJournal j = new FlowJournal(dir, compactThreshold);
+		j.replay(FloodlightSDNConnector.getEntryIndex(),
+				FloodlightSDNConnector.getHopRefCounter());
+		FloodlightSDNConnector.setJournal(j);
+		return j;
+	}
+
+	/**
+	 * Close the journal the way a stopping PSS does.
+	 */
+	private static void stop(FlowJournal j) {
+		FloodlightSDNConnector.setJournal(null);
+		j.close();
+	}
+
+	private static Set<String> names(List<IndexedEntry> entries) {
+		Set<String> names = new HashSet<String>();
+		for (IndexedEntry e : entries)
+			names.add(e.getDPID() + "/" + e.getName());
+		return names;
+	}
+
+	private void assertReplayed(String[] circuits, String hopKey)
+			throws IOException {
+		FlowEntryIndex index = new FlowEntryIndex();
+		HopRefCounter refs = new HopRefCounter();
+		new FlowJournal(dir).replay(index, refs);
+
+		FlowEntryIndex live = FloodlightSDNConnector.getEntryIndex();
+		for (String gri : circuits) {
+			assertEquals(names(index.entriesOf(gri)), names(live
+					.entriesOf(gri)));
+			assertEquals(index.hopsHeldBy(gri), live.hopsHeldBy(gri));
+			assertEquals(index.cookieOf(gri), live.cookieOf(gri));
+		}
+		assertEquals(names(index.entriesOfHop(hopKey)), names(live
+				.entriesOfHop(hopKey)));
+		assertEquals(refs.get(hopKey), FloodlightSDNConnector
+				.getHopRefCounter().get(hopKey));
+	}
+
+	@Test
+	public void replayRestoresEntriesAndHopReferences() throws Exception {
+		FlowJournal j = journal(FlowJournal.DEFAULT_COMPACT_THRESHOLD);
+		List<SDNHop> shared = path(1, 2, sharedNode(1));
+		List<SDNHop> first = join(shared, path(1, 2, node(1), node(2)));
+		List<SDNHop> second = join(shared, path(3, 4, node(1)));
+		assertEquals(connector.setupCircuit(first, "journal-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.setupCircuit(second, "journal-2", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.teardownCircuit(first, "journal-1"),
+				ISDNConnectorResponse.SUCCESS);
+		stop(j);
+
+		String key = HopRefCounter.keyOf(shared.get(0));
+		assertReplayed(new String[] { "journal-1", "journal-2" }, key);
+		assertEquals(FloodlightSDNConnector.getEntryIndex().entriesOf(
+				"journal-2").size(), 2);
+		assertEquals(FloodlightSDNConnector.getHopRefCounter().get(key), 1);
+
+		connector.teardownCircuit(second, "journal-2");
+	}
+
+	@Test
+	public void replayReadsCompactedSnapshot() throws Exception {
+		// compacts after every few records
+		FlowJournal j = journal(5);
+		List<SDNHop> shared = path(1, 2, sharedNode(2));
+		for (int i = 0; i < 4; i++)
+			assertEquals(connector.setupCircuit(join(shared, path(10 + i,
+					20 + i, node(3))), "compacted-" + i, null),
+					ISDNConnectorResponse.SUCCESS);
+		connector.teardownCircuit(join(shared, path(10, 20, node(3))),
+				"compacted-0");
+		stop(j);
+		assertTrue(new File(dir, "flows.snapshot").exists());
+		assertTrue(!new File(dir, "flows.snapshot.tmp").exists());
+
+		assertReplayed(new String[] { "compacted-0", "compacted-1",
+				"compacted-2", "compacted-3" }, HopRefCounter.keyOf(shared
+				.get(0)));
+
+		for (int i = 1; i < 4; i++)
+			connector.teardownCircuit(join(shared, path(10 + i, 20 + i,
+					node(3))), "compacted-" + i);
+	}
+
+	@Test
+	public void replayFallsBackToSnapshotBackup() throws Exception {
+		FlowJournal j = journal(FlowJournal.DEFAULT_COMPACT_THRESHOLD);
+		List<SDNHop> shared = path(1, 2, sharedNode(3));
+		List<SDNHop> first = join(shared, path(1, 2, node(5)));
+		List<SDNHop> second = join(shared, path(3, 4, node(5)));
+		assertEquals(connector.setupCircuit(first, "backup-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		j.compact();
+		assertEquals(connector.setupCircuit(second, "backup-2", null),
+				ISDNConnectorResponse.SUCCESS);
+		stop(j);
+		// the next compaction crashed before the new snapshot was in place
+		File snapshot = new File(dir, "flows.snapshot");
+		assertTrue(snapshot.renameTo(new File(dir, "flows.snapshot.bak")));
+
+		assertReplayed(new String[] { "backup-1", "backup-2" }, HopRefCounter
+				.keyOf(shared.get(0)));
+
+		connector.teardownCircuit(first, "backup-1");
+		connector.teardownCircuit(second, "backup-2");
+	}
+
+	@Test
+	public void replaySkipsRecordTruncatedByCrash() throws Exception {
+		FlowJournal j = journal(FlowJournal.DEFAULT_COMPACT_THRESHOLD);
+		List<SDNHop> hops = path(1, 2, node(4));
+		assertEquals(connector.setupCircuit(hops, "truncated-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		stop(j);
+		FileOutputStream out = new FileOutputStream(new File(dir,
+				"flows.journal"), true);
+		try {
+			out.write("I\ttruncated-2\t".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		FlowEntryIndex index = new FlowEntryIndex();
+		new FlowJournal(dir).replay(index, new HopRefCounter());
+		assertEquals(index.entriesOf("truncated-1").size(), 2);
+		assertTrue(index.entriesOf("truncated-2").isEmpty());
+
+		connector.teardownCircuit(hops, "truncated-1");
+	}
+}
@@ -0,0 +1,90 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import net.es.oscars.pss.sdn.connector.EntryNames.Direction;
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.pss.sdn.openflow.OFRule;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Drift between the entry index and the controller is found and repaired.
+ *
+ */
+public class FlowReconcilerTest extends SimulatorTestSupport {
+	private FlowReconciler reconciler;
+
+	@Override
+	protected int switchGroup() {
+		return 4;
+	}
+
+	@BeforeMethod
+	public void createReconciler() {
+		reconciler = new FlowReconciler(connector,
+				FloodlightSDNConnector.getEntryIndex());
+	}
+
+	@Test
+	public void missingEntriesAreRestored() throws Exception {
+		List<SDNHop> hops = path(1, 2, node(1), node(2));
+		assertEquals(connector.setupCircuit(hops, "missing-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		Set<String> installed = controller.getEntries(dpid(node(1)));
+		// the switches lose their tables, e.g. on a reboot
+		controller.clear();
+
+		assertEquals(reconciler.reconcileSwitch(dpid(node(1))), 2);
+		assertEquals(reconciler.getMissingFound(), 2);
+		assertEquals(reconciler.getRepaired(), 2);
+		assertEquals(controller.getEntries(dpid(node(1))), installed);
+		// a second pass finds nothing
+		assertEquals(reconciler.reconcileSwitch(dpid(node(1))), 0);
+
+		connector.teardownCircuit(hops, "missing-1");
+	}
+
+	@Test
+	public void orphanEntriesAreRemoved() throws Exception {
+		List<SDNHop> hops = path(1, 2, node(3));
+		assertEquals(connector.setupCircuit(hops, "orphan-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		// an entry of the circuit the index doesn't know
+		String orphan = EntryNames.of("orphan-1", hops.get(0).getNode(), "5",
+				"6", EntryNames.KIND_L1, Direction.FORWARD);
+		assertEquals(connector.installEntry(hops.get(0).getNode(), OFRule
+				.builder().inPort("5").output("6").name(orphan).build()),
+				ISDNConnectorResponse.SUCCESS);
+		assertTrue(controller.getEntries(dpid(node(3))).contains(orphan));
+
+		assertEquals(reconciler.reconcileSwitch(dpid(node(3))), 1);
+		assertEquals(reconciler.getOrphansFound(), 1);
+		assertFalse(controller.getEntries(dpid(node(3))).contains(orphan));
+		assertEquals(controller.getEntries(dpid(node(3))).size(), 2);
+
+		connector.teardownCircuit(hops, "orphan-1");
+	}
+
+	@Test
+	public void entriesOfOtherOwnersAreLeftAlone() throws Exception {
+		List<SDNHop> hops = path(1, 2, node(4));
+		assertEquals(connector.installEntry(hops.get(0).getNode(), OFRule
+				.builder().inPort("7").output("8").name("not-oscars").build()),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.setupCircuit(hops, "foreign-1", null),
+				ISDNConnectorResponse.SUCCESS);
+
+		assertEquals(reconciler.reconcileSwitch(dpid(node(4))), 0);
+		assertTrue(controller.getEntries(dpid(node(4))).contains("not-oscars"));
+
+		connector.teardownCircuit(hops, "foreign-1");
+	}
+}
@@ -0,0 +1,91 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Setups that don't fit in the flow tables are refused before anything is
+ * pushed.
+ *
+ */
+public class FlowTableAdmissionTest extends SimulatorTestSupport {
+
+	@Override
+	protected int switchGroup() {
+		return 6;
+	}
+
+	@AfterMethod
+	public void unlimitFlowTables() {
+		FloodlightSDNConnector.configureCapacity(FlowTableCapacity.UNLIMITED);
+	}
+
+	/**
+	 * Limit the flow table of one switch.
+	 */
+	private static void limit(String node, int entries) {
+		FloodlightSDNConnector.configureCapacity(new FlowTableCapacity(0,
+				Collections.singletonMap(node, entries)));
+	}
+
+	@Test
+	public void refusedSetupPushesNothing() throws Exception {
+		limit(node(2), 1);
+		long stores = controller.getStores();
+		long rejected = FloodlightSDNConnector.getFlowTables()
+				.getRejectedCount();
+
+		assertFalse(connector.setupCircuit(path(1, 2, node(1), node(2)),
+				"admission-1", null) == ISDNConnectorResponse.SUCCESS);
+
+		assertEquals(controller.getStores(), stores);
+		assertEquals(FloodlightSDNConnector.getFlowTables().getRejectedCount(),
+				rejected + 1);
+		assertEquals(FloodlightSDNConnector.getFlowTables().usedOn(
+				dpid(node(1))), 0);
+	}
+
+	@Test
+	public void teardownFreesRoom() throws Exception {
+		limit(node(3), 2);
+		List<SDNHop> first = path(1, 2, node(3));
+		List<SDNHop> second = path(3, 4, node(3));
+		assertEquals(connector.setupCircuit(first, "admission-2", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertFalse(connector.setupCircuit(second, "admission-3", null) == ISDNConnectorResponse.SUCCESS);
+
+		assertEquals(connector.teardownCircuit(first, "admission-2"),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.setupCircuit(second, "admission-3", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(controller.getEntries(dpid(node(3))).size(), 2);
+
+		connector.teardownCircuit(second, "admission-3");
+	}
+
+	@Test
+	public void capacitiesAreParsedFromParams() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("flowTableCapacity", "100");
+		params.put("flowTableCapacities",
+				"00:00:00:00:00:00:00:01=10, 00.00.00.00.00.00.00.02=0");
+		FlowTableCapacity capacity = FlowTableCapacity.fromParams(params);
+
+		assertEquals(capacity.capacityOf("00.00.00.00.00.00.00.01"), 10);
+		assertEquals(capacity.capacityOf("00:00:00:00:00:00:00:02"), 0);
+		assertEquals(capacity.capacityOf("00:00:00:00:00:00:00:03"), 100);
+		assertEquals(FlowTableCapacity.fromParams(
+				new HashMap<String, String>()), FlowTableCapacity.UNLIMITED);
+	}
+}
@@ -0,0 +1,113 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.testng.annotations.Test;
+
+/**
+ * Circuits are modified make-before-break: only changed entries are pushed,
+ * next to the ones they supersede, and a modify that fails leaves the
+ * circuit as it was.
+ *
+ */
+public class ModifyCircuitTest extends SimulatorTestSupport {
+
+	@Override
+	protected int switchGroup() {
+		return 5;
+	}
+
+	@Test
+	public void onlyChangedEntriesAreReplaced() throws Exception {
+		List<SDNHop> before = path(1, 2, node(1), node(2));
+		List<SDNHop> after = join(path(1, 2, node(1)), path(1, 3, node(2)));
+		assertEquals(connector.setupCircuit(before, "modify-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		Set<String> unchanged = controller.getEntries(dpid(node(1)));
+		Set<String> old = controller.getEntries(dpid(node(2)));
+		long stores = controller.getStores();
+
+		assertEquals(connector.modifyCircuit(before, after, "modify-1", null),
+				ISDNConnectorResponse.SUCCESS);
+
+		assertEquals(controller.getStores() - stores, 2);
+		assertEquals(controller.getEntries(dpid(node(1))), unchanged);
+		Set<String> replaced = controller.getEntries(dpid(node(2)));
+		assertEquals(replaced.size(), 2);
+		for (String name : replaced) {
+			assertFalse(old.contains(name));
+			assertEquals(EntryNames.generationOf(name), 1);
+		}
+
+		connector.teardownCircuit(after, "modify-1");
+		assertTrue(controller.getEntries(dpid(node(2))).isEmpty());
+	}
+
+	@Test
+	public void failedModifyLeavesCircuit() throws Exception {
+		List<SDNHop> before = path(1, 2, node(3), node(4));
+		List<SDNHop> after = path(1, 2, node(3), node(5));
+		assertEquals(connector.setupCircuit(before, "modify-2", null),
+				ISDNConnectorResponse.SUCCESS);
+		Set<String> onThree = controller.getEntries(dpid(node(3)));
+		Set<String> onFour = controller.getEntries(dpid(node(4)));
+
+		controller.setSwitchFailing(dpid(node(5)), true);
+		try {
+			assertFalse(connector.modifyCircuit(before, after, "modify-2",
+					null) == ISDNConnectorResponse.SUCCESS);
+		} finally {
+			controller.setSwitchFailing(dpid(node(5)), false);
+		}
+
+		assertEquals(controller.getEntries(dpid(node(3))), onThree);
+		assertEquals(controller.getEntries(dpid(node(4))), onFour);
+		Set<String> indexed = new HashSet<String>();
+		for (FlowEntryIndex.IndexedEntry e : FloodlightSDNConnector
+				.getEntryIndex().entriesOf("modify-2"))
+			indexed.add(e.getName());
+		Set<String> onSwitches = new HashSet<String>(onThree);
+		onSwitches.addAll(onFour);
+		assertEquals(indexed, onSwitches);
+
+		connector.teardownCircuit(before, "modify-2");
+	}
+
+	@Test
+	public void sharedHopsComeFromIndexWithoutOldPath() throws Exception {
+		List<SDNHop> shared = path(1, 2, sharedNode(1));
+		String key = HopRefCounter.keyOf(shared.get(0));
+		HopRefCounter refs = FloodlightSDNConnector.getHopRefCounter();
+		assertEquals(connector.setupCircuit(join(shared, path(1, 2, node(6))),
+				"modify-3", null), ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.setupCircuit(path(3, 4, node(6)), "modify-4",
+				null), ISDNConnectorResponse.SUCCESS);
+
+		// the old paths are unknown, e.g. after a restart: joining takes a
+		// reference of its own, leaving gives back the circuit's
+		assertEquals(connector.modifyCircuit(null, join(shared, path(3, 4,
+				node(6))), "modify-4", null), ISDNConnectorResponse.SUCCESS);
+		assertEquals(refs.get(key), 2);
+		assertEquals(connector.modifyCircuit(null, path(1, 5, node(6)),
+				"modify-3", null), ISDNConnectorResponse.SUCCESS);
+		assertEquals(refs.get(key), 1);
+		assertEquals(controller.getEntries(dpid(sharedNode(1))).size(), 2);
+		assertEquals(connector.modifyCircuit(null, path(3, 5, node(6)),
+				"modify-4", null), ISDNConnectorResponse.SUCCESS);
+		assertEquals(refs.get(key), 0);
+		assertTrue(controller.getEntries(dpid(sharedNode(1))).isEmpty());
+
+		connector.teardownCircuit(path(1, 5, node(6)), "modify-3");
+		connector.teardownCircuit(path(3, 5, node(6)), "modify-4");
+		assertTrue(controller.getEntries(dpid(node(6))).isEmpty());
+	}
+}
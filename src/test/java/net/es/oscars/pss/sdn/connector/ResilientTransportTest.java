@@ -0,0 +1,192 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.es.oscars.pss.sdn.connector.ResilientTransport.CircuitOpenException;
+import net.es.oscars.pss.sdn.connector.ResilientTransport.State;
+
+import org.testng.annotations.Test;
+
+/**
+ * Retries, deadlines and the circuit breaker, against a transport that fails
+ * as told.
+ *
+ */
+public class ResilientTransportTest {
+
+	/**
+	 * Transport answering "ok" unless it is given a failure, recording the
+	 * timeout of every call.
+	 */
+	private static class ScriptedTransport implements FloodlightTransport {
+		volatile IOException failure = null;
+		/* sleep for the timeout before failing, as a silent controller */
+		volatile boolean hang = false;
+		final List<Integer> timeouts = new ArrayList<Integer>();
+		ResilientTransport observed;
+		final List<State> states = new ArrayList<State>();
+
+		public String getAddress() {
+			return "http://scripted:8080";
+		}
+
+		public String post(String path, byte[] body, int off, int len)
+				throws IOException {
+			return get(path, Integer.MAX_VALUE);
+		}
+
+		public String post(String path, byte[] body, int off, int len,
+				int timeout) throws IOException {
+			return get(path, timeout);
+		}
+
+		public String get(String path) throws IOException {
+			return get(path, Integer.MAX_VALUE);
+		}
+
+		public synchronized String get(String path, int timeout)
+				throws IOException {
+			timeouts.add(timeout);
+			if (observed != null)
+				states.add(observed.getState());
+			if (hang) {
+				try {
+					Thread.sleep(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new SocketTimeoutException("Read timed out");
+			}
+			if (failure != null)
+				throw failure;
+			return "ok";
+		}
+
+		public void close() {
+		}
+
+		synchronized int calls() {
+			return timeouts.size();
+		}
+	}
+
+	private static ResiliencePolicy policy(int maxRetries, long callDeadline,
+			int breakerThreshold, long breakerOpenInterval) {
+		return new ResiliencePolicy(maxRetries, 1, 1, callDeadline,
+				breakerThreshold, breakerOpenInterval);
+	}
+
+	private static void assertFails(ResilientTransport t,
+			Class<? extends IOException> expected) {
+		try {
+			t.get("/x");
+			fail("Call succeeded");
+		} catch (IOException e) {
+			assertEquals(e.getClass(), expected);
+		}
+	}
+
+	@Test
+	public void breakerOpensAndClosesAgain() throws Exception {
+		ScriptedTransport s = new ScriptedTransport();
+		ResilientTransport t = new ResilientTransport(s,
+				policy(0, 1000, 3, 100));
+		s.observed = t;
+
+		s.failure = new IOException("Connection refused");
+		for (int i = 0; i < 3; i++) {
+			assertEquals(t.getState(), State.CLOSED);
+			assertFails(t, IOException.class);
+		}
+		assertEquals(t.getState(), State.OPEN);
+		assertEquals(t.getBreakerOpens(), 1);
+
+		// calls fail without reaching the controller
+		assertFails(t, CircuitOpenException.class);
+		assertEquals(s.calls(), 3);
+		assertEquals(t.getRejected(), 1);
+
+		// a failed trial opens the breaker again
+		Thread.sleep(150);
+		assertFails(t, IOException.class);
+		assertEquals(s.states.get(3), State.HALF_OPEN);
+		assertEquals(t.getState(), State.OPEN);
+		assertEquals(t.getBreakerOpens(), 2);
+		assertFails(t, CircuitOpenException.class);
+
+		// a successful one closes it
+		Thread.sleep(150);
+		s.failure = null;
+		assertEquals(t.get("/x"), "ok");
+		assertEquals(s.states.get(4), State.HALF_OPEN);
+		assertEquals(t.getState(), State.CLOSED);
+		assertEquals(t.getConsecutiveFailures(), 0);
+	}
+
+	@Test
+	public void clientErrorsDontTripBreaker() {
+		ScriptedTransport s = new ScriptedTransport();
+		ResilientTransport t = new ResilientTransport(s,
+				policy(2, 1000, 3, 100));
+
+		s.failure = new ControllerResponseException(400, "Bad request");
+		for (int i = 0; i < 10; i++)
+			assertFails(t, ControllerResponseException.class);
+		// not retried either
+		assertEquals(s.calls(), 10);
+		assertEquals(t.getState(), State.CLOSED);
+		assertEquals(t.getConsecutiveFailures(), 0);
+		assertEquals(t.getRetries(), 0);
+	}
+
+	@Test
+	public void serverErrorsAreRetried() {
+		ScriptedTransport s = new ScriptedTransport();
+		ResilientTransport t = new ResilientTransport(s,
+				policy(2, 1000, 3, 100));
+
+		s.failure = new ControllerResponseException(503, "Unavailable");
+		assertFails(t, ControllerResponseException.class);
+		assertEquals(s.calls(), 3);
+		assertEquals(t.getRetries(), 2);
+		assertEquals(t.getFailures(), 1);
+		assertEquals(t.getConsecutiveFailures(), 1);
+	}
+
+	@Test
+	public void attemptsEndAtCallDeadline() {
+		ScriptedTransport s = new ScriptedTransport();
+		ResilientTransport t = new ResilientTransport(s,
+				policy(100, 300, 0, 100));
+
+		s.hang = true;
+		long start = System.currentTimeMillis();
+		assertFails(t, SocketTimeoutException.class);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue(elapsed < 400, "Call took " + elapsed + " ms");
+		assertTrue(s.timeouts.get(0) <= 300, "First timeout "
+				+ s.timeouts.get(0));
+		for (int i = 1; i < s.timeouts.size(); i++)
+			assertTrue(s.timeouts.get(i) <= s.timeouts.get(i - 1));
+	}
+
+	@Test
+	public void callTimeoutShortensDeadline() throws Exception {
+		ScriptedTransport s = new ScriptedTransport();
+		ResilientTransport t = new ResilientTransport(s,
+				policy(0, 10000, 0, 100));
+
+		assertEquals(t.get("/x", 50), "ok");
+		assertTrue(s.timeouts.get(0) <= 50, "Timeout " + s.timeouts.get(0));
+		assertEquals(t.post("/x", new byte[0], 0, 0), "ok");
+		assertTrue(s.timeouts.get(1) <= 10000 && s.timeouts.get(1) > 50);
+	}
+}
@@ -0,0 +1,100 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.testng.annotations.Test;
+
+/**
+ * Setups failing halfway, on a switch the simulator fails every request
+ * of, are rolled back.
+ *
+ */
+public class SetupRollbackTest extends SimulatorTestSupport {
+
+	@Override
+	protected int switchGroup() {
+		return 1;
+	}
+
+	@Test
+	public void failedSetupRemovesInstalledEntries() throws Exception {
+		controller.setSwitchFailing(dpid(node(3)), true);
+		try {
+			ISDNConnectorResponse response = connector.setupCircuit(
+					path(1, 2, node(1), node(2), node(3)), "rollback-1", null);
+
+			assertFalse(response == ISDNConnectorResponse.SUCCESS);
+			assertTrue(controller.getEntries(dpid(node(1))).isEmpty());
+			assertTrue(controller.getEntries(dpid(node(2))).isEmpty());
+			assertTrue(FloodlightSDNConnector.getEntryIndex()
+					.entriesOf("rollback-1").isEmpty());
+			RollbackReport report = FloodlightSDNConnector
+					.getRollbackReport("rollback-1");
+			assertNotNull(report);
+			// the failing switch may or may not have stored its entry
+			for (FlowEntry e : report.getNotRemoved())
+				assertEquals(e.getNode().getId(), node(3));
+		} finally {
+			controller.setSwitchFailing(dpid(node(3)), false);
+		}
+	}
+
+	@Test
+	public void failedSetupKeepsSharedHopOfOtherCircuit() throws Exception {
+		List<SDNHop> shared = path(1, 2, sharedNode(1));
+		String key = HopRefCounter.keyOf(shared.get(0));
+		assertEquals(connector.setupCircuit(join(shared, path(1, 2, node(4))),
+				"rollback-2", null), ISDNConnectorResponse.SUCCESS);
+		int onShared = controller.getEntries(dpid(sharedNode(1))).size();
+		assertTrue(onShared > 0);
+
+		controller.setSwitchFailing(dpid(node(5)), true);
+		try {
+			ISDNConnectorResponse response = connector.setupCircuit(join(
+					path(1, 2, sharedNode(1)), path(1, 2, node(5))),
+					"rollback-3", null);
+
+			assertFalse(response == ISDNConnectorResponse.SUCCESS);
+			assertEquals(controller.getEntries(dpid(sharedNode(1))).size(),
+					onShared);
+			assertEquals(FloodlightSDNConnector.getHopRefCounter().get(key), 1);
+			assertTrue(FloodlightSDNConnector.getRollbackReport("rollback-3")
+					.getReleasedHops().contains(key));
+		} finally {
+			controller.setSwitchFailing(dpid(node(5)), false);
+		}
+
+		assertEquals(connector.teardownCircuit(join(shared, path(1, 2,
+				node(4))), "rollback-2"), ISDNConnectorResponse.SUCCESS);
+		assertTrue(controller.getEntries(dpid(sharedNode(1))).isEmpty());
+		assertEquals(FloodlightSDNConnector.getHopRefCounter().get(key), 0);
+	}
+
+	@Test
+	public void failedSetupReleasesSharedHopItProgrammed() throws Exception {
+		controller.setSwitchFailing(dpid(node(6)), true);
+		try {
+			ISDNConnectorResponse response = connector.setupCircuit(join(
+					path(1, 2, sharedNode(2)), path(1, 2, node(6))),
+					"rollback-4", null);
+
+			assertFalse(response == ISDNConnectorResponse.SUCCESS);
+		} finally {
+			controller.setSwitchFailing(dpid(node(6)), false);
+		}
+		// the hop is first again for the next circuit
+		assertTrue(controller.getEntries(dpid(sharedNode(2))).isEmpty());
+		assertEquals(connector.setupCircuit(join(path(1, 2, sharedNode(2)),
+				path(1, 2, node(7))), "rollback-5", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertFalse(controller.getEntries(dpid(sharedNode(2))).isEmpty());
+	}
+}
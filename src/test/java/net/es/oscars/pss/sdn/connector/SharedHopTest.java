@@ -0,0 +1,116 @@
+package net.es.oscars.pss.sdn.connector;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.es.oscars.pss.sdn.connector.ISDNConnector.ISDNConnectorResponse;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.testng.annotations.Test;
+
+/**
+ * Circuits sharing a hop of an L0/1 device: the hop is programmed while any
+ * of them holds it, whatever the order their setups and teardowns run in.
+ *
+ */
+public class SharedHopTest extends SimulatorTestSupport {
+
+	@Override
+	protected int switchGroup() {
+		return 2;
+	}
+
+	/**
+	 * @return circuit i's path: the shared hop, then a switch of its own
+	 */
+	private List<SDNHop> circuit(int i) throws Exception {
+		return join(path(1, 2, sharedNode(1)), path(10 + i, 100 + i, node(1)));
+	}
+
+	@Test
+	public void concurrentSetupsAndTeardownsKeepSharedHop() throws Exception {
+		final String shared = dpid(sharedNode(1));
+		final String key = HopRefCounter.keyOf(circuit(0).get(0));
+		HopRefCounter refs = FloodlightSDNConnector.getHopRefCounter();
+		// requests overlap on the controller
+		controller.setLatency(2, 5);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			for (int round = 0; round < 10; round++) {
+				List<Future<ISDNConnectorResponse>> done = new ArrayList<Future<ISDNConnectorResponse>>();
+				for (int i = 0; i < 6; i++) {
+					final int c = i;
+					done.add(pool.submit(new Callable<ISDNConnectorResponse>() {
+						public ISDNConnectorResponse call() throws Exception {
+							String gri = "shared-" + c;
+							ISDNConnectorResponse r = connector.setupCircuit(
+									circuit(c), gri, null);
+							if (r != ISDNConnectorResponse.SUCCESS)
+								return r;
+							return connector.teardownCircuit(circuit(c), gri);
+						}
+					}));
+				}
+				final String kept = "shared-kept-" + round;
+				done.add(pool.submit(new Callable<ISDNConnectorResponse>() {
+					public ISDNConnectorResponse call() throws Exception {
+						return connector.setupCircuit(circuit(50), kept, null);
+					}
+				}));
+				for (Future<ISDNConnectorResponse> f : done)
+					assertEquals(f.get(), ISDNConnectorResponse.SUCCESS);
+
+				assertEquals(refs.get(key), 1);
+				assertEquals(controller.getEntries(shared).size(), 2);
+
+				assertEquals(connector.teardownCircuit(circuit(50), kept),
+						ISDNConnectorResponse.SUCCESS);
+				assertEquals(refs.get(key), 0);
+				assertTrue(controller.getEntries(shared).isEmpty());
+			}
+		} finally {
+			pool.shutdown();
+			controller.setLatency(0, 0);
+		}
+		assertTrue(controller.getEntries(dpid(node(1))).isEmpty());
+	}
+
+	@Test
+	public void statusCountsSharedEntriesForEveryHolder() throws Exception {
+		List<SDNHop> first = join(path(1, 2, sharedNode(2)), path(1, 2,
+				node(2)));
+		List<SDNHop> second = join(path(1, 2, sharedNode(2)), path(3, 4,
+				node(2)));
+		List<SDNHop> sharedOnly = path(1, 2, sharedNode(2));
+		assertEquals(connector.setupCircuit(first, "status-1", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.setupCircuit(second, "status-2", null),
+				ISDNConnectorResponse.SUCCESS);
+		assertEquals(connector.setupCircuit(sharedOnly, "status-3", null),
+				ISDNConnectorResponse.SUCCESS);
+
+		// the circuit that installed the shared entries goes away
+		assertEquals(connector.teardownCircuit(first, "status-1"),
+				ISDNConnectorResponse.SUCCESS);
+
+		CircuitStatus status = connector.circuitStatus("status-2", 60000);
+		assertEquals(status.getState(), CircuitStatus.State.ACTIVE);
+		assertEquals(status.getExpected(), 4);
+		status = connector.circuitStatus("status-3", 60000);
+		assertEquals(status.getState(), CircuitStatus.State.ACTIVE);
+		assertEquals(status.getExpected(), 2);
+
+		connector.teardownCircuit(second, "status-2");
+		connector.teardownCircuit(sharedOnly, "status-3");
+		assertEquals(connector.circuitStatus("status-3", 60000).getState(),
+				CircuitStatus.State.NOT_FOUND);
+		assertTrue(controller.getEntries(dpid(sharedNode(2))).isEmpty());
+	}
+}
@@ -0,0 +1,94 @@
+package net.es.oscars.pss.sdn.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.es.oscars.pss.sdn.simulator.FloodlightSimulator;
+import net.es.oscars.topoBridge.sdn.BaseSDNTopologyService;
+import net.es.oscars.topoBridge.sdn.SDNHop;
+
+import org.ogf.schema.network.topology.ctrlplane.CtrlPlaneHopContent;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+
+/**
+ * Runs the tests of a class against an in-process
+ * {@link FloodlightSimulator}, with a connector pointed to it.
+ *
+ * The entry index, hop references and flow table accounting are shared by
+ * all connectors, so every test class works on switches of its own (see
+ * {@link #node}) and every test on circuits of its own.
+ *
+ */
+public abstract class SimulatorTestSupport {
+	protected FloodlightSimulator controller;
+	protected FloodlightSDNConnector connector;
+
+	/**
+	 * @return a number telling the switches of the test class apart from
+	 *         those of the other classes
+	 */
+	protected abstract int switchGroup();
+
+	@BeforeClass
+	public void startController() throws Exception {
+		controller = new FloodlightSimulator();
+		controller.start();
+		connector = new FloodlightSDNConnector(controller.getAddress());
+	}
+
+	@AfterClass
+	public void stopController() {
+		controller.stop();
+	}
+
+	/**
+	 * @return the node id of switch n of the test class
+	 */
+	protected String node(int n) {
+		return String.format("00.%02x.00.00.00.00.00.%02x", switchGroup(), n);
+	}
+
+	/**
+	 * @return the node id of L0/1 device n of the test class, whose hops are
+	 *         shared
+	 */
+	protected String sharedNode(int n) {
+		return String.format("11.%02x.00.00.00.00.00.%02x", switchGroup(), n);
+	}
+
+	/**
+	 * @return the DPID the simulator knows a node by
+	 */
+	protected static String dpid(String node) {
+		return node.replace('.', ':');
+	}
+
+	/**
+	 * @return the hops of a path crossing the nodes, entering each on inPort
+	 *         and leaving on outPort, built the way setup requests are
+	 */
+	protected static List<SDNHop> path(int inPort, int outPort,
+			String... nodes) throws Exception {
+		List<CtrlPlaneHopContent> path = new ArrayList<CtrlPlaneHopContent>();
+		for (String node : nodes) {
+			for (int port : new int[] { inPort, outPort }) {
+				CtrlPlaneHopContent hop = new CtrlPlaneHopContent();
+				hop.setId(String.valueOf(path.size()));
+				hop.setLinkIdRef("urn:ogf:network:domain=d:node=" + node
+						+ ":port=" + port + ":link=1");
+				path.add(hop);
+			}
+		}
+		return BaseSDNTopologyService.extractSDNHops(path);
+	}
+
+	/**
+	 * @return the hops of both paths, in order
+	 */
+	protected static List<SDNHop> join(List<SDNHop> a, List<SDNHop> b) {
+		List<SDNHop> hops = new ArrayList<SDNHop>(a);
+		hops.addAll(b);
+		return hops;
+	}
+}
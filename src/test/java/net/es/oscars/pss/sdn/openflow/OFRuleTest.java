@@ -0,0 +1,223 @@
+package net.es.oscars.pss.sdn.openflow;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import net.es.oscars.pss.sdn.openflow.OFRule.Action;
+import net.es.oscars.pss.sdn.openflow.OFRule.Field;
+
+import org.testng.annotations.Test;
+
+/**
+ * OF match and action strings are parsed and validated in one pass, and
+ * rules round-trip through their builders.
+ *
+ */
+public class OFRuleTest {
+
+	private static OFRule parse(String match) throws Exception {
+		return OFRule.builder(match).build();
+	}
+
+	private static void assertValid(String match) {
+		assertTrue(OFRule.isValidOFRuleString(match), match);
+	}
+
+	private static void assertInvalid(String match) {
+		assertFalse(OFRule.isValidOFRuleString(match), match);
+		try {
+			OFRule.builder(match);
+			fail("Parsed " + match);
+		} catch (Exception e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void validRulesRoundTrip() throws Exception {
+		String[] matches = {
+				"in_port=1,dl_type=0x800,nw_src=10.0.0.1/24,nw_dst=10.0.0.2,tp_dst=80",
+				"dl_src=00:11:22:33:44:55,dl_dst=aa:bb:cc:dd:ee:ff,dl_vlan=100",
+				"in_port=3,dl_vlan=2001,dl_vlan_pcp=5,output=4,set-vlan-id=2002",
+				"nw_proto=17,nw_tos=8,tp_src=53,strip-vlan,output=2,name=e1" };
+		for (String match : matches) {
+			OFRule rule = parse(match);
+			assertEquals(rule.toBuilder().build(), rule, match);
+			assertEquals(rule.toBuilder().build().hashCode(), rule.hashCode());
+
+			// the formatted values parse back to the same rule
+			OFRule.Builder b = OFRule.builder();
+			for (Field f : Field.values()) {
+				if (rule.has(f))
+					b.set(f, rule.getString(f));
+			}
+			for (Action a : rule.getActions())
+				b.action(a.getType(), a.getType() == Action.Type.STRIP_VLAN
+						? "" : String.valueOf(a.getValue()));
+			b.name(rule.getName());
+			assertEquals(b.build(), rule, match);
+		}
+	}
+
+	@Test
+	public void valuesAreStoredAsPrimitives() throws Exception {
+		OFRule rule = parse("in_port=7,dl_src=00:11:22:33:44:55,"
+				+ "nw_dst=10.1.2.3/16,dl_vlan=100,output=2,set-vlan-id=200");
+		assertEquals(rule.get(Field.IN_PORT), 7);
+		assertEquals(rule.get(Field.DL_SRC), 0x001122334455L);
+		assertEquals(rule.getIPv4(Field.NW_DST), 0x0a010203);
+		assertEquals(rule.getPrefixLength(Field.NW_DST), 16);
+		assertEquals(rule.getString(Field.NW_DST), "10.1.2.3/16");
+		assertEquals(rule.get(Field.TP_DST), -1);
+		assertEquals(rule.getAction(Action.Type.OUTPUT), 2);
+		assertEquals(rule.getActionString(), "set-vlan-id=200,output=2");
+		// addresses without a prefix length match the host
+		assertEquals(parse("nw_src=10.0.0.1").getPrefixLength(Field.NW_SRC), 32);
+	}
+
+	@Test
+	public void keysIgnoreCase() throws Exception {
+		assertEquals(parse("IN_PORT=1,Output=2"), parse("in_port=1,output=2"));
+	}
+
+	@Test
+	public void l4MatchesDefaultToTcpOverIp() throws Exception {
+		OFRule rule = parse("tp_dst=80");
+		assertEquals(rule.get(Field.NW_PROTO), 6);
+		assertEquals(rule.get(Field.DL_TYPE), 0x800);
+		assertEquals(parse("nw_proto=17,dl_type=0x86dd").get(Field.DL_TYPE),
+				0x86dd);
+		assertFalse(parse("in_port=1").has(Field.NW_PROTO));
+	}
+
+	@Test
+	public void fieldBounds() {
+		assertValid("in_port=2147483647");
+		assertInvalid("in_port=2147483648");
+		assertInvalid("in_port=0");
+		assertInvalid("in_port=01");
+		assertInvalid("in_port=-1");
+		assertInvalid("in_port=1a");
+		assertValid("dl_vlan=4095");
+		assertInvalid("dl_vlan=4096");
+		assertValid("dl_vlan_pcp=7");
+		assertInvalid("dl_vlan_pcp=8");
+		assertValid("nw_proto=255");
+		assertInvalid("nw_proto=256");
+		assertValid("nw_tos=255");
+		assertInvalid("nw_tos=256");
+		assertValid("tp_src=65535");
+		assertInvalid("tp_src=65536");
+		assertValid("tp_dst=65535");
+		assertInvalid("tp_dst=65536");
+		assertValid("dl_type=0xffff");
+		assertValid("dl_type=806");
+		assertInvalid("dl_type=0x10000");
+		assertInvalid("dl_type=0x");
+		assertInvalid("dl_type=0xg");
+		assertValid("set-vlan-id=4095");
+		assertInvalid("set-vlan-id=4096");
+		assertValid("output=2147483647");
+		assertInvalid("output=2147483648");
+	}
+
+	@Test
+	public void builderChecksBounds() {
+		OFRule.Builder b = OFRule.builder();
+		b.set(Field.DL_VLAN, 4095);
+		try {
+			b.set(Field.DL_VLAN, 4096);
+			fail("Set VLAN 4096");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			b.set(Field.NW_DST, 33L << 32);
+			fail("Set prefix length 33");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			b.priority(OFRule.MAX_PRIORITY + 1);
+			fail("Set priority " + (OFRule.MAX_PRIORITY + 1));
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(b.build().get(Field.DL_VLAN), 4095);
+	}
+
+	@Test
+	public void malformedMACs() {
+		assertTrue(OFRule.isValidMAC("00:11:22:33:44:55"));
+		assertTrue(OFRule.isValidMAC("AA:bb:CC:dd:EE:ff"));
+		String[] macs = { "", "00:11:22:33:44", "00:11:22:33:44:55:66",
+				"00-11-22-33-44-55", "00:11:22:33:44:5g", "0:11:22:33:44:555",
+				"00:11:22:33:44:55:", "001122334455" };
+		for (String mac : macs) {
+			assertFalse(OFRule.isValidMAC(mac), mac);
+			assertInvalid("dl_src=" + mac);
+		}
+		assertFalse(OFRule.isValidMAC(null));
+	}
+
+	@Test
+	public void malformedIPs() {
+		assertTrue(OFRule.isValidIP("0.0.0.0/0"));
+		assertTrue(OFRule.isValidIP("255.255.255.255/32"));
+		assertTrue(OFRule.isValidIP("10.0.0.1/9"));
+		String[] ips = { "", "256.0.0.1", "10.0.0", "10.0.0.1.2", "10..0.1",
+				"10.0.0.1/", "10.0.0.1/33", "10.0.0.1/04", "10.0.0.1/100",
+				"10.0.0.1000", "a.b.c.d", "10.0.0.1 " };
+		for (String ip : ips) {
+			assertFalse(OFRule.isValidIP(ip), ip);
+			assertInvalid("nw_dst=" + ip);
+		}
+		assertFalse(OFRule.isValidIP(null));
+	}
+
+	@Test
+	public void unknownKeys() {
+		assertInvalid("foo=1");
+		assertInvalid("in_por=1");
+		assertInvalid("in_port1=1");
+		assertInvalid("in_port=1,foo=2");
+		try {
+			OFRule.builder().set("foo", "1");
+			fail("Set foo");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void malformedTokens() {
+		assertInvalid(null);
+		assertInvalid("");
+		assertInvalid(",");
+		assertInvalid("in_port=1,,output=2");
+		assertInvalid("in_port");
+		assertInvalid("in_port=");
+		assertInvalid("output");
+		assertInvalid("strip-vlan=1");
+		assertInvalid("name");
+		assertInvalid("name=a\nb");
+		assertValid("strip-vlan");
+		assertValid("strip-vlan=");
+		// String.split dropped a trailing separator before
+		assertValid("in_port=1,");
+	}
+
+	@Test
+	public void duplicateFieldsKeepLastValue() throws Exception {
+		// as with the previous, map based rules
+		assertEquals(parse("in_port=1,in_port=2").get(Field.IN_PORT), 2);
+		assertEquals(parse("output=1,output=3").getActions().size(), 1);
+		assertEquals(parse("output=1,output=3").getAction(Action.Type.OUTPUT),
+				3);
+		assertEquals(parse("name=a,name=b").getName(), "b");
+		// a duplicate is validated like any other value
+		assertInvalid("dl_vlan=100,dl_vlan=5000");
+	}
+}
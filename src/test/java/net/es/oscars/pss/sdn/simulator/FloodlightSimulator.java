@@ -0,0 +1,531 @@
+package net.es.oscars.pss.sdn.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Floodlight staticflowentrypusher REST API, for
+ * load and failure tests without a controller. It serves
+ *
+ * <pre>
+ * POST /wm/staticflowentrypusher/json/store
+ * POST /wm/staticflowentrypusher/json/delete
+ * GET  /wm/staticflowentrypusher/list/&lt;dpid|all&gt;/json
+ * GET  /wm/staticflowentrypusher/clear/&lt;dpid|all&gt;/json
+ * </pre>
+ *
+ * and keeps a flow table per switch. Point a connector to
+ * {@link #getAddress()}, or run {@link #main(String[])} (from the test
+ * classpath) and set the controller param of the circuit service to the
+ * logged address.
+ *
+ * Every request can be delayed (latency plus a random jitter) and made to
+ * fail with a given probability, either like Floodlight does (a 200 with an
+ * error status) or with an HTTP 500. Stores of new entries into a full table
+ * are refused. The random source is seeded, so a single-threaded run is
+ * repeatable. All settings can be changed while the simulator runs.
+ *
+ */
+public class FloodlightSimulator {
+	public static final String BASE_PATH = "/wm/staticflowentrypusher/";
+	public static final int DEFAULT_THREADS = 16;
+
+	private static final Logger log = Logger
+			.getLogger(FloodlightSimulator.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * How injected errors are reported.
+	 */
+	public enum ErrorMode {
+		/** 200 with an error status message, as Floodlight does */
+		STATUS,
+		/** HTTP 500 */
+		SERVER_ERROR;
+	}
+
+	static {
+		// the JDK server writes headers and body separately: without this,
+		// Nagle's algorithm holds the body until the client's delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final ObjectMapper jsonMapper = new ObjectMapper();
+	/* dpid -> entry name -> entry, each table guarded by itself */
+	private final ConcurrentHashMap<String, Map<String, JsonNode>> tables = new ConcurrentHashMap<String, Map<String, JsonNode>>();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random;
+
+	private volatile long latency = 0;
+	private volatile long jitter = 0;
+	private volatile double errorRate = 0;
+	private volatile ErrorMode errorMode = ErrorMode.STATUS;
+	private volatile int tableSize = Integer.MAX_VALUE;
+	private final Set<String> failingSwitches = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final AtomicLong stores = new AtomicLong();
+	private final AtomicLong deletes = new AtomicLong();
+	private final AtomicLong lists = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong tableFull = new AtomicLong();
+
+	/**
+	 * Bind to a free port on the loopback interface.
+	 */
+	public FloodlightSimulator() throws IOException {
+		this(0, DEFAULT_THREADS, 0);
+	}
+
+	/**
+	 * @param port
+	 *            0 for any free port
+	 * @param threads
+	 *            requests served concurrently
+	 * @param seed
+	 *            seed of the latency jitter and error injection
+	 */
+	public FloodlightSimulator(int port, int threads, long seed)
+			throws IOException {
+		random = new Random(seed);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port),
+				128);
+		executor = Executors.newFixedThreadPool(threads,
+				new SimulatorThreadFactory());
+		server.setExecutor(executor);
+		server.createContext(BASE_PATH, new Handler());
+	}
+
+	public void start() {
+		server.start();
+		log.info("Floodlight simulator listening on " + getAddress());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the base URL to give to a connector
+	 */
+	public String getAddress() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Delay every request by latency ms plus a random 0..jitter ms.
+	 */
+	public void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Fail store and delete requests with the given probability.
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	public void setErrorMode(ErrorMode errorMode) {
+		this.errorMode = errorMode;
+	}
+
+	/**
+	 * Limit the number of entries of every switch.
+	 */
+	public void setTableSize(int tableSize) {
+		this.tableSize = tableSize;
+	}
+
+	/**
+	 * Make every store and delete on a switch fail, or succeed again.
+	 */
+	public void setSwitchFailing(String dpid, boolean failing) {
+		if (failing)
+			failingSwitches.add(dpid);
+		else
+			failingSwitches.remove(dpid);
+	}
+
+	/**
+	 * @return a copy of the entry names on a switch
+	 */
+	public Set<String> getEntries(String dpid) {
+		Map<String, JsonNode> table = tables.get(dpid);
+		if (table == null)
+			return new HashSet<String>();
+		synchronized (table) {
+			return new HashSet<String>(table.keySet());
+		}
+	}
+
+	/**
+	 * @return the number of entries on all switches
+	 */
+	public int getEntryCount() {
+		int count = 0;
+		for (Map<String, JsonNode> table : tables.values()) {
+			synchronized (table) {
+				count += table.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove all entries from all switches.
+	 */
+	public void clear() {
+		tables.clear();
+	}
+
+	public long getStores() {
+		return stores.get();
+	}
+
+	public long getDeletes() {
+		return deletes.get();
+	}
+
+	public long getLists() {
+		return lists.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	/**
+	 * @return stores refused because the switch's table was full
+	 */
+	public long getTableFull() {
+		return tableFull.get();
+	}
+
+	private Map<String, JsonNode> tableOf(String dpid) {
+		Map<String, JsonNode> table = tables.get(dpid);
+		if (table == null) {
+			Map<String, JsonNode> n = new LinkedHashMap<String, JsonNode>();
+			table = tables.putIfAbsent(dpid, n);
+			if (table == null)
+				table = n;
+		}
+		return table;
+	}
+
+	private class Handler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				delay();
+				String path = exchange.getRequestURI().getPath()
+						.substring(BASE_PATH.length());
+				String method = exchange.getRequestMethod();
+
+				if (method.equals("POST") && path.equals("json/store")) {
+					stores.incrementAndGet();
+					respond(exchange, store(readBody(exchange)));
+				} else if (method.equals("POST") && path.equals("json/delete")) {
+					deletes.incrementAndGet();
+					respond(exchange, delete(readBody(exchange)));
+				} else if (method.equals("GET") && path.startsWith("list/")
+						&& path.endsWith("/json")) {
+					lists.incrementAndGet();
+					send(exchange, 200, list(switchOf(path, "list/")));
+				} else if (method.equals("GET") && path.startsWith("clear/")
+						&& path.endsWith("/json")) {
+					clear(switchOf(path, "clear/"));
+					send(exchange, 200, "{}");
+				} else {
+					send(exchange, 404, "{\"status\":\"Not found\"}");
+				}
+			} catch (IOException e) {
+				send(exchange, 400, status("Fatal error: " + e.getMessage()));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private void delay() {
+		long d = latency;
+		long j = jitter;
+		if (j > 0) {
+			synchronized (random) {
+				d += (long) (random.nextDouble() * j);
+			}
+		}
+		if (d <= 0)
+			return;
+		try {
+			Thread.sleep(d);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean injectError(String dpid) {
+		if (dpid != null && failingSwitches.contains(dpid))
+			return true;
+		double rate = errorRate;
+		if (rate <= 0)
+			return false;
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	/**
+	 * A response to a store or delete: either a status or, for injected
+	 * server errors, an HTTP 500.
+	 */
+	private static class Result {
+		final int code;
+		final String body;
+
+		Result(int code, String body) {
+			this.code = code;
+			this.body = body;
+		}
+	}
+
+	private Result ok(String status) {
+		return new Result(200, status(status));
+	}
+
+	private Result error(String dpid) {
+		injectedErrors.incrementAndGet();
+		if (errorMode == ErrorMode.SERVER_ERROR)
+			return new Result(500, status("Internal error"));
+		return ok("Fatal error: injected failure on " + dpid);
+	}
+
+	private Result store(JsonNode request) {
+		String dpid = text(request, "switch");
+		String name = text(request, "name");
+		if (dpid == null || name == null)
+			return ok("Fatal error: entry must have a switch and a name");
+		if (injectError(dpid))
+			return error(dpid);
+
+		ObjectNode entry = ((ObjectNode) request).deepCopy();
+		entry.remove("switch");
+		entry.remove("name");
+		Map<String, JsonNode> table = tableOf(dpid);
+		synchronized (table) {
+			if (!table.containsKey(name) && table.size() >= tableSize) {
+				tableFull.incrementAndGet();
+				return ok("Fatal error: flow table of " + dpid + " is full");
+			}
+			table.put(name, entry);
+		}
+		return ok("Entry pushed");
+	}
+
+	private Result delete(JsonNode request) {
+		String name = text(request, "name");
+		if (name == null)
+			return ok("Fatal error: entry must have a name");
+		String dpid = text(request, "switch");
+		if (injectError(dpid))
+			return error(dpid);
+
+		// like Floodlight, a name is enough and unknown names aren't errors
+		if (dpid != null) {
+			Map<String, JsonNode> table = tables.get(dpid);
+			if (table != null) {
+				synchronized (table) {
+					table.remove(name);
+				}
+			}
+		} else {
+			for (Map<String, JsonNode> table : tables.values()) {
+				synchronized (table) {
+					table.remove(name);
+				}
+			}
+		}
+		return ok("Entry " + name + " deleted");
+	}
+
+	private String list(String dpid) throws IOException {
+		ObjectNode root = jsonMapper.createObjectNode();
+		if (dpid.equals("all")) {
+			for (String s : tables.keySet())
+				listInto(root, s);
+		} else {
+			listInto(root, dpid);
+		}
+		return jsonMapper.writeValueAsString(root);
+	}
+
+	private void listInto(ObjectNode root, String dpid) {
+		ObjectNode entries = root.putObject(dpid);
+		Map<String, JsonNode> table = tables.get(dpid);
+		if (table == null)
+			return;
+		synchronized (table) {
+			for (Map.Entry<String, JsonNode> e : table.entrySet())
+				entries.set(e.getKey(), e.getValue());
+		}
+	}
+
+	private void clear(String dpid) {
+		if (dpid.equals("all")) {
+			tables.clear();
+			return;
+		}
+		Map<String, JsonNode> table = tables.get(dpid);
+		if (table != null) {
+			synchronized (table) {
+				table.clear();
+			}
+		}
+	}
+
+	private static String switchOf(String path, String prefix) {
+		return path.substring(prefix.length(), path.length() - "/json".length());
+	}
+
+	private static String text(JsonNode request, String field) {
+		JsonNode n = request.get(field);
+		return n == null || n.isNull() ? null : n.asText();
+	}
+
+	private String status(String message) {
+		try {
+			return jsonMapper.writeValueAsString(jsonMapper.createObjectNode()
+					.put("status", message));
+		} catch (IOException e) {
+			return "{}";
+		}
+	}
+
+	private JsonNode readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+		byte[] b = new byte[4096];
+		int r;
+		while ((r = in.read(b)) >= 0)
+			body.write(b, 0, r);
+		JsonNode request = jsonMapper.readTree(body.toByteArray());
+		if (request == null || !request.isObject())
+			throw new IOException("request isn't a JSON object");
+		return request;
+	}
+
+	private static void respond(HttpExchange exchange, Result result)
+			throws IOException {
+		send(exchange, result.code, result.body);
+	}
+
+	private static void send(HttpExchange exchange, int code, String body)
+			throws IOException {
+		byte[] b = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, b.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(b);
+		out.flush();
+	}
+
+	private static class SimulatorThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "sdnpss-simulator-"
+					+ threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Run a simulator until killed. Options:
+	 *
+	 * <pre>
+	 * -port n        listen port (default 8080)
+	 * -threads n     requests served concurrently (default 16)
+	 * -latency ms    delay of every request
+	 * -jitter ms     random extra delay
+	 * -errorRate p   probability of failing a store or delete
+	 * -errorMode m   STATUS or SERVER_ERROR
+	 * -tableSize n   entries per switch
+	 * -seed n        random seed
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (int i = 0; i < args.length; i += 2) {
+			String o = args[i].substring(1);
+			if (!args[i].startsWith("-") || i + 1 == args.length
+					|| !o.matches("port|threads|seed|latency|jitter|errorRate|errorMode|tableSize"))
+				throw new IllegalArgumentException("Invalid option " + args[i]);
+			options.put(o, args[i + 1]);
+		}
+
+		FloodlightSimulator sim = new FloodlightSimulator(intOption(options,
+				"port", 8080), intOption(options, "threads", DEFAULT_THREADS),
+				intOption(options, "seed", 0));
+		sim.setLatency(intOption(options, "latency", 0),
+				intOption(options, "jitter", 0));
+		if (options.containsKey("errorRate"))
+			sim.setErrorRate(Double.parseDouble(options.get("errorRate")));
+		if (options.containsKey("errorMode"))
+			sim.setErrorMode(ErrorMode.valueOf(options.get("errorMode")
+					.toUpperCase()));
+		sim.setTableSize(intOption(options, "tableSize", Integer.MAX_VALUE));
+
+		// log to the console unless log4j is configured
+		if (!Logger.getRootLogger().getAllAppenders().hasMoreElements())
+			BasicConfigurator.configure();
+		sim.start();
+		log.info("controller: \"" + sim.getAddress() + "\"");
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	private static int intOption(Map<String, String> options, String name,
+			int defaultValue) {
+		if (!options.containsKey(name))
+			return defaultValue;
+		return Integer.parseInt(options.get(name));
+	}
+}